@@ -0,0 +1,23 @@
+package org.cf.demoapp;
+
+import org.cf.smalivm.emulate.EmulatedMethod;
+import org.cf.smalivm.emulate.EmulatedMethodProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Adds the demo's emulated methods. It's listed in META-INF/services, so the VM finds it without being told about it.
+ */
+public class DemoMethodProvider implements EmulatedMethodProvider {
+
+    @Override
+    public Map<String, Class<? extends EmulatedMethod>> getEmulatedMethods() {
+        Map<String, Class<? extends EmulatedMethod>> methods = new HashMap<String, Class<? extends EmulatedMethod>>();
+        // Hook println with our own implementation
+        methods.put("Ljava/io/PrintStream;->println(Ljava/lang/String;)V", java_io_PrintStream_println.class);
+
+        return methods;
+    }
+
+}
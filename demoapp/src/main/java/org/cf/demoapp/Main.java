@@ -5,7 +5,6 @@ import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.ExecutionGraph;
 import org.cf.smalivm.context.MethodState;
-import org.cf.smalivm.emulate.MethodEmulator;
 import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
 import org.cf.smalivm.exception.MaxCallDepthExceeded;
 import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
@@ -22,9 +21,7 @@ public class Main {
         ClassManager classManager = new ClassManager(SmaliPath);
         vm = new VirtualMachine(classManager);
 
-        // Hook println with our own implementation
-        MethodEmulator.addMethod("Ljava/io/PrintStream;->println(Ljava/lang/String;)V",
-                java_io_PrintStream_println.class);
+        // println is emulated by java_io_PrintStream_println, which is added by DemoMethodProvider.
 
         // Execute particular method
         vm.execute("Lorg/cf/demosmali/Main;->main([Ljava/lang/String;)V");
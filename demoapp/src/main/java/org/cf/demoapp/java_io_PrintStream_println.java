@@ -6,11 +6,12 @@ import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.HeapItem;
 import org.cf.smalivm.context.MethodState;
 import org.cf.smalivm.emulate.MethodStateMethod;
+import org.cf.smalivm.emulate.ReusableMethod;
 
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.Set;
 
-public class java_io_PrintStream_println implements MethodStateMethod {
+public class java_io_PrintStream_println implements MethodStateMethod, ReusableMethod {
 
     @Override
     public void execute(VirtualMachine vm, MethodState mState) {
@@ -30,7 +31,7 @@ public class java_io_PrintStream_println implements MethodStateMethod {
 
     @Override
     public Set<VirtualException> getExceptions() {
-        return new HashSet<>();
+        return Collections.emptySet();
     }
 
 }
@@ -0,0 +1,185 @@
+package org.cf.simplify;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.cf.smalivm.ClassManager;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+
+import java.util.*;
+
+/**
+ * Orders methods so callees are simplified before their callers. The static call graph is built from invoke
+ * references, and methods are ordered by strongly connected component, bottom-up. Callers then execute already
+ * simplified callees.
+ * <p>
+ * Components on the same level have no calls between them and could be simplified independently. The virtual machine
+ * is single threaded, so levels are only reported for now.
+ */
+public class CallGraphScheduler {
+
+    private final String[] methodDescriptors;
+    private final TIntList[] callees;
+    private final int[] methodToComponent;
+    private final List<String> order;
+    private int componentCount;
+    private int largestComponentSize;
+    private int levelCount;
+
+    public CallGraphScheduler(ClassManager classManager, Collection<String> methodDescriptors) {
+        this.methodDescriptors = methodDescriptors.toArray(new String[methodDescriptors.size()]);
+        callees = buildCallees(classManager, this.methodDescriptors);
+        methodToComponent = new int[this.methodDescriptors.length];
+        order = new ArrayList<String>(this.methodDescriptors.length);
+        findComponents();
+    }
+
+    private static TIntList[] buildCallees(ClassManager classManager, String[] methodDescriptors) {
+        TObjectIntMap<String> methodToIndex = new TObjectIntHashMap<String>(methodDescriptors.length, 0.5f, -1);
+        for (int i = 0; i < methodDescriptors.length; i++) {
+            methodToIndex.put(methodDescriptors[i], i);
+        }
+
+        TIntList[] result = new TIntList[methodDescriptors.length];
+        for (int i = 0; i < methodDescriptors.length; i++) {
+            result[i] = new TIntArrayList();
+            BuilderMethod method = classManager.getMethod(methodDescriptors[i]);
+            MutableMethodImplementation implementation = (MutableMethodImplementation) method.getImplementation();
+            if (implementation == null) {
+                continue;
+            }
+
+            for (BuilderInstruction instruction : implementation.getInstructions()) {
+                if (instruction.getOpcode().referenceType != ReferenceType.METHOD) {
+                    continue;
+                }
+                MethodReference reference = (MethodReference) ((ReferenceInstruction) instruction).getReference();
+                int callee = methodToIndex.get(ReferenceUtil.getMethodDescriptor(reference));
+                if ((callee >= 0) && !result[i].contains(callee)) {
+                    result[i].add(callee);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    public int getComponentCount() {
+        return componentCount;
+    }
+
+    public int getLargestComponentSize() {
+        return largestComponentSize;
+    }
+
+    /**
+     * @return number of wavefronts of components with no calls between them
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * @return method descriptors with callees before callers
+     */
+    public List<String> getOrder() {
+        return order;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Call graph: ");
+        sb.append(methodDescriptors.length).append(" methods, ");
+        sb.append(componentCount).append(" components, ");
+        sb.append(levelCount).append(" levels, ");
+        sb.append("largest component=").append(largestComponentSize);
+
+        return sb.toString();
+    }
+
+    /*
+     * Tarjan's algorithm, iterative so deep call chains can't overflow the stack. Components are found callees first,
+     * which is exactly the order we want.
+     */
+    private void findComponents() {
+        int size = methodDescriptors.length;
+        int[] index = new int[size];
+        int[] lowLink = new int[size];
+        boolean[] onStack = new boolean[size];
+        Arrays.fill(index, -1);
+        TIntList stack = new TIntArrayList();
+        TIntList componentLevels = new TIntArrayList();
+        Deque<int[]> frames = new ArrayDeque<int[]>();
+        int nextIndex = 0;
+
+        for (int root = 0; root < size; root++) {
+            if (index[root] != -1) {
+                continue;
+            }
+
+            index[root] = lowLink[root] = nextIndex++;
+            stack.add(root);
+            onStack[root] = true;
+            frames.push(new int[]{root, 0});
+            while (!frames.isEmpty()) {
+                int[] frame = frames.peek();
+                int method = frame[0];
+                if (frame[1] < callees[method].size()) {
+                    int callee = callees[method].get(frame[1]++);
+                    if (index[callee] == -1) {
+                        index[callee] = lowLink[callee] = nextIndex++;
+                        stack.add(callee);
+                        onStack[callee] = true;
+                        frames.push(new int[]{callee, 0});
+                    } else if (onStack[callee]) {
+                        lowLink[method] = Math.min(lowLink[method], index[callee]);
+                    }
+                    continue;
+                }
+
+                frames.pop();
+                if (!frames.isEmpty()) {
+                    int caller = frames.peek()[0];
+                    lowLink[caller] = Math.min(lowLink[caller], lowLink[method]);
+                }
+                if (lowLink[method] != index[method]) {
+                    continue;
+                }
+
+                // Method is the root of a component. Everything above it on the stack is in the component.
+                int component = componentCount++;
+                int componentStart = stack.lastIndexOf(method);
+                TIntList members = stack.subList(componentStart, stack.size());
+                stack.remove(componentStart, stack.size() - componentStart);
+                members.sort();
+                for (int member : members.toArray()) {
+                    onStack[member] = false;
+                    methodToComponent[member] = component;
+                    order.add(methodDescriptors[member]);
+                }
+                largestComponentSize = Math.max(largestComponentSize, members.size());
+
+                // Callee components were all found before this one.
+                int level = 0;
+                for (int member : members.toArray()) {
+                    for (int callee : callees[member].toArray()) {
+                        int calleeComponent = methodToComponent[callee];
+                        if (calleeComponent != component) {
+                            level = Math.max(level, componentLevels.get(calleeComponent) + 1);
+                        }
+                    }
+                }
+                componentLevels.add(level);
+                levelCount = Math.max(levelCount, level + 1);
+            }
+        }
+    }
+
+}
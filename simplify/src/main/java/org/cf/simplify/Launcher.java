@@ -5,10 +5,16 @@ import org.apache.commons.io.FileUtils;
 import org.cf.smalivm.ClassManager;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.HeapItem;
+import org.cf.smalivm.context.MethodState;
 import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
 import org.cf.smalivm.exception.MaxCallDepthExceeded;
 import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
 import org.cf.smalivm.exception.UnhandledVirtualException;
+import org.cf.smalivm.opcode.InvokeOp;
+import org.cf.smalivm.opcode.Op;
+import org.cf.util.SmaliParseCache;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.jf.dexlib2.writer.io.FileDataStore;
@@ -30,6 +36,20 @@ public class Launcher {
 
     private static final Pattern SUPPORT_LIBRARY_PATTERN = Pattern.compile("Landroid/support/(annotation|v\\d{1,2})/");
 
+    private Options opts;
+    private ClassManager classManager;
+    private VirtualMachine vm;
+    private StreamingDexWriter streamingWriter;
+    private ResultCache resultCache;
+    private Map<String, String> classNameToResultKey;
+    private Map<String, Map<String, Integer>> classNameToCounts;
+    private Map<String, Integer> classNameToRemainingMethods;
+    private Set<String> budgetExceededMethods;
+    private Set<String> budgetExceededClassNames;
+    private MethodClassifier classifier;
+    private Map<String, Integer> escalationReasonCounts;
+    private int tier1MethodCount;
+
     private static Options getOptions(String[] args) {
         Options opts = new Options();
         CmdLineParser parser = new CmdLineParser(opts);
@@ -48,14 +68,14 @@ public class Launcher {
         return opts;
     }
 
-    private static ClassManager getClassManager(File inFile, boolean disassemble, DexBuilder dexBuilder)
-            throws IOException {
+    private static ClassManager getClassManager(File inFile, boolean disassemble, DexBuilder dexBuilder,
+                                                int threadCount) throws IOException {
         ClassManager classManager;
         if (disassemble) {
             String outPath = disassemble(inFile);
-            classManager = new ClassManager(outPath, dexBuilder);
+            classManager = new ClassManager(new File(outPath), dexBuilder, threadCount);
         } else {
-            classManager = new ClassManager(inFile, dexBuilder);
+            classManager = new ClassManager(inFile, dexBuilder, threadCount);
         }
 
         return classManager;
@@ -130,8 +150,235 @@ public class Launcher {
         }
     }
 
+    private static void addCounts(Map<String, Integer> counts, Map<String, Integer> addedCounts) {
+        for (Map.Entry<String, Integer> entry : addedCounts.entrySet()) {
+            Integer count = counts.get(entry.getKey());
+            if (null == count) {
+                count = 0;
+            }
+            counts.put(entry.getKey(), count + entry.getValue());
+        }
+    }
+
+    private static boolean hasUnknownInvokeResult(ExecutionGraph graph) {
+        for (int address : graph.getAddresses()) {
+            Op op = graph.getOp(address);
+            if (!(op instanceof InvokeOp) || "V".equals(((InvokeOp) op).getReturnType())) {
+                continue;
+            }
+
+            for (HeapItem item : graph.getRegisterItems(address, MethodState.ResultRegister)) {
+                if ((item != null) && item.isUnknown()) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param graph          tier 1 execution graph, or null if execution failed
+     * @param exceededLimits true if any limit was exceeded during tier 1 execution, including by callees
+     * @return why the method needs tier 2, or null if tier 1 was good enough
+     */
+    static String getEscalationReason(ExecutionGraph graph, boolean exceededLimits) {
+        if ((null == graph) || exceededLimits) {
+            return "limits";
+        } else if (hasUnknownInvokeResult(graph)) {
+            return "unknown";
+        }
+
+        return null;
+    }
+
+    private static String getClassName(String methodDescriptor) {
+        return methodDescriptor.split("->", 2)[0];
+    }
+
+    /**
+     * @return true if the implementation changed, false otherwise
+     */
+    private boolean simplifyMethod(String methodDescriptor) throws UnhandledVirtualException {
+        String className = getClassName(methodDescriptor);
+        DexBuilder dexBuilder = classManager.getDexBuilder(className);
+        Map<String, Integer> classCounts = classNameToCounts.get(className);
+        MethodClassifier.Route route = MethodClassifier.Route.FULL;
+        if (classifier != null) {
+            route = classifier.classify(methodDescriptor);
+            if (route == MethodClassifier.Route.SKIP) {
+                System.out.println("Skipping trivial " + methodDescriptor);
+                return false;
+            }
+        }
+        int maxPasses = route == MethodClassifier.Route.LIGHT ? 1 : opts.getMaxOptimizationPasses();
+        boolean isTier1 = false;
+        if (opts.isTiered()) {
+            tier1MethodCount++;
+            MutableMethodImplementation implementation = (MutableMethodImplementation) classManager
+                    .getMethod(methodDescriptor).getImplementation();
+            isTier1 = (implementation == null) || !MethodClassifier.usesReflection(implementation);
+            if (!isTier1) {
+                escalate(methodDescriptor, "reflection");
+            }
+        }
+        boolean madeChanges = false;
+        boolean shouldExecuteAgain;
+        do {
+            System.out.println("Executing: " + methodDescriptor);
+            setLimits(isTier1);
+            int limitsExceededCount = vm.getLimitsExceededCount();
+            ExecutionGraph graph = null;
+            try {
+                graph = vm.execute(methodDescriptor);
+            } catch (MaxAddressVisitsExceeded | MaxCallDepthExceeded | MaxMethodVisitsExceeded e) {
+                System.err.println("Max visitation exception: " + e);
+            }
+
+            if (isTier1) {
+                String reason = getEscalationReason(graph, vm.getLimitsExceededCount() > limitsExceededCount);
+                if (reason != null) {
+                    // Tier 1 found something worth a deeper look. Throw away the shallow graph and go again.
+                    escalate(methodDescriptor, reason);
+                    isTier1 = false;
+                    shouldExecuteAgain = true;
+                    continue;
+                }
+            }
+
+            if (null == graph) {
+                System.out.println("Skipping " + methodDescriptor);
+                break;
+            }
+            if (graph.isPartial()) {
+                System.out.println("Limits exceeded on some paths, simplifying what was explored");
+            }
+
+            BuilderMethod method = classManager.getMethod(methodDescriptor);
+            Optimizer optimizer = new Optimizer(graph, method, vm, dexBuilder);
+            optimizer.simplify(maxPasses);
+            if (optimizer.madeChanges()) {
+                // Optimizer changed the implementation. Re-build graph to include changes.
+                vm.updateInstructionGraph(methodDescriptor);
+                madeChanges = true;
+            }
+            System.out.println(optimizer.getOptimizationCounts());
+            addCounts(classCounts, optimizer.getOptimizationCountMap());
+
+            shouldExecuteAgain = (route == MethodClassifier.Route.FULL) && optimizer.getShouldExecuteAgain();
+        } while (shouldExecuteAgain);
+
+        return madeChanges;
+    }
+
+    private void setLimits(boolean isTier1) {
+        if (!opts.isTiered()) {
+            return;
+        }
+
+        if (isTier1) {
+            vm.setLimits(opts.getTier1MaxAddressVisits(), opts.getTier1MaxCallDepth(), opts.getTier1MaxMethodVisits());
+        } else {
+            vm.setLimits(opts.getMaxAddressVisits(), opts.getMaxCallDepth(), opts.getMaxMethodVisits());
+        }
+    }
+
+    private void escalate(String methodDescriptor, String reason) {
+        System.out.println("Escalating " + methodDescriptor + " to tier 2: " + reason);
+        Integer count = escalationReasonCounts.get(reason);
+        escalationReasonCounts.put(reason, (count == null ? 0 : count) + 1);
+    }
+
+    /*
+     * Results cut short by time or allocation budgets depend on timing, so they're never stored in the result cache.
+     */
+    private boolean simplifyMethodWithinBudgets(String methodDescriptor) throws UnhandledVirtualException {
+        int budgetsExceededCount = vm.getBudgetsExceededCount();
+        boolean madeChanges = simplifyMethod(methodDescriptor);
+        if (vm.getBudgetsExceededCount() > budgetsExceededCount) {
+            budgetExceeded(methodDescriptor);
+        }
+
+        return madeChanges;
+    }
+
+    private void budgetExceeded(String methodDescriptor) {
+        budgetExceededMethods.add(methodDescriptor);
+        budgetExceededClassNames.add(getClassName(methodDescriptor));
+    }
+
+    /**
+     * @return number of duplicates which didn't need to be executed
+     */
+    private int simplifyDuplicates(MethodDeduplicator deduplicator, String representative, boolean madeChanges)
+            throws IOException, UnhandledVirtualException {
+        int saved = 0;
+        for (String member : deduplicator.getMembers(representative)) {
+            if (!madeChanges) {
+                // Nothing to copy. Member is already identical to the simplified representative.
+                saved++;
+            } else if (deduplicator.copyImplementation(representative, member)) {
+                System.out.println("Copied simplified " + representative + " to " + member);
+                vm.removeInstructionGraph(member);
+                saved++;
+            } else {
+                simplifyMethodWithinBudgets(member);
+            }
+            if (budgetExceededMethods.contains(representative)) {
+                // How the member is handled depends on the representative's result, so it depends on timing too.
+                budgetExceeded(member);
+            }
+            methodFinished(member);
+        }
+
+        return saved;
+    }
+
+    private void methodFinished(String methodDescriptor) throws IOException {
+        String className = getClassName(methodDescriptor);
+        int remainingMethods = classNameToRemainingMethods.get(className) - 1;
+        classNameToRemainingMethods.put(className, remainingMethods);
+        if (remainingMethods == 0) {
+            finishClass(className);
+        }
+    }
+
+    private void finishClass(String className) throws IOException {
+        if (streamingWriter == null) {
+            return;
+        }
+
+        // Class is finished. Write it out and let go of everything it's holding on to.
+        File partFile = streamingWriter.writeClass(className, classManager.getDexBuilder(className));
+        if ((resultCache != null) && !budgetExceededClassNames.contains(className)) {
+            resultCache.store(classNameToResultKey.get(className), partFile, classNameToCounts.get(className));
+        }
+        vm.removeInstructionGraphs(className);
+        classManager.unloadClass(className);
+    }
+
+    private Set<String> getMethodsToSimplify(String className) {
+        Set<String> methodDescriptors = classManager.getMethodDescriptors(className);
+        filterMethods(methodDescriptors, opts.getIncludeFilter(), opts.getExcludeFilter());
+        if (!opts.includeSupportLibrary()) {
+            filterSupportLibrary(methodDescriptors);
+        }
+
+        if (opts.isStaticOnly()) {
+            for (Iterator<String> it = methodDescriptors.iterator(); it.hasNext(); ) {
+                String methodDescriptor = it.next();
+                if (!methodDescriptor.endsWith("<clinit>()V")) {
+                    System.out.println("Skipping " + methodDescriptor);
+                    it.remove();
+                }
+            }
+        }
+
+        return methodDescriptors;
+    }
+
     public void run(String[] args) throws IOException, UnhandledVirtualException {
-        Options opts = getOptions(args);
+        opts = getOptions(args);
 
         setLogLevel(opts);
         if (log.isInfoEnabled()) {
@@ -140,59 +387,137 @@ public class Launcher {
 
         long startTime = System.currentTimeMillis();
         DexBuilder dexBuilder = DexBuilder.makeDexBuilder(opts.getOutputAPILevel());
-        ClassManager classManager = getClassManager(opts.getInFile(), opts.isApk() | opts.isDex(), dexBuilder);
-        VirtualMachine vm = new VirtualMachine(classManager, opts.getMaxAddressVisits(), opts.getMaxCallDepth(),
-                opts.getMaxMethodVisits());
+        classManager = getClassManager(opts.getInFile(), opts.isApk() | opts.isDex(), dexBuilder,
+                opts.getThreadCount());
+        SmaliParseCache parseCache = null;
+        if (opts.getParseCacheDirectory() != null) {
+            parseCache = new SmaliParseCache(opts.getParseCacheDirectory());
+            classManager.setParseCache(parseCache);
+        }
+        if (opts.isStreamOutput()) {
+            classManager.useClassDexBuilders(opts.getOutputAPILevel());
+            streamingWriter = new StreamingDexWriter(opts.getOutputAPILevel());
+        }
+        if (opts.getResultCacheDirectory() != null) {
+            resultCache = new ResultCache(opts.getResultCacheDirectory(), opts.getResultConfiguration());
+        }
+        int eagerLoadClassCount = opts.getEagerLoadClassCount();
+        if ((eagerLoadClassCount > 0) && (classManager.getNonFrameworkClassNames().size() >= eagerLoadClassCount)) {
+            System.out.println("Loading classes with " + opts.getThreadCount() + " threads");
+            classManager.loadNonFrameworkClasses(opts.getThreadCount());
+        }
+        if (opts.isClassifyMethods()) {
+            classifier = new MethodClassifier(classManager);
+        }
+        escalationReasonCounts = new TreeMap<>();
+        vm = new VirtualMachine(classManager, opts.getMaxAddressVisits(), opts.getMaxCallDepth(),
+                opts.getMaxMethodVisits(), opts.getMaxTemplateInstructions());
+        vm.setAllowPartialGraphs(opts.isPartialGraphs());
+        vm.setBudgets(opts.getMaxMethodMillis(), opts.getMaxMethodAllocatedBytes());
+        vm.setWorklistStrategy(opts.getWorklistStrategy());
+        vm.setAdaptiveVisitLimits(opts.isAdaptiveVisitLimits(), opts.getMaxUnknownLoopVisits());
+        vm.setReflectionMemoSize(opts.getReflectionMemoSize());
+        vm.setReflectionTimeout(opts.getReflectionTimeoutMillis(), opts.getReflectionThreadCount());
 
         Set<String> classNames = classManager.getNonFrameworkClassNames();
+        classNameToResultKey = new HashMap<>();
+        classNameToCounts = new HashMap<>();
+        classNameToRemainingMethods = new HashMap<>();
+        budgetExceededMethods = new HashSet<>();
+        budgetExceededClassNames = new HashSet<>();
+        List<String> methodOrder = new LinkedList<>();
         for (String className : classNames) {
-            Set<String> methodDescriptors = classManager.getMethodDescriptors(className);
-            filterMethods(methodDescriptors, opts.getIncludeFilter(), opts.getExcludeFilter());
-            if (!opts.includeSupportLibrary()) {
-                filterSupportLibrary(methodDescriptors);
-            }
-
-            for (String methodDescriptor : methodDescriptors) {
-                if (opts.isStaticOnly() && !methodDescriptor.endsWith("<clinit>()V")) {
-                    System.out.println("Skipping " + methodDescriptor);
+            if (resultCache != null) {
+                String resultKey = resultCache.getKey(className, classManager);
+                if (resultCache.restore(resultKey, streamingWriter)) {
+                    System.out.println("Reusing cached result for " + className);
+                    vm.removeInstructionGraphs(className);
+                    classManager.unloadClass(className);
                     continue;
                 }
+                classNameToResultKey.put(className, resultKey);
+            }
 
-                boolean shouldExecuteAgain;
-                do {
-                    System.out.println("Executing: " + methodDescriptor);
-                    ExecutionGraph graph = null;
-                    try {
-                        graph = vm.execute(methodDescriptor);
-                    } catch (MaxAddressVisitsExceeded | MaxCallDepthExceeded | MaxMethodVisitsExceeded e) {
-                        System.err.println("Max visitation exception: " + e);
-                    }
+            Set<String> methodDescriptors = getMethodsToSimplify(className);
+            classNameToCounts.put(className, new HashMap<String, Integer>());
+            if (methodDescriptors.isEmpty()) {
+                finishClass(className);
+                continue;
+            }
+            classNameToRemainingMethods.put(className, methodDescriptors.size());
+            methodOrder.addAll(methodDescriptors);
+        }
 
-                    if (null == graph) {
-                        System.out.println("Skipping " + methodDescriptor);
-                        break;
-                    }
+        MethodDeduplicator deduplicator = null;
+        if (opts.isDeduplicate()) {
+            deduplicator = new MethodDeduplicator(classManager, methodOrder);
+            System.out.println(deduplicator);
+            // Duplicates are handled along with their representative.
+            for (Iterator<String> it = methodOrder.iterator(); it.hasNext(); ) {
+                if (deduplicator.isMember(it.next())) {
+                    it.remove();
+                }
+            }
+        }
 
-                    BuilderMethod method = classManager.getMethod(methodDescriptor);
-                    Optimizer optimizer = new Optimizer(graph, method, vm, dexBuilder);
-                    optimizer.simplify(opts.getMaxOptimizationPasses());
-                    if (optimizer.madeChanges()) {
-                        // Optimizer changed the implementation. Re-build graph to include changes.
-                        vm.updateInstructionGraph(methodDescriptor);
-                    }
-                    System.out.println(optimizer.getOptimizationCounts());
+        if (opts.isCallGraphOrder()) {
+            CallGraphScheduler scheduler = new CallGraphScheduler(classManager, methodOrder);
+            System.out.println(scheduler);
+            methodOrder = scheduler.getOrder();
+        }
 
-                    shouldExecuteAgain = optimizer.getShouldExecuteAgain();
-                } while (shouldExecuteAgain);
+        int savedExecutions = 0;
+        for (String methodDescriptor : methodOrder) {
+            boolean madeChanges = simplifyMethodWithinBudgets(methodDescriptor);
+            if (deduplicator != null) {
+                savedExecutions += simplifyDuplicates(deduplicator, methodDescriptor, madeChanges);
             }
+            methodFinished(methodDescriptor);
         }
 
         long totalTime = System.currentTimeMillis() - startTime;
         System.out.println("Simplified " + classNames.size() + " classes in " + totalTime + " ms.");
         System.out.println(Optimizer.getTotalOptimizationCounts());
+        System.out.println(vm.getTemplateGraphCache());
+        System.out.println(vm.getSideEffectSummaryCache());
+        if ((opts.getMaxMethodMillis() > 0) || (opts.getMaxMethodAllocatedBytes() > 0)) {
+            System.out.println("Methods stopped by time or allocation budgets: " + vm.getBudgetsExceededCount());
+        }
+        if (classifier != null) {
+            System.out.println(classifier);
+        }
+        if (opts.isTiered()) {
+            int escalatedCount = 0;
+            for (int count : escalationReasonCounts.values()) {
+                escalatedCount += count;
+            }
+            System.out.println("Tiered analysis: " + escalatedCount + " of " + tier1MethodCount
+                    + " methods needed tier 2 " + escalationReasonCounts);
+        }
+        if (deduplicator != null) {
+            System.out.println("Deduplication saved " + savedExecutions + " of " + deduplicator
+                    .getDuplicateCount() + " duplicate method executions");
+        }
+        if (parseCache != null) {
+            System.out.println(parseCache);
+        }
+        if (resultCache != null) {
+            System.out.println(resultCache);
+        }
+        if (vm.getReflectionMemo() != null) {
+            System.out.println(vm.getReflectionMemo());
+        }
+        if (vm.getReflectionExecutor() != null) {
+            System.out.println(vm.getReflectionExecutor());
+        }
 
         System.out.println("Writing output to " + opts.getOutFile());
-        dexBuilder.writeTo(new FileDataStore(opts.getOutDexFile()));
+        if (streamingWriter != null) {
+            System.out.println("Merging " + streamingWriter.getPartCount() + " streamed classes");
+            streamingWriter.merge(opts.getOutDexFile());
+        } else {
+            dexBuilder.writeTo(new FileDataStore(opts.getOutDexFile()));
+        }
         if (opts.isApk()) {
             FileUtils.copyFile(opts.getInFile(), opts.getOutFile());
             updateZip(opts.getOutFile(), opts.getOutDexFile(), "classes.dex");
@@ -267,6 +267,7 @@ public class MethodBackedGraph extends ExecutionGraph {
     private void shiftNodePileAddresses(int startAddress, int shift) {
         shiftOpAddresses(startAddress, shift);
         Utils.shiftIntegerMapKeys(startAddress, shift, addressToNodePile);
+        shiftIncompleteAddresses(startAddress, shift);
     }
 
     public void insertInstruction(int address, BuilderInstruction instruction) {
@@ -281,6 +282,10 @@ public class MethodBackedGraph extends ExecutionGraph {
         // Insert + shift nodes
         List<ExecutionNode> shiftedNodePile = addressToNodePile.get(address);
         shiftNodePileAddresses(address - 1, shift);
+        if (isIncompleteAddress(address + shift)) {
+            // Unexplored paths may reach the inserted instruction too.
+            addIncompleteAddress(address);
+        }
         List<ExecutionNode> addedNodePile = new ArrayList<>();
         addressToNodePile.put(address, addedNodePile);
 
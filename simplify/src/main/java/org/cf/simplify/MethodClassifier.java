@@ -0,0 +1,277 @@
+package org.cf.simplify;
+
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.cf.smalivm.ClassManager;
+import org.cf.smalivm.MethodReflector;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.ReferenceType;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.iface.instruction.*;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Statically decides how much work a method deserves before it's executed. Getters, setters, empty constructors and
+ * similar straight line methods have nothing any optimization strategy could change, so executing them is wasted
+ * work.
+ */
+public class MethodClassifier {
+
+    private static final Logger log = LoggerFactory.getLogger(MethodClassifier.class.getSimpleName());
+
+    private static final String[] REFLECTION_CLASS_PREFIXES = new String[]{
+            "Ljava/lang/reflect/", "Ljava/lang/Class;", "Ljava/lang/ClassLoader;", "Ldalvik/system/",};
+
+    private final ClassManager classManager;
+    private final Map<Route, Integer> routeCounts;
+
+    public MethodClassifier(ClassManager classManager) {
+        this.classManager = classManager;
+        routeCounts = new EnumMap<Route, Integer>(Route.class);
+        for (Route route : Route.values()) {
+            routeCounts.put(route, 0);
+        }
+    }
+
+    private static boolean isReflection(MethodReference methodRef) {
+        String className = methodRef.getDefiningClass();
+        for (String prefix : REFLECTION_CLASS_PREFIXES) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param implementation
+     * @return true if the implementation invokes any reflection or class loading methods
+     */
+    public static boolean usesReflection(MutableMethodImplementation implementation) {
+        for (BuilderInstruction instruction : implementation.getInstructions()) {
+            if (instruction.getOpcode().referenceType != ReferenceType.METHOD) {
+                continue;
+            }
+            MethodReference methodRef = (MethodReference) ((ReferenceInstruction) instruction).getReference();
+            if (isReflection(methodRef)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean isTrivialOp(Opcode op) {
+        switch (op) {
+            case RETURN_VOID:
+            case RETURN:
+            case RETURN_WIDE:
+            case RETURN_OBJECT:
+            case CONST_4:
+            case CONST_16:
+            case CONST:
+            case CONST_HIGH16:
+            case CONST_WIDE_16:
+            case CONST_WIDE_32:
+            case CONST_WIDE:
+            case CONST_WIDE_HIGH16:
+            case CONST_STRING:
+            case CONST_STRING_JUMBO:
+            case IGET:
+            case IGET_WIDE:
+            case IGET_OBJECT:
+            case IGET_BOOLEAN:
+            case IGET_BYTE:
+            case IGET_CHAR:
+            case IGET_SHORT:
+            case IPUT:
+            case IPUT_WIDE:
+            case IPUT_OBJECT:
+            case IPUT_BOOLEAN:
+            case IPUT_BYTE:
+            case IPUT_CHAR:
+            case IPUT_SHORT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static void addReadRegisters(Instruction instruction, TIntSet registers) {
+        if (instruction instanceof FiveRegisterInstruction) {
+            FiveRegisterInstruction instr = (FiveRegisterInstruction) instruction;
+            int[] all = new int[]{
+                    instr.getRegisterC(), instr.getRegisterD(), instr.getRegisterE(), instr.getRegisterF(),
+                    instr.getRegisterG()};
+            for (int i = 0; i < instr.getRegisterCount(); i++) {
+                registers.add(all[i]);
+            }
+            return;
+        }
+        if (instruction instanceof RegisterRangeInstruction) {
+            RegisterRangeInstruction instr = (RegisterRangeInstruction) instruction;
+            for (int i = 0; i < instr.getRegisterCount(); i++) {
+                registers.add(instr.getStartRegister() + i);
+            }
+            return;
+        }
+
+        if ((instruction instanceof OneRegisterInstruction) && !instruction.getOpcode().setsRegister()) {
+            registers.add(((OneRegisterInstruction) instruction).getRegisterA());
+        }
+        if (instruction instanceof TwoRegisterInstruction) {
+            registers.add(((TwoRegisterInstruction) instruction).getRegisterB());
+        }
+        if (instruction instanceof ThreeRegisterInstruction) {
+            registers.add(((ThreeRegisterInstruction) instruction).getRegisterC());
+        }
+    }
+
+    /*
+     * A constructor which only calls its super or sibling constructor on itself can't be simplified any further.
+     */
+    private static boolean isConstructorChain(String methodDescriptor, Instruction instruction) {
+        if (!methodDescriptor.contains("-><init>(") || (instruction.getOpcode() != Opcode.INVOKE_DIRECT)) {
+            return false;
+        }
+        MethodReference methodRef = (MethodReference) ((ReferenceInstruction) instruction).getReference();
+
+        return "<init>".equals(methodRef.getName());
+    }
+
+    /**
+     * @param methodDescriptor
+     * @return how the method should be simplified
+     */
+    public Route classify(String methodDescriptor) {
+        Route route = getRoute(methodDescriptor);
+        routeCounts.put(route, routeCounts.get(route) + 1);
+        if (log.isDebugEnabled()) {
+            log.debug("Route for " + methodDescriptor + ": " + route);
+        }
+
+        return route;
+    }
+
+    public int getCount(Route route) {
+        return routeCounts.get(route);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Method routes: ");
+        for (Route route : Route.values()) {
+            sb.append(route.name().toLowerCase()).append('=').append(routeCounts.get(route)).append(", ");
+        }
+        sb.setLength(sb.length() - 2);
+
+        return sb.toString();
+    }
+
+    private boolean isSafeInvoke(String methodDescriptor) {
+        if (MethodReflector.isSafe(methodDescriptor)) {
+            return true;
+        }
+
+        // Local methods, and anything unknown, aren't safe.
+        return classManager.isFramework(methodDescriptor) && classManager.isSafeFramework(methodDescriptor);
+    }
+
+    private Route getRoute(String methodDescriptor) {
+        BuilderMethod method = classManager.getMethod(methodDescriptor);
+        MutableMethodImplementation implementation = (MutableMethodImplementation) method.getImplementation();
+        if (implementation == null) {
+            return Route.SKIP;
+        }
+        if (!implementation.getTryBlocks().isEmpty()) {
+            return Route.FULL;
+        }
+
+        boolean isTrivial = true;
+        List<BuilderInstruction> instructions = implementation.getInstructions();
+        for (BuilderInstruction instruction : instructions) {
+            Opcode op = instruction.getOpcode();
+            if ((instruction instanceof OffsetInstruction) || (op.referenceType == ReferenceType.FIELD && op.name
+                    .startsWith("s"))) {
+                // Branches, loops and static state are worth a full look.
+                return Route.FULL;
+            }
+            if (instruction instanceof TwoRegisterInstruction && !(instruction instanceof ReferenceInstruction)) {
+                // Math and moves may be constant foldable
+                if (!op.name.startsWith("move")) {
+                    return Route.FULL;
+                }
+            }
+            if (op.referenceType == ReferenceType.METHOD) {
+                MethodReference methodRef = (MethodReference) ((ReferenceInstruction) instruction).getReference();
+                if (isReflection(methodRef)) {
+                    return Route.FULL;
+                }
+                if (isConstructorChain(methodDescriptor, instruction)) {
+                    continue;
+                }
+                if (!isSafeInvoke(ReferenceUtil.getMethodDescriptor(methodRef))) {
+                    // Local callees may be simplified to constants, and unsafe methods make results unknown.
+                    return Route.FULL;
+                }
+            }
+            if (!isTrivialOp(op)) {
+                isTrivial = false;
+            }
+        }
+
+        if (isTrivial && !hasDeadAssignment(instructions)) {
+            return Route.SKIP;
+        }
+
+        return Route.LIGHT;
+    }
+
+    /**
+     * Code must be straight line, so an assignment is dead if nothing after it reads the register.
+     *
+     * @param instructions
+     * @return true if any register is assigned and not read afterwards
+     */
+    static boolean hasDeadAssignment(List<BuilderInstruction> instructions) {
+        TIntSet readRegisters = new TIntHashSet();
+        for (int i = instructions.size() - 1; i >= 0; i--) {
+            BuilderInstruction instruction = instructions.get(i);
+            if (instruction.getOpcode().setsRegister()) {
+                int register = ((OneRegisterInstruction) instruction).getRegisterA();
+                if (!readRegisters.remove(register)) {
+                    return true;
+                }
+            }
+            addReadRegisters(instruction, readRegisters);
+        }
+
+        return false;
+    }
+
+    public enum Route {
+        /**
+         * Nothing to simplify. Don't execute.
+         */
+        SKIP,
+        /**
+         * Straight line code which only invokes safe, non-local methods. Execute and optimize once.
+         */
+        LIGHT,
+        /**
+         * Execute and optimize until nothing changes.
+         */
+        FULL
+    }
+
+}
@@ -0,0 +1,577 @@
+package org.cf.simplify;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.cf.smalivm.ClassManager;
+import org.cf.util.Utils;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderExceptionHandler;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.BuilderOffsetInstruction;
+import org.jf.dexlib2.builder.BuilderTryBlock;
+import org.jf.dexlib2.builder.Label;
+import org.jf.dexlib2.builder.MethodLocation;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.instruction.*;
+import org.jf.dexlib2.iface.instruction.*;
+import org.jf.dexlib2.iface.instruction.formats.ArrayPayload;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.Reference;
+import org.jf.dexlib2.immutable.reference.ImmutableMethodReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Finds methods with structurally identical implementations so only one of them needs to be executed and optimized.
+ * Obfuscators often stamp out many copies of the same decryptor or stub, differing only by the class they're in.
+ * <p>
+ * Implementations are hashed after normalizing references to the method's own class and the numbering of local
+ * registers. Methods which read or write fields of their own class, or otherwise depend on which class they're in,
+ * aren't eligible since each copy may behave differently. Calls to other methods of the same class are normalized only if the callee is itself eligible, and the
+ * callee's hash is included.
+ * <p>
+ * Methods are only grouped if they share a dex builder, since a simplified implementation is copied by reference.
+ */
+public class MethodDeduplicator {
+
+    private static final Logger log = LoggerFactory.getLogger(MethodDeduplicator.class.getSimpleName());
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String SELF = "<self>";
+    private static final String INELIGIBLE = "";
+
+    private final ClassManager classManager;
+    private final Map<String, String> methodToHash;
+    private final Set<String> methodsBeingHashed;
+    private final Map<String, List<String>> representativeToMembers;
+    private final Set<String> members;
+
+    public MethodDeduplicator(ClassManager classManager, Collection<String> methodDescriptors) {
+        this.classManager = classManager;
+        methodToHash = new HashMap<String, String>();
+        methodsBeingHashed = new HashSet<String>();
+        representativeToMembers = new HashMap<String, List<String>>();
+        members = new HashSet<String>();
+        groupMethods(methodDescriptors);
+    }
+
+    private static String getClassName(String methodDescriptor) {
+        return methodDescriptor.split("->", 2)[0];
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    private static void appendInstruction(StringBuilder sb, Instruction instruction, RegisterNames names) {
+        String opcodeName = instruction.getOpcode().name;
+        sb.append(opcodeName);
+        // Wide values also use the next register, and the copies must agree on which register that is.
+        boolean isWide = opcodeName.contains("-wide") || opcodeName.contains("long") || opcodeName.contains("double");
+        if (instruction instanceof OneRegisterInstruction) {
+            sb.append(" a").append(names.get(((OneRegisterInstruction) instruction).getRegisterA(), isWide));
+        }
+        if (instruction instanceof TwoRegisterInstruction) {
+            sb.append(" b").append(names.get(((TwoRegisterInstruction) instruction).getRegisterB(), isWide));
+        }
+        if (instruction instanceof ThreeRegisterInstruction) {
+            sb.append(" c").append(names.get(((ThreeRegisterInstruction) instruction).getRegisterC(), isWide));
+        }
+        if (instruction instanceof FiveRegisterInstruction) {
+            FiveRegisterInstruction instr = (FiveRegisterInstruction) instruction;
+            int[] registers = new int[]{instr.getRegisterC(), instr.getRegisterD(), instr.getRegisterE(),
+                    instr.getRegisterF(), instr.getRegisterG()};
+            sb.append(" {");
+            for (int i = 0; i < instr.getRegisterCount(); i++) {
+                sb.append(names.get(registers[i], false)).append(',');
+            }
+            sb.append('}');
+        }
+        if (instruction instanceof RegisterRangeInstruction) {
+            RegisterRangeInstruction instr = (RegisterRangeInstruction) instruction;
+            sb.append(" {");
+            for (int i = 0; i < instr.getRegisterCount(); i++) {
+                sb.append(names.get(instr.getStartRegister() + i, false)).append(',');
+            }
+            sb.append('}');
+        }
+        if (instruction instanceof WideLiteralInstruction) {
+            sb.append(" #").append(((WideLiteralInstruction) instruction).getWideLiteral());
+        }
+        if (instruction instanceof OffsetInstruction) {
+            sb.append(" @").append(((OffsetInstruction) instruction).getCodeOffset());
+        }
+        if (instruction instanceof ArrayPayload) {
+            ArrayPayload payload = (ArrayPayload) instruction;
+            sb.append(" w").append(payload.getElementWidth()).append(' ').append(payload.getArrayElements());
+        }
+        if (instruction instanceof SwitchPayload) {
+            for (SwitchElement element : ((SwitchPayload) instruction).getSwitchElements()) {
+                sb.append(' ').append(element.getKey()).append(':').append(element.getOffset());
+            }
+        }
+    }
+
+    /*
+     * Copy an instruction so it can be added to another implementation. Branch targets must be labels of the
+     * implementation the copy is added to, so they're created when the copy is added.
+     */
+    private static BuilderInstruction copyInstruction(BuilderInstruction instruction,
+                                                      MutableMethodImplementation implementation) {
+        if (!(instruction instanceof BuilderOffsetInstruction)) {
+            return Utils.cloneInstruction(instruction);
+        }
+
+        Opcode opcode = instruction.getOpcode();
+        int targetIndex = ((BuilderOffsetInstruction) instruction).getTarget().getLocation().getIndex();
+        Label target = implementation.newLabelForIndex(targetIndex);
+        if (instruction instanceof BuilderInstruction10t) {
+            return new BuilderInstruction10t(opcode, target);
+        } else if (instruction instanceof BuilderInstruction20t) {
+            return new BuilderInstruction20t(opcode, target);
+        } else if (instruction instanceof BuilderInstruction30t) {
+            return new BuilderInstruction30t(opcode, target);
+        } else if (instruction instanceof BuilderInstruction21t) {
+            return new BuilderInstruction21t(opcode, ((BuilderInstruction21t) instruction).getRegisterA(), target);
+        } else if (instruction instanceof BuilderInstruction22t) {
+            BuilderInstruction22t instr = (BuilderInstruction22t) instruction;
+            return new BuilderInstruction22t(opcode, instr.getRegisterA(), instr.getRegisterB(), target);
+        } else if (instruction instanceof BuilderInstruction31t) {
+            return new BuilderInstruction31t(opcode, ((BuilderInstruction31t) instruction).getRegisterA(), target);
+        }
+
+        throw new UnsupportedOperationException("Cannot copy unknown instruction " + opcode);
+    }
+
+    /*
+     * Labels can't be moved to another instruction directly, but removing an instruction moves its labels to the next
+     * one. So each of the member's old instructions is kept just before the copied instruction where its try / catch
+     * labels belong, and removed once everything is copied. This gives the index each old instruction must be before,
+     * or null if the labels can't be arranged that way.
+     */
+    private static int[] getOldInstructionPositions(MutableMethodImplementation copy,
+                                                    MutableMethodImplementation implementation) {
+        List<? extends BuilderTryBlock> copyTryBlocks = copy.getTryBlocks();
+        List<? extends BuilderTryBlock> tryBlocks = implementation.getTryBlocks();
+        if (copyTryBlocks.size() != tryBlocks.size()) {
+            // Optimizations removed a try block.
+            return null;
+        }
+
+        int oldCount = implementation.getInstructions().size();
+        // Includes the location after the last instruction, which stays after the last instruction.
+        int[] positions = new int[oldCount + 1];
+        Arrays.fill(positions, -1);
+        positions[oldCount] = copy.getInstructions().size();
+        for (int i = 0; i < tryBlocks.size(); i++) {
+            BuilderTryBlock tryBlock = tryBlocks.get(i);
+            BuilderTryBlock copyTryBlock = copyTryBlocks.get(i);
+            String exceptionType = tryBlock.exceptionHandler.getExceptionType();
+            String copyExceptionType = copyTryBlock.exceptionHandler.getExceptionType();
+            if ((exceptionType == null) ? (copyExceptionType != null) : !exceptionType.equals(copyExceptionType)) {
+                return null;
+            }
+            if (!setPosition(positions, tryBlock.start, copyTryBlock.start) || !setPosition(positions, tryBlock.end,
+                    copyTryBlock.end) || !setPosition(positions, tryBlock.exceptionHandler.getHandler(),
+                    copyTryBlock.exceptionHandler.getHandler())) {
+                return null;
+            }
+        }
+
+        // Instructions without try / catch labels go with the next one which has some. Old instructions can't be
+        // reordered, so positions can't decrease.
+        for (int index = oldCount - 1; index >= 0; index--) {
+            if (positions[index] == -1) {
+                positions[index] = positions[index + 1];
+            } else if (positions[index] > positions[index + 1]) {
+                return null;
+            }
+        }
+
+        return positions;
+    }
+
+    private static boolean setPosition(int[] positions, Label label, Label copyLabel) {
+        int index = label.getLocation().getIndex();
+        int position = copyLabel.getLocation().getIndex();
+        if ((positions[index] != -1) && (positions[index] != position)) {
+            return false;
+        }
+        positions[index] = position;
+
+        return true;
+    }
+
+    /**
+     * @return number of methods which don't need to be executed because they're a copy of a representative
+     */
+    public int getDuplicateCount() {
+        return members.size();
+    }
+
+    public int getGroupCount() {
+        return representativeToMembers.size();
+    }
+
+    /**
+     * @param methodDescriptor
+     * @return duplicates of the method if it's a representative, otherwise an empty list
+     */
+    public List<String> getMembers(String methodDescriptor) {
+        List<String> group = representativeToMembers.get(methodDescriptor);
+        if (group == null) {
+            return Collections.emptyList();
+        }
+
+        return group;
+    }
+
+    /**
+     * @param methodDescriptor
+     * @return true if the method is a duplicate and shouldn't be executed on its own
+     */
+    public boolean isMember(String methodDescriptor) {
+        return members.contains(methodDescriptor);
+    }
+
+    /**
+     * Copy the representative's implementation to a member, pointing calls to the representative's class at the
+     * member's class instead. The member's implementation is changed in place, like optimizations change
+     * implementations, so the member's method definition doesn't change.
+     *
+     * @param representative
+     * @param member
+     * @return true if the implementation was copied, false if the member must be simplified separately
+     */
+    public boolean copyImplementation(String representative, String member) {
+        String representativeClass = getClassName(representative);
+        String memberClass = getClassName(member);
+        DexBuilder dexBuilder = classManager.getDexBuilder(memberClass);
+        MutableMethodImplementation source = (MutableMethodImplementation) classManager.getMethod(representative)
+                .getImplementation();
+        // Gives the copied instructions their own labels and locations.
+        MutableMethodImplementation copy = new MutableMethodImplementation(source);
+
+        List<BuilderInstruction> copyInstructions = copy.getInstructions();
+        for (int index = 0; index < copyInstructions.size(); index++) {
+            BuilderInstruction instruction = copyInstructions.get(index);
+            if ((instruction instanceof SwitchPayload) || (instruction.getOpcode() == Opcode.PACKED_SWITCH) ||
+                    (instruction.getOpcode() == Opcode.SPARSE_SWITCH)) {
+                // Switch payloads are tied to their switch instruction in ways which can't be copied.
+                return false;
+            }
+            if (!(instruction instanceof ReferenceInstruction)) {
+                continue;
+            }
+
+            Reference reference = ((ReferenceInstruction) instruction).getReference();
+            if (!(reference instanceof MethodReference) || !representativeClass
+                    .equals(((MethodReference) reference).getDefiningClass())) {
+                if (ReferenceUtil.getReferenceString(reference).contains(representativeClass)) {
+                    // Optimizations introduced a reference to the representative which can't be safely moved.
+                    if (log.isDebugEnabled()) {
+                        log.debug("Can't copy " + representative + " to " + member + " because of " + reference);
+                    }
+                    return false;
+                }
+                continue;
+            }
+
+            MethodReference methodRef = (MethodReference) reference;
+            MethodReference memberMethodRef = dexBuilder.internMethodReference(new ImmutableMethodReference(
+                    memberClass, methodRef.getName(), methodRef.getParameterTypes(), methodRef.getReturnType()));
+            BuilderInstruction replacement;
+            if (instruction instanceof BuilderInstruction3rc) {
+                BuilderInstruction3rc instr = (BuilderInstruction3rc) instruction;
+                replacement = new BuilderInstruction3rc(instr.getOpcode(), instr.getStartRegister(),
+                        instr.getRegisterCount(), memberMethodRef);
+            } else if (instruction instanceof BuilderInstruction35c) {
+                BuilderInstruction35c instr = (BuilderInstruction35c) instruction;
+                replacement = new BuilderInstruction35c(instr.getOpcode(), instr.getRegisterCount(),
+                        instr.getRegisterC(), instr.getRegisterD(), instr.getRegisterE(), instr.getRegisterF(),
+                        instr.getRegisterG(), memberMethodRef);
+            } else {
+                return false;
+            }
+            copy.replaceInstruction(index, replacement);
+        }
+
+        MutableMethodImplementation implementation = (MutableMethodImplementation) classManager.getMethod(member)
+                .getImplementation();
+        if (copy.getRegisterCount() != implementation.getRegisterCount()) {
+            return false;
+        }
+        int[] positions = getOldInstructionPositions(copy, implementation);
+        if (positions == null) {
+            if (log.isDebugEnabled()) {
+                log.debug("Can't copy " + representative + " to " + member + " because try blocks changed");
+            }
+            return false;
+        }
+
+        // Everything which can fail is done before the member is changed.
+        List<BuilderInstruction> replacements = new ArrayList<BuilderInstruction>(copyInstructions.size());
+        for (BuilderInstruction instruction : copyInstructions) {
+            if (instruction instanceof BuilderOffsetInstruction) {
+                // Needs labels from the member's implementation once the copied instructions are in place.
+                replacements.add(null);
+                continue;
+            }
+            try {
+                replacements.add(Utils.cloneInstruction(instruction));
+            } catch (UnsupportedOperationException e) {
+                return false;
+            }
+        }
+        replaceInstructions(implementation, copyInstructions, replacements, positions);
+
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Deduplication: ");
+        sb.append(getGroupCount()).append(" groups, ");
+        sb.append(getDuplicateCount()).append(" duplicate methods");
+
+        return sb.toString();
+    }
+
+    private void appendReference(StringBuilder sb, String methodDescriptor, Reference reference) {
+        String className = getClassName(methodDescriptor);
+        if (reference instanceof MethodReference && className
+                .equals(((MethodReference) reference).getDefiningClass())) {
+            String calleeDescriptor = ReferenceUtil.getMethodDescriptor((MethodReference) reference);
+            String signature = calleeDescriptor.split("->", 2)[1];
+            if (signature.contains(className)) {
+                throw new IneligibleMethod();
+            }
+            sb.append(" ").append(SELF).append("->").append(signature);
+            if (!calleeDescriptor.equals(methodDescriptor)) {
+                // Callees in the same class must also be identical.
+                String calleeHash = getHash(calleeDescriptor);
+                if (INELIGIBLE.equals(calleeHash)) {
+                    throw new IneligibleMethod();
+                }
+                sb.append('=').append(calleeHash);
+            }
+            return;
+        }
+
+        String referenceString = ReferenceUtil.getReferenceString(reference);
+        if (referenceString.contains(className)) {
+            // Own fields and types could behave differently for each copy.
+            throw new IneligibleMethod();
+        }
+        if (reference instanceof FieldReference) {
+            sb.append(" f:");
+        }
+        sb.append(' ').append(referenceString);
+    }
+
+    private void replaceInstructions(MutableMethodImplementation implementation,
+                                     List<BuilderInstruction> copyInstructions,
+                                     List<BuilderInstruction> replacements, int[] positions) {
+        List<BuilderInstruction> oldInstructions = new ArrayList<BuilderInstruction>(
+                implementation.getInstructions());
+        int oldCount = oldInstructions.size();
+        int newCount = copyInstructions.size();
+
+        // Placeholders for copied instructions, interleaved with old instructions according to their positions
+        int oldBefore = 0;
+        for (int index = 0; index < newCount; index++) {
+            while ((oldBefore < oldCount) && (positions[oldBefore] <= index)) {
+                oldBefore++;
+            }
+            implementation.addInstruction(index + oldBefore, new BuilderInstruction10x(Opcode.NOP));
+        }
+
+        // Removing from the end moves each old instruction's labels to the placeholder after it.
+        for (int index = oldCount - 1; index >= 0; index--) {
+            MethodLocation location = oldInstructions.get(index).getLocation();
+            // Line numbers and locals describe the member's old code.
+            location.getDebugItems().clear();
+            implementation.removeInstruction(location.getIndex());
+        }
+
+        for (int index = 0; index < newCount; index++) {
+            BuilderInstruction replacement = replacements.get(index);
+            if (replacement == null) {
+                replacement = copyInstruction(copyInstructions.get(index), implementation);
+            }
+            implementation.replaceInstruction(index, replacement);
+        }
+    }
+
+    private String getHash(String methodDescriptor) {
+        String hash = methodToHash.get(methodDescriptor);
+        if (hash != null) {
+            return hash;
+        }
+        if (!methodsBeingHashed.add(methodDescriptor)) {
+            // Recursion through other methods of the same class
+            return INELIGIBLE;
+        }
+
+        try {
+            hash = hash(methodDescriptor);
+        } catch (IneligibleMethod e) {
+            hash = INELIGIBLE;
+        }
+        methodsBeingHashed.remove(methodDescriptor);
+        methodToHash.put(methodDescriptor, hash);
+
+        return hash;
+    }
+
+    private void groupMethods(Collection<String> methodDescriptors) {
+        Map<DexBuilder, Map<String, List<String>>> builderToGroups =
+                new IdentityHashMap<DexBuilder, Map<String, List<String>>>();
+        for (String methodDescriptor : methodDescriptors) {
+            String hash = getHash(methodDescriptor);
+            if (INELIGIBLE.equals(hash)) {
+                continue;
+            }
+
+            DexBuilder dexBuilder = classManager.getDexBuilder(getClassName(methodDescriptor));
+            Map<String, List<String>> hashToGroup = builderToGroups.get(dexBuilder);
+            if (hashToGroup == null) {
+                hashToGroup = new HashMap<String, List<String>>();
+                builderToGroups.put(dexBuilder, hashToGroup);
+            }
+            List<String> group = hashToGroup.get(hash);
+            if (group == null) {
+                group = new LinkedList<String>();
+                hashToGroup.put(hash, group);
+            }
+            group.add(methodDescriptor);
+        }
+
+        for (Map<String, List<String>> hashToGroup : builderToGroups.values()) {
+            for (List<String> group : hashToGroup.values()) {
+                if (group.size() < 2) {
+                    continue;
+                }
+
+                String representative = group.remove(0);
+                representativeToMembers.put(representative, group);
+                members.addAll(group);
+                if (log.isDebugEnabled()) {
+                    log.debug(representative + " has " + group.size() + " duplicates: " + group);
+                }
+            }
+        }
+    }
+
+    private String hash(String methodDescriptor) {
+        String className = getClassName(methodDescriptor);
+        BuilderMethod method = classManager.getMethod(methodDescriptor);
+        if ((method == null) || (method.getImplementation() == null)) {
+            throw new IneligibleMethod();
+        }
+        MutableMethodImplementation implementation = (MutableMethodImplementation) method.getImplementation();
+
+        StringBuilder sb = new StringBuilder();
+        String signature = methodDescriptor.split("->", 2)[1];
+        String prototype = signature.substring(signature.indexOf('('));
+        if (prototype.contains(className)) {
+            throw new IneligibleMethod();
+        }
+        sb.append(method.getAccessFlags()).append(prototype).append(' ');
+        sb.append(implementation.getRegisterCount()).append('\n');
+
+        int parameterSize = Utils.getRegisterSize(classManager.getParameterTypes(methodDescriptor));
+        RegisterNames names = new RegisterNames(implementation.getRegisterCount() - parameterSize);
+        for (BuilderInstruction instruction : implementation.getInstructions()) {
+            appendInstruction(sb, instruction, names);
+            if (instruction instanceof ReferenceInstruction) {
+                appendReference(sb, methodDescriptor, ((ReferenceInstruction) instruction).getReference());
+            }
+            sb.append('\n');
+        }
+
+        for (BuilderTryBlock tryBlock : implementation.getTryBlocks()) {
+            sb.append("try ").append(tryBlock.getStartCodeAddress()).append(' ').append(tryBlock.getCodeUnitCount());
+            for (BuilderExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                String exceptionType = handler.getExceptionType();
+                if ((exceptionType != null) && exceptionType.contains(className)) {
+                    throw new IneligibleMethod();
+                }
+                sb.append(' ').append(exceptionType).append(':').append(handler.getHandlerCodeAddress());
+            }
+            sb.append('\n');
+        }
+
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+
+            return toHex(digest.digest(sb.toString().getBytes(UTF8)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * Names local registers in order of first use so copies with different register allocation hash the same.
+     * Parameters are always in the last registers and keep their positions.
+     */
+    private static class RegisterNames {
+
+        private final int firstParameterRegister;
+        private final TIntIntMap registerToName;
+
+        private RegisterNames(int firstParameterRegister) {
+            this.firstParameterRegister = firstParameterRegister;
+            registerToName = new TIntIntHashMap(8, 0.5f, -1, -1);
+        }
+
+        private String get(int register, boolean isWide) {
+            String name = get(register);
+            if (isWide) {
+                name += ':' + get(register + 1);
+            }
+
+            return name;
+        }
+
+        private String get(int register) {
+            if (register >= firstParameterRegister) {
+                return "p" + (register - firstParameterRegister);
+            }
+
+            int name = registerToName.get(register);
+            if (name == -1) {
+                name = registerToName.size();
+                registerToName.put(register, name);
+            }
+
+            return "v" + name;
+        }
+
+    }
+
+    private static class IneligibleMethod extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        private IneligibleMethod() {
+            super(null, null, false, false);
+        }
+
+    }
+
+}
@@ -38,7 +38,10 @@ public class Optimizer {
         performOnceStrategies.add(new PeepholeStrategy(mbgraph));
 
         performRepeatedlyStrategies = new LinkedList<>();
-        performRepeatedlyStrategies.add(new DeadRemovalStrategy(mbgraph));
+        if (!graph.isPartial()) {
+            // Unexplored paths may use anything, so nothing can be shown to be dead.
+            performRepeatedlyStrategies.add(new DeadRemovalStrategy(mbgraph));
+        }
 
         methodReexecuteStrategies = new LinkedList<>();
         methodReexecuteStrategies.add(new ReflectionRemovalStrategy(mbgraph));
@@ -66,6 +69,21 @@ public class Optimizer {
         return sb.toString();
     }
 
+    /**
+     * Add counts from optimizations which weren't performed by an optimizer instance, such as cached results.
+     *
+     * @param counts
+     */
+    public static void addTotalOptimizationCounts(Map<String, Integer> counts) {
+        for (Map.Entry<String, Integer> entry : counts.entrySet()) {
+            Integer totalCount = totalOptimizationCounts.get(entry.getKey());
+            if (null == totalCount) {
+                totalCount = 0;
+            }
+            totalOptimizationCounts.put(entry.getKey(), totalCount + entry.getValue());
+        }
+    }
+
     public void simplify(int maxSweeps) {
         System.out.println("Simplifying: " + methodDescriptor);
 
@@ -125,6 +143,10 @@ public class Optimizer {
         return sweepCount;
     }
 
+    public Map<String, Integer> getOptimizationCountMap() {
+        return new HashMap<>(optimizationCounts);
+    }
+
     public String getOptimizationCounts() {
         StringBuilder sb = new StringBuilder("Optimizations: ");
         Set<String> keySet = optimizationCounts.keySet();
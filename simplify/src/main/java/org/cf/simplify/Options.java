@@ -1,6 +1,7 @@
 package org.cf.simplify;
 
 import org.apache.commons.io.FilenameUtils;
+import org.cf.smalivm.ExecutionWorklist;
 import org.kohsuke.args4j.Option;
 import org.kohsuke.args4j.spi.FileOptionHandler;
 import org.kohsuke.args4j.spi.PatternOptionHandler;
@@ -35,6 +36,57 @@ public class Options implements Serializable {
             usage = "Maximum visits over all addresses in method. Higher for longer methods + loops.")
     private int maxMethodVisits = 1_000_000;
 
+    @Option(name = "--tiered",
+            usage = "Run each method with the tier 1 limits first, and only use the full limits where it pays off.")
+    private boolean tiered;
+
+    @Option(name = "--tier1-max-call-depth", usage = "Tier 1 method call depth limit.")
+    private int tier1MaxCallDepth = 3;
+
+    @Option(name = "--tier1-max-address-visits", usage = "Tier 1 maximum visits of particular address.")
+    private int tier1MaxAddressVisits = 500;
+
+    @Option(name = "--tier1-max-method-visits", usage = "Tier 1 maximum visits over all addresses in method.")
+    private int tier1MaxMethodVisits = 10_000;
+
+    @Option(name = "--partial-graphs",
+            usage = "When a visit limit is exceeded, stop exploring only that path and keep what was found elsewhere.")
+    private boolean partialGraphs;
+
+    @Option(name = "--max-method-millis",
+            usage = "Stop executing a method, including callees, after this many milliseconds and keep what was found. 0 is no limit.")
+    private long maxMethodMillis = 0;
+
+    @Option(name = "--max-method-allocation-mb",
+            usage = "Stop executing a method, including callees, after it allocates this many megabytes and keep what was found. 0 is no limit.")
+    private long maxMethodAllocationMegabytes = 0;
+
+    @Option(name = "--adaptive-visit-limits",
+            usage = "Limit loop visits by estimated trip count. Max address visits becomes a ceiling and can be raised.")
+    private boolean adaptiveVisitLimits;
+
+    @Option(name = "--max-unknown-loop-visits",
+            usage = "With adaptive visit limits, visits allowed each time a loop with an unknown bound is entered.")
+    private int maxUnknownLoopVisits = 1000;
+
+    @Option(name = "--worklist", usage = "Order nodes are executed in. Matters when limits or budgets are hit.")
+    private ExecutionWorklist.Strategy worklistStrategy = ExecutionWorklist.Strategy.BFS;
+
+    @Option(name = "--reflection-memo-size",
+            usage = "Remember this many results of reflected methods called with immutable arguments. 0 is off.")
+    private int reflectionMemoSize = 0;
+
+    @Option(name = "--reflection-timeout-millis",
+            usage = "Run reflected methods on separate threads and give up after this many milliseconds. 0 is no limit.")
+    private long reflectionTimeoutMillis = 0;
+
+    @Option(name = "--reflection-threads", usage = "With a reflection timeout, maximum threads for reflected methods.")
+    private int reflectionThreadCount = 2;
+
+    @Option(name = "--max-template-instructions",
+            usage = "Maximum instructions of cached method templates before least recently used are evicted. 0 is no limit.")
+    private int maxTemplateInstructions = 0;
+
     @Option(name = "--max-passes", usage = "Limit optimization passes.")
     private int maxOptimizationPasses = 100;
 
@@ -63,6 +115,37 @@ public class Options implements Serializable {
     @Option(name = "--static-only", aliases = {"-s"}, usage = "Only emulate static part of classes")
     private boolean staticOnly;
 
+    @Option(name = "--stream-output",
+            usage = "Write out and unload each class as soon as it's simplified. Lowers memory use for large inputs.")
+    private boolean streamOutput;
+
+    @Option(name = "--threads", usage = "Threads used for scanning and parsing input.")
+    private int threadCount = Runtime.getRuntime().availableProcessors();
+
+    @Option(name = "--eager-load-classes",
+            usage = "Parse all input classes up front, in parallel, if there are at least this many. 0 is never. Ignored with --stream-output.")
+    private int eagerLoadClassCount;
+
+    @Option(name = "--parse-cache", metaVar = "dir", handler = FileOptionHandler.class,
+            usage = "Cache parsed Smali files in this folder so unchanged files aren't parsed again.")
+    private File parseCacheDirectory;
+
+    @Option(name = "--result-cache", metaVar = "dir", handler = FileOptionHandler.class,
+            usage = "Cache simplified classes in this folder and reuse them if nothing they depend on changed. Implies --stream-output.")
+    private File resultCacheDirectory;
+
+    @Option(name = "--call-graph-order",
+            usage = "Simplify callees before their callers, ordered by the static call graph.")
+    private boolean callGraphOrder;
+
+    @Option(name = "--deduplicate",
+            usage = "Simplify one of each group of identical methods and copy the result to the others.")
+    private boolean deduplicate;
+
+    @Option(name = "--classify-methods",
+            usage = "Skip trivial methods and optimize straight line methods only once.")
+    private boolean classifyMethods;
+
     private File inFile;
     private File outDexFile;
     private boolean isApk;
@@ -101,6 +184,27 @@ public class Options implements Serializable {
         }
     }
 
+    public int getEagerLoadClassCount() {
+        if (isStreamOutput()) {
+            // Classes are streamed to save memory, so don't keep them all loaded.
+            return 0;
+        }
+
+        return eagerLoadClassCount;
+    }
+
+    public File getParseCacheDirectory() {
+        return parseCacheDirectory;
+    }
+
+    public File getResultCacheDirectory() {
+        return resultCacheDirectory;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
     public int getMaxAddressVisits() {
         return maxAddressVisits;
     }
@@ -113,6 +217,54 @@ public class Options implements Serializable {
         return maxMethodVisits;
     }
 
+    public int getTier1MaxAddressVisits() {
+        return tier1MaxAddressVisits;
+    }
+
+    public int getTier1MaxCallDepth() {
+        return tier1MaxCallDepth;
+    }
+
+    public int getTier1MaxMethodVisits() {
+        return tier1MaxMethodVisits;
+    }
+
+    public long getMaxMethodAllocatedBytes() {
+        return maxMethodAllocationMegabytes * 1024 * 1024;
+    }
+
+    public long getMaxMethodMillis() {
+        return maxMethodMillis;
+    }
+
+    public boolean isAdaptiveVisitLimits() {
+        return adaptiveVisitLimits;
+    }
+
+    public int getMaxUnknownLoopVisits() {
+        return maxUnknownLoopVisits;
+    }
+
+    public ExecutionWorklist.Strategy getWorklistStrategy() {
+        return worklistStrategy;
+    }
+
+    public int getReflectionMemoSize() {
+        return reflectionMemoSize;
+    }
+
+    public long getReflectionTimeoutMillis() {
+        return reflectionTimeoutMillis;
+    }
+
+    public int getReflectionThreadCount() {
+        return reflectionThreadCount;
+    }
+
+    public int getMaxTemplateInstructions() {
+        return maxTemplateInstructions;
+    }
+
     public int getMaxOptimizationPasses() {
         return maxOptimizationPasses;
     }
@@ -161,10 +313,35 @@ public class Options implements Serializable {
         return vvverbose;
     }
 
+    public boolean isCallGraphOrder() {
+        return callGraphOrder;
+    }
+
+    public boolean isClassifyMethods() {
+        return classifyMethods;
+    }
+
+    public boolean isDeduplicate() {
+        return deduplicate;
+    }
+
+    public boolean isPartialGraphs() {
+        return partialGraphs;
+    }
+
+    public boolean isTiered() {
+        return tiered;
+    }
+
     public boolean isStaticOnly() {
         return staticOnly;
     }
 
+    public boolean isStreamOutput() {
+        // Cached results are stored and restored as streamed classes
+        return streamOutput || (resultCacheDirectory != null);
+    }
+
     private void determineInputType() {
         String type = FilenameUtils.getExtension(inFile.getAbsolutePath()).toLowerCase();
         if ("apk".equals(type)) {
@@ -174,15 +351,71 @@ public class Options implements Serializable {
         }
     }
 
+    /**
+     * @return description of every option which can change simplification results
+     */
+    public String getResultConfiguration() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(includeSupportLibrary).append(',').append(staticOnly);
+        sb.append(',').append(getMaxAddressVisits()).append(',').append(getMaxCallDepth());
+        sb.append(',').append(getMaxMethodVisits()).append(',').append(getMaxOptimizationPasses());
+        sb.append(',').append(getOutputAPILevel()).append(',').append(callGraphOrder);
+        sb.append(',').append(deduplicate);
+        sb.append(',').append(classifyMethods).append(',').append(partialGraphs);
+        sb.append(',').append(worklistStrategy);
+        if (adaptiveVisitLimits) {
+            sb.append(",adaptive:").append(maxUnknownLoopVisits);
+        }
+        sb.append(',').append(maxMethodMillis).append(',').append(maxMethodAllocationMegabytes);
+        if (reflectionTimeoutMillis > 0) {
+            sb.append(",reflection:").append(reflectionTimeoutMillis);
+        }
+        if (tiered) {
+            sb.append(",tiered:").append(getTier1MaxAddressVisits()).append(',').append(getTier1MaxCallDepth());
+            sb.append(',').append(getTier1MaxMethodVisits());
+        }
+        sb.append(',').append(getExcludeFilter()).append(',').append(getIncludeFilter());
+
+        return sb.toString();
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder();
         sb.append("Include support library: ").append(includeSupportLibrary).append('\n');
         sb.append("Static only: ").append(staticOnly).append('\n');
+        sb.append("Call graph order: ").append(callGraphOrder).append('\n');
+        sb.append("Deduplicate: ").append(deduplicate).append('\n');
+        sb.append("Classify methods: ").append(classifyMethods).append('\n');
+        sb.append("Stream output: ").append(isStreamOutput()).append('\n');
+        sb.append("Result cache: ").append(getResultCacheDirectory()).append('\n');
         sb.append("Max address visits: ").append(getMaxAddressVisits()).append('\n');
         sb.append("Max call depth: ").append(getMaxCallDepth()).append('\n');
         sb.append("Max method visits: ").append(getMaxMethodVisits()).append('\n');
+        sb.append("Partial graphs: ").append(partialGraphs).append('\n');
+        sb.append("Tiered: ").append(tiered).append('\n');
+        if (tiered) {
+            sb.append("Tier 1 max address visits: ").append(getTier1MaxAddressVisits()).append('\n');
+            sb.append("Tier 1 max call depth: ").append(getTier1MaxCallDepth()).append('\n');
+            sb.append("Tier 1 max method visits: ").append(getTier1MaxMethodVisits()).append('\n');
+        }
+        sb.append("Adaptive visit limits: ").append(adaptiveVisitLimits).append('\n');
+        if (adaptiveVisitLimits) {
+            sb.append("Max unknown loop visits: ").append(maxUnknownLoopVisits).append('\n');
+        }
+        sb.append("Worklist: ").append(worklistStrategy).append('\n');
+        sb.append("Max method millis: ").append(getMaxMethodMillis()).append('\n');
+        sb.append("Max method allocation MB: ").append(maxMethodAllocationMegabytes).append('\n');
+        sb.append("Reflection memo size: ").append(reflectionMemoSize).append('\n');
+        sb.append("Reflection timeout millis: ").append(reflectionTimeoutMillis).append('\n');
+        if (reflectionTimeoutMillis > 0) {
+            sb.append("Reflection threads: ").append(reflectionThreadCount).append('\n');
+        }
+        sb.append("Max template instructions: ").append(getMaxTemplateInstructions()).append('\n');
         sb.append("Max optimization passes: ").append(getMaxOptimizationPasses()).append('\n');
+        sb.append("Threads: ").append(getThreadCount()).append('\n');
+        sb.append("Eager load classes: ").append(getEagerLoadClassCount()).append('\n');
+        sb.append("Parse cache: ").append(getParseCacheDirectory()).append('\n');
         sb.append("Output API level: ").append(getOutputAPILevel()).append('\n');
         sb.append("Exclude filter: ").append(getExcludeFilter()).append('\n');
         sb.append("Include filter: ").append(getIncludeFilter()).append('\n');
@@ -0,0 +1,474 @@
+package org.cf.simplify;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.cf.smalivm.ClassManager;
+import org.cf.smalivm.SmaliFile;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.util.ConfigLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * On-disk cache of simplified classes. A class's key is a hash of its Smali file, every method its methods may call,
+ * and the static initializers and declarations of every local class those methods use, along with the simplify
+ * configuration. Dependencies are tracked per method, so changing a method only changes the keys of classes with a
+ * method which may call it. Entries hold the simplified class as a partial dex and the optimization counts which
+ * produced it.
+ * <p>
+ * Dependencies are found in the Smali source so a cached class can be restored without loading anything. Calls
+ * resolve to the method an ancestor defines and also to overrides in local subclasses, since the receiver's type may
+ * be more specific than the reference.
+ * <p>
+ * Classes are the unit of caching because a single method's simplified implementation can't be put back into a class
+ * definition without re-interning it.
+ */
+public class ResultCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ResultCache.class.getSimpleName());
+
+    private static final int FORMAT_VERSION = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final Pattern CLASS_REFERENCE_PATTERN = Pattern.compile("L[^;\\s:(),\\[]+;");
+    private static final Pattern METHOD_REFERENCE_PATTERN = Pattern.compile(
+            "(L[^;\\s:(),\\[]+;)->([^\\s:(]+\\([^)\\s]*\\)[^\\s,}]+)");
+    // Bundled configuration which changes how methods are executed
+    private static final String[] CONFIG_RESOURCES = new String[]{
+            "framework_classes.cfg", "immutable_classes.cfg", "safe_classes.cfg", "safe_framework_classes.cfg",
+            "safe_methods.cfg", "unsafe_methods.cfg"};
+
+    private final Map<String, ClassSummary> classNameToSummary;
+    private final String configuration;
+    private final File directory;
+
+    private Map<String, Set<String>> classNameToSubclasses;
+    private int hits;
+    private int misses;
+
+    /**
+     * @param directory
+     * @param configuration every option which affects simplification results
+     * @throws IOException
+     */
+    public ResultCache(File directory, String configuration) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory.toPath());
+        String toolVersion = getToolVersion();
+        this.configuration = FORMAT_VERSION + ":" + toolVersion + ":" + configuration;
+        classNameToSummary = new HashMap<String, ClassSummary>();
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    private static MessageDigest getDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hash(String text) {
+        return toHex(getDigest().digest(text.getBytes(UTF8)));
+    }
+
+    /*
+     * Manifest versions aren't written and don't change between development builds, so hash the code and bundled
+     * configuration instead. Otherwise, results from an older optimizer would be reused.
+     */
+    private static String getToolVersion() throws IOException {
+        MessageDigest digest = getDigest();
+        Set<File> locations = new HashSet<File>();
+        for (Class<?> klazz : new Class<?>[]{ResultCache.class, VirtualMachine.class}) {
+            updateWithCode(digest, klazz, locations);
+        }
+        for (String resource : CONFIG_RESOURCES) {
+            try (InputStream is = ConfigLoader.class.getClassLoader().getResourceAsStream(resource)) {
+                if (is == null) {
+                    throw new IOException("Unable to read bundled configuration " + resource);
+                }
+                digest.update(resource.getBytes(UTF8));
+                digest.update(IOUtils.toByteArray(is));
+            }
+        }
+
+        return toHex(digest.digest());
+    }
+
+    /*
+     * Hash the jar or class directory the class was loaded from, unless it was already hashed.
+     */
+    private static void updateWithCode(MessageDigest digest, Class<?> klazz, Set<File> locations) throws
+            IOException {
+        CodeSource codeSource = klazz.getProtectionDomain().getCodeSource();
+        if (codeSource != null) {
+            File location;
+            try {
+                location = new File(codeSource.getLocation().toURI());
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                location = null;
+            }
+            if (location != null && location.isFile()) {
+                if (locations.add(location)) {
+                    digest.update(Files.readAllBytes(location.toPath()));
+                }
+                return;
+            } else if (location != null && location.isDirectory()) {
+                if (locations.add(location)) {
+                    List<File> files = new ArrayList<File>(FileUtils.listFiles(location, null, true));
+                    Collections.sort(files);
+                    for (File file : files) {
+                        String path = location.toURI().relativize(file.toURI()).getPath();
+                        digest.update(path.getBytes(UTF8));
+                        digest.update(Files.readAllBytes(file.toPath()));
+                    }
+                }
+                return;
+            }
+        }
+
+        // Fall back to the class itself, which is better than nothing.
+        try (InputStream is = klazz.getResourceAsStream(klazz.getSimpleName() + ".class")) {
+            if (is == null) {
+                throw new IOException("Unable to read class file for " + klazz);
+            }
+            digest.update(IOUtils.toByteArray(is));
+        }
+    }
+
+    private static String getLastToken(String line) {
+        String[] tokens = line.trim().split("\\s+");
+
+        return tokens[tokens.length - 1];
+    }
+
+    public int getHits() {
+        return hits;
+    }
+
+    /**
+     * @param className
+     * @param classManager
+     * @return key covering the class and every local method and class it depends on
+     * @throws IOException
+     */
+    public String getKey(String className, ClassManager classManager) throws IOException {
+        SortedMap<String, String> dependencyToHash = new TreeMap<String, String>();
+        ClassSummary classSummary = getSummary(className, classManager);
+        // Covers the class's own declarations and methods.
+        dependencyToHash.put(className, classSummary.hash);
+
+        Deque<String> toVisit = new ArrayDeque<String>();
+        for (String methodSignature : classSummary.methodSignatureToSummary.keySet()) {
+            toVisit.add(className + "->" + methodSignature);
+        }
+        addClassDependency(className, classManager, dependencyToHash, toVisit);
+
+        Set<String> visited = new HashSet<String>();
+        while (!toVisit.isEmpty()) {
+            String methodDescriptor = toVisit.poll();
+            if (!visited.add(methodDescriptor)) {
+                continue;
+            }
+
+            String[] parts = methodDescriptor.split("->");
+            String methodClassName = parts[0];
+            String methodSignature = parts[1];
+            String definingClassName = getDefiningClass(methodClassName, methodSignature, classManager);
+            if (definingClassName == null) {
+                // Not local, so it can't change between runs without changing the configuration.
+                continue;
+            }
+
+            String definingDescriptor = definingClassName + "->" + methodSignature;
+            MethodSummary methodSummary = getSummary(definingClassName, classManager).methodSignatureToSummary.get(
+                    methodSignature);
+            dependencyToHash.put(definingDescriptor, methodSummary.hash);
+            addClassDependency(definingClassName, classManager, dependencyToHash, toVisit);
+            for (String reference : methodSummary.classReferences) {
+                addClassDependency(reference, classManager, dependencyToHash, toVisit);
+            }
+            for (String reference : methodSummary.methodReferences) {
+                toVisit.add(reference);
+                String[] referenceParts = reference.split("->");
+                for (String subclassName : getSubclasses(referenceParts[0], classManager)) {
+                    toVisit.add(subclassName + "->" + referenceParts[1]);
+                }
+            }
+        }
+
+        MessageDigest digest = getDigest();
+        digest.update(configuration.getBytes(UTF8));
+        digest.update(className.getBytes(UTF8));
+        for (Map.Entry<String, String> entry : dependencyToHash.entrySet()) {
+            digest.update(entry.getKey().getBytes(UTF8));
+            digest.update(entry.getValue().getBytes(UTF8));
+        }
+
+        return toHex(digest.digest());
+    }
+
+    public int getMisses() {
+        return misses;
+    }
+
+    /**
+     * Add the cached class to the output and its optimization counts to the totals.
+     *
+     * @param key
+     * @param writer
+     * @return true if the class was cached, false otherwise
+     */
+    public boolean restore(String key, StreamingDexWriter writer) throws IOException {
+        File entry = new File(directory, key);
+        if (!entry.exists()) {
+            misses++;
+            return false;
+        }
+
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        byte[] dex;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+            int countSize = in.readInt();
+            for (int i = 0; i < countSize; i++) {
+                counts.put(in.readUTF(), in.readInt());
+            }
+            dex = new byte[in.readInt()];
+            in.readFully(dex);
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unreadable result cache entry " + entry + ", simplifying again", e);
+            }
+            misses++;
+            return false;
+        }
+
+        writer.addPart(dex);
+        Optimizer.addTotalOptimizationCounts(counts);
+        hits++;
+
+        return true;
+    }
+
+    /**
+     * @param key
+     * @param partFile partial dex with only the simplified class
+     * @param counts   optimization counts for all methods of the class
+     */
+    public void store(String key, File partFile, Map<String, Integer> counts) throws IOException {
+        File entry = new File(directory, key);
+        File temp = File.createTempFile(key, ".tmp", directory);
+        byte[] dex = FileUtils.readFileToByteArray(partFile);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(counts.size());
+            for (Map.Entry<String, Integer> count : counts.entrySet()) {
+                out.writeUTF(count.getKey());
+                out.writeInt(count.getValue());
+            }
+            out.writeInt(dex.length);
+            out.write(dex);
+        }
+        Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Result cache: ");
+        sb.append("hits=").append(hits).append(", misses=").append(misses);
+
+        return sb.toString();
+    }
+
+    private boolean isLocal(String className, ClassManager classManager) {
+        return classManager.isLocalClass(className) && !classManager.isFramework(className);
+    }
+
+    /*
+     * Using a class may initialize it and its ancestors, and may depend on their field declarations.
+     */
+    private void addClassDependency(String className, ClassManager classManager,
+                                    Map<String, String> dependencyToHash, Deque<String> toVisit) throws IOException {
+        String currentClassName = className;
+        while (currentClassName != null && isLocal(currentClassName, classManager)) {
+            String key = currentClassName + ":declarations";
+            if (dependencyToHash.containsKey(key)) {
+                break;
+            }
+
+            ClassSummary summary = getSummary(currentClassName, classManager);
+            dependencyToHash.put(key, summary.declarationsHash);
+            if (summary.methodSignatureToSummary.containsKey("<clinit>()V")) {
+                toVisit.add(currentClassName + "-><clinit>()V");
+            }
+            currentClassName = summary.superclassName;
+        }
+    }
+
+    private String getDefiningClass(String className, String methodSignature, ClassManager classManager)
+            throws IOException {
+        String currentClassName = className;
+        while (currentClassName != null && isLocal(currentClassName, classManager)) {
+            ClassSummary summary = getSummary(currentClassName, classManager);
+            if (summary.methodSignatureToSummary.containsKey(methodSignature)) {
+                return currentClassName;
+            }
+            currentClassName = summary.superclassName;
+        }
+
+        return null;
+    }
+
+    private Set<String> getSubclasses(String className, ClassManager classManager) throws IOException {
+        if (classNameToSubclasses == null) {
+            Map<String, Set<String>> classNameToChildren = new HashMap<String, Set<String>>();
+            for (String childClassName : classManager.getNonFrameworkClassNames()) {
+                ClassSummary summary = getSummary(childClassName, classManager);
+                Set<String> parentClassNames = new HashSet<String>(summary.interfaceNames);
+                if (summary.superclassName != null) {
+                    parentClassNames.add(summary.superclassName);
+                }
+                for (String parentClassName : parentClassNames) {
+                    Set<String> children = classNameToChildren.get(parentClassName);
+                    if (children == null) {
+                        children = new HashSet<String>();
+                        classNameToChildren.put(parentClassName, children);
+                    }
+                    children.add(childClassName);
+                }
+            }
+
+            classNameToSubclasses = new HashMap<String, Set<String>>();
+            for (String parentClassName : classNameToChildren.keySet()) {
+                Set<String> subclasses = new HashSet<String>();
+                Deque<String> toVisit = new ArrayDeque<String>(classNameToChildren.get(parentClassName));
+                while (!toVisit.isEmpty()) {
+                    String subclassName = toVisit.poll();
+                    if (subclasses.add(subclassName) && classNameToChildren.containsKey(subclassName)) {
+                        toVisit.addAll(classNameToChildren.get(subclassName));
+                    }
+                }
+                classNameToSubclasses.put(parentClassName, subclasses);
+            }
+        }
+
+        Set<String> subclasses = classNameToSubclasses.get(className);
+        if (subclasses == null) {
+            return Collections.emptySet();
+        }
+
+        return subclasses;
+    }
+
+    private ClassSummary getSummary(String className, ClassManager classManager) throws IOException {
+        ClassSummary summary = classNameToSummary.get(className);
+        if (summary != null) {
+            return summary;
+        }
+
+        SmaliFile smaliFile = classManager.getSmaliFile(className);
+        byte[] contents;
+        try (InputStream is = smaliFile.open()) {
+            contents = IOUtils.toByteArray(is);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+
+        String superclassName = null;
+        Set<String> interfaceNames = new HashSet<String>();
+        StringBuilder declarations = new StringBuilder();
+        Map<String, MethodSummary> methodSignatureToSummary = new HashMap<String, MethodSummary>();
+        String methodSignature = null;
+        StringBuilder body = null;
+        for (String line : new String(contents, UTF8).split("\n")) {
+            String trimmed = line.trim();
+            if (body != null) {
+                body.append(line).append('\n');
+                if (trimmed.startsWith(".end method")) {
+                    methodSignatureToSummary.put(methodSignature, new MethodSummary(body.toString()));
+                    body = null;
+                }
+            } else if (trimmed.startsWith(".method ")) {
+                methodSignature = getLastToken(trimmed);
+                body = new StringBuilder(line).append('\n');
+            } else {
+                declarations.append(line).append('\n');
+                if (trimmed.startsWith(".super ")) {
+                    superclassName = getLastToken(trimmed);
+                } else if (trimmed.startsWith(".implements ")) {
+                    interfaceNames.add(getLastToken(trimmed));
+                }
+            }
+        }
+
+        String hash = toHex(getDigest().digest(contents));
+        summary = new ClassSummary(hash, hash(declarations.toString()), superclassName, interfaceNames,
+                methodSignatureToSummary);
+        classNameToSummary.put(className, summary);
+
+        return summary;
+    }
+
+    private static class ClassSummary {
+
+        private final String declarationsHash;
+        private final String hash;
+        private final Set<String> interfaceNames;
+        private final Map<String, MethodSummary> methodSignatureToSummary;
+        private final String superclassName;
+
+        private ClassSummary(String hash, String declarationsHash, String superclassName, Set<String> interfaceNames,
+                             Map<String, MethodSummary> methodSignatureToSummary) {
+            this.hash = hash;
+            this.declarationsHash = declarationsHash;
+            this.superclassName = superclassName;
+            this.interfaceNames = interfaceNames;
+            this.methodSignatureToSummary = methodSignatureToSummary;
+        }
+
+    }
+
+    private static class MethodSummary {
+
+        private final Set<String> classReferences;
+        private final String hash;
+        private final Set<String> methodReferences;
+
+        private MethodSummary(String body) {
+            hash = hash(body);
+
+            // Any class in a type or field reference may be initialized or have its fields read.
+            classReferences = new HashSet<String>();
+            Matcher m = CLASS_REFERENCE_PATTERN.matcher(body);
+            while (m.find()) {
+                classReferences.add(m.group());
+            }
+
+            methodReferences = new HashSet<String>();
+            m = METHOD_REFERENCE_PATTERN.matcher(body);
+            while (m.find()) {
+                methodReferences.add(m.group(1) + "->" + m.group(2));
+            }
+        }
+
+    }
+
+}
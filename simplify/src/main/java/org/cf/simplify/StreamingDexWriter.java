@@ -0,0 +1,90 @@
+package org.cf.simplify;
+
+import org.apache.commons.io.FileUtils;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.jf.dexlib2.writer.pool.DexPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Writes each class to its own partial dex as soon as it's finished, so the class and its builder objects can be
+ * released. The partial dex files are merged into the final output at the end.
+ */
+public class StreamingDexWriter {
+
+    private static final Logger log = LoggerFactory.getLogger(StreamingDexWriter.class.getSimpleName());
+
+    private final int apiLevel;
+    private final File partDirectory;
+    private final List<File> partFiles;
+
+    public StreamingDexWriter(int apiLevel) throws IOException {
+        this.apiLevel = apiLevel;
+        partDirectory = Files.createTempDirectory("simplify-parts").toFile();
+        partFiles = new LinkedList<File>();
+    }
+
+    public int getPartCount() {
+        return partFiles.size();
+    }
+
+    /**
+     * Merge all written parts into a single dex file and delete the parts.
+     *
+     * @param outDexFile
+     * @throws IOException
+     */
+    public void merge(File outDexFile) throws IOException {
+        DexPool dexPool = DexPool.makeDexPool(apiLevel);
+        for (File partFile : partFiles) {
+            DexFile dexFile = DexFileFactory.loadDexFile(partFile, apiLevel);
+            for (ClassDef classDef : dexFile.getClasses()) {
+                dexPool.internClass(classDef);
+            }
+        }
+        dexPool.writeTo(new FileDataStore(outDexFile));
+
+        FileUtils.deleteDirectory(partDirectory);
+        partFiles.clear();
+    }
+
+    /**
+     * Add an already written partial dex, such as one from a cache.
+     *
+     * @param contents dex file contents
+     * @throws IOException
+     */
+    public void addPart(byte[] contents) throws IOException {
+        File partFile = new File(partDirectory, partFiles.size() + ".dex");
+        FileUtils.writeByteArrayToFile(partFile, contents);
+        partFiles.add(partFile);
+    }
+
+    /**
+     * @param className
+     * @param dexBuilder builder containing only the given class
+     * @return partial dex file for the class
+     * @throws IOException
+     */
+    public File writeClass(String className, DexBuilder dexBuilder) throws IOException {
+        File partFile = new File(partDirectory, partFiles.size() + ".dex");
+        if (log.isDebugEnabled()) {
+            log.debug("Writing " + className + " to " + partFile);
+        }
+        dexBuilder.writeTo(new FileDataStore(partFile));
+        partFiles.add(partFile);
+
+        return partFile;
+    }
+
+}
@@ -11,6 +11,8 @@ import org.cf.smalivm.type.LocalField;
 import org.cf.smalivm.type.LocalMethod;
 import org.cf.smalivm.type.UnknownValue;
 import org.cf.util.SmaliClassUtils;
+import org.cf.util.SymbolTable;
+import org.cf.util.SymbolTable.FieldSymbol;
 import org.cf.util.Utils;
 import org.jf.dexlib2.AccessFlags;
 import org.jf.dexlib2.Opcode;
@@ -374,7 +376,7 @@ public class ReflectionRemovalStrategy implements OptimizationStrategy {
             return false;
         }
 
-        String className = mbgraph.getMethodDescriptor().split("->")[0];
+        String className = SymbolTable.getClassName(mbgraph.getMethodDescriptor());
         int methodAccessFlags = 0;
         String declaringClass = null;
         if (methodValue instanceof Method) {
@@ -464,13 +466,10 @@ public class ReflectionRemovalStrategy implements OptimizationStrategy {
             fieldDescriptor = sb.toString();
         }
 
-        String[] parts;
-        parts = fieldDescriptor.split("->");
-        String className = parts[0];
-        String fieldNameAndType = parts[1];
-        parts = fieldNameAndType.split(":");
-        String fieldName = parts[0];
-        String type = parts[1];
+        FieldSymbol symbol = SymbolTable.getField(fieldDescriptor);
+        String className = symbol.getClassName();
+        String fieldName = symbol.getName();
+        String type = symbol.getType();
 
         FieldReference fieldRef = null;
         boolean isStatic = false;
@@ -6,6 +6,10 @@ import org.cf.smalivm.VMTester;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionGraph;
 import org.cf.smalivm.context.HeapItem;
+import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
+import org.cf.smalivm.exception.MaxCallDepthExceeded;
+import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
+import org.cf.smalivm.exception.UnhandledVirtualException;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.jf.dexlib2.writer.builder.DexBuilder;
 
@@ -40,4 +44,19 @@ public class OptimizerTester {
         return new MethodBackedGraph(graph, method, vm, dexBuilder);
     }
 
+    public static MethodBackedGraph getPartialMethodBackedGraph(String className, String methodSignature,
+                                                                int maxAddressVisits) throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
+            MaxMethodVisitsExceeded, UnhandledVirtualException {
+        VirtualMachine vm = VMTester.getTestVM(true);
+        vm.setLimits(maxAddressVisits, 20, 1000000);
+        vm.setAllowPartialGraphs(true);
+        String methodDescriptor = className + "->" + methodSignature;
+        ExecutionGraph graph = vm.execute(methodDescriptor);
+
+        BuilderMethod method = vm.getClassManager().getMethod(methodDescriptor);
+        DexBuilder dexBuilder = VMTester.getDexBuilder();
+
+        return new MethodBackedGraph(graph, method, vm, dexBuilder);
+    }
+
 }
@@ -0,0 +1,67 @@
+package org.cf.simplify;
+
+import org.cf.smalivm.VMTester;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCallGraphScheduler {
+
+    private static final String CLASS_NAME = "Lcall_graph_scheduler_test;";
+    private static final String LEAF = CLASS_NAME + "->leaf()V";
+    private static final String MIDDLE = CLASS_NAME + "->middle()V";
+    private static final String TOP = CLASS_NAME + "->top()V";
+    private static final String MUTUALLY_RECURSIVE_1 = CLASS_NAME + "->mutuallyRecursive1()V";
+    private static final String MUTUALLY_RECURSIVE_2 = CLASS_NAME + "->mutuallyRecursive2()V";
+    private static final String SELF_RECURSIVE = CLASS_NAME + "->selfRecursive()V";
+    private static final String CALLS_UNSCHEDULED = CLASS_NAME + "->callsUnscheduled()V";
+
+    private CallGraphScheduler scheduler;
+
+    private static void assertBefore(List<String> order, String first, String second) {
+        assertTrue(first + " should be before " + second, order.indexOf(first) < order.indexOf(second));
+    }
+
+    @Before
+    public void setUp() {
+        // Callers first, so the order has to change.
+        List<String> methodDescriptors = Arrays.asList(TOP, MUTUALLY_RECURSIVE_2, MUTUALLY_RECURSIVE_1, MIDDLE,
+                SELF_RECURSIVE, CALLS_UNSCHEDULED, LEAF);
+        scheduler = new CallGraphScheduler(VMTester.getTestVM().getClassManager(), methodDescriptors);
+    }
+
+    @Test
+    public void testCalleesAreOrderedBeforeCallers() {
+        List<String> order = scheduler.getOrder();
+
+        assertEquals(7, order.size());
+        assertBefore(order, LEAF, MIDDLE);
+        assertBefore(order, MIDDLE, TOP);
+        assertBefore(order, LEAF, MUTUALLY_RECURSIVE_1);
+        assertBefore(order, LEAF, MUTUALLY_RECURSIVE_2);
+    }
+
+    @Test
+    public void testMutuallyRecursiveMethodsAreOneComponent() {
+        List<String> order = scheduler.getOrder();
+        int index1 = order.indexOf(MUTUALLY_RECURSIVE_1);
+        int index2 = order.indexOf(MUTUALLY_RECURSIVE_2);
+
+        assertEquals(1, Math.abs(index1 - index2));
+        // leaf, middle, top, mutually recursive, self recursive, calls unscheduled
+        assertEquals(6, scheduler.getComponentCount());
+        assertEquals(2, scheduler.getLargestComponentSize());
+    }
+
+    @Test
+    public void testLevelsAreLongestCalleeChain() {
+        // leaf, then middle and mutually recursive, then top
+        assertEquals(3, scheduler.getLevelCount());
+    }
+
+}
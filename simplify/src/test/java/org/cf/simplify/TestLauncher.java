@@ -0,0 +1,89 @@
+package org.cf.simplify;
+
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
+import org.cf.smalivm.exception.MaxCallDepthExceeded;
+import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
+import org.cf.smalivm.exception.UnhandledVirtualException;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestLauncher {
+
+    private static final String CLASS_NAME = "Ltiered_test;";
+    // Tier 1 limits
+    private static final int MAX_ADDRESS_VISITS = 10;
+    private static final int MAX_CALL_DEPTH = 5;
+    private static final int MAX_METHOD_VISITS = 100;
+
+    private VirtualMachine vm;
+
+    private String getTier1EscalationReason(String methodSignature) throws UnhandledVirtualException {
+        vm.setLimits(MAX_ADDRESS_VISITS, MAX_CALL_DEPTH, MAX_METHOD_VISITS);
+        int limitsExceededCount = vm.getLimitsExceededCount();
+        ExecutionGraph graph = null;
+        try {
+            graph = vm.execute(CLASS_NAME + "->" + methodSignature);
+        } catch (MaxAddressVisitsExceeded | MaxCallDepthExceeded | MaxMethodVisitsExceeded e) {
+            // Graph is null
+        }
+
+        return Launcher.getEscalationReason(graph, vm.getLimitsExceededCount() > limitsExceededCount);
+    }
+
+    private boolean usesReflection(String methodSignature) {
+        MutableMethodImplementation implementation = (MutableMethodImplementation) vm.getClassManager().getMethod(
+                CLASS_NAME + "->" + methodSignature).getImplementation();
+
+        return MethodClassifier.usesReflection(implementation);
+    }
+
+    @Before
+    public void setUp() {
+        vm = VMTester.getTestVM();
+    }
+
+    @Test
+    public void testKnownResultIsNotEscalated() throws UnhandledVirtualException {
+        assertNull(getTier1EscalationReason("constant()I"));
+    }
+
+    @Test
+    public void testExceedingTier1LimitsEscalates() throws UnhandledVirtualException {
+        assertEquals("limits", getTier1EscalationReason("loop()I"));
+    }
+
+    @Test
+    public void testCalleeExceedingTier1LimitsEscalates() throws UnhandledVirtualException {
+        assertEquals("limits", getTier1EscalationReason("callsLoop()I"));
+    }
+
+    @Test
+    public void testUnknownInvokeResultEscalates() throws UnhandledVirtualException {
+        assertEquals("unknown", getTier1EscalationReason("invokeUnknown()I"));
+    }
+
+    @Test
+    public void testTier2LimitsAreEnoughForLoop() throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
+            MaxMethodVisitsExceeded, UnhandledVirtualException {
+        getTier1EscalationReason("loop()I");
+        vm.setLimits(500, 20, 1_000_000);
+        int limitsExceededCount = vm.getLimitsExceededCount();
+        ExecutionGraph graph = vm.execute(CLASS_NAME + "->loop()I");
+
+        assertEquals(limitsExceededCount, vm.getLimitsExceededCount());
+        assertNull(Launcher.getEscalationReason(graph, false));
+    }
+
+    @Test
+    public void testReflectionGoesStraightToTier2() {
+        assertTrue(usesReflection("usesReflection()Ljava/lang/Class;"));
+        assertFalse(usesReflection("loop()I"));
+    }
+
+}
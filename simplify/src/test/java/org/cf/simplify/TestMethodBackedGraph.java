@@ -2,6 +2,10 @@ package org.cf.simplify;
 
 import gnu.trove.map.TIntObjectMap;
 import org.cf.smalivm.context.ExecutionNode;
+import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
+import org.cf.smalivm.exception.MaxCallDepthExceeded;
+import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
+import org.cf.smalivm.exception.UnhandledVirtualException;
 import org.cf.smalivm.opcode.Op;
 import org.jf.dexlib2.Opcode;
 import org.jf.dexlib2.builder.BuilderInstruction;
@@ -15,6 +19,8 @@ import java.util.List;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class TestMethodBackedGraph {
 
@@ -138,4 +144,22 @@ public class TestMethodBackedGraph {
         }
     }
 
+    @Test
+    public void testInsertingBeforeIncompleteAddressIsIncomplete() throws MaxAddressVisitsExceeded,
+            MaxCallDepthExceeded, MaxMethodVisitsExceeded, UnhandledVirtualException {
+        // Loop is truncated, so the return is never reached
+        int returnAddress = 9;
+        MethodBackedGraph partialGraph = OptimizerTester.getPartialMethodBackedGraph("Lpartial_graph_test;",
+                "deadAssignmentBeforeLoop()I", 10);
+        assertTrue(partialGraph.isPartial());
+        assertFalse(partialGraph.isIncompleteAddress(0));
+        assertTrue(partialGraph.isIncompleteAddress(returnAddress));
+
+        partialGraph.insertInstruction(returnAddress, new BuilderInstruction10x(Opcode.NOP));
+        assertEquals(Opcode.NOP, partialGraph.getInstruction(returnAddress).getOpcode());
+        assertTrue(partialGraph.isIncompleteAddress(returnAddress));
+        assertTrue(partialGraph.isIncompleteAddress(returnAddress + 1));
+        assertFalse(partialGraph.isIncompleteAddress(0));
+    }
+
 }
@@ -0,0 +1,80 @@
+package org.cf.simplify;
+
+import org.cf.simplify.MethodClassifier.Route;
+import org.cf.smalivm.ClassManager;
+import org.cf.smalivm.VMTester;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMethodClassifier {
+
+    private static final String CLASS_NAME = "Lmethod_classifier_test;";
+
+    private ClassManager classManager;
+    private MethodClassifier classifier;
+
+    private Route classify(String methodSignature) {
+        return classifier.classify(CLASS_NAME + "->" + methodSignature);
+    }
+
+    private boolean hasDeadAssignment(String methodSignature) {
+        MutableMethodImplementation implementation = (MutableMethodImplementation) classManager.getMethod(
+                CLASS_NAME + "->" + methodSignature).getImplementation();
+
+        return MethodClassifier.hasDeadAssignment(implementation.getInstructions());
+    }
+
+    @Before
+    public void setUp() {
+        classManager = VMTester.getTestVM().getClassManager();
+        classifier = new MethodClassifier(classManager);
+    }
+
+    @Test
+    public void testMethodsWithNothingToSimplifyAreSkipped() {
+        assertEquals(Route.SKIP, classify("<init>()V"));
+        assertEquals(Route.SKIP, classify("nativeMethod()V"));
+        assertEquals(Route.SKIP, classify("getter()I"));
+        assertEquals(Route.SKIP, classify("setter(I)V"));
+        assertEquals(4, classifier.getCount(Route.SKIP));
+    }
+
+    @Test
+    public void testStraightLineMethodsWithWorkAreLight() {
+        assertEquals(Route.LIGHT, classify("deadAssignment()I"));
+        assertEquals(Route.LIGHT, classify("invokeSafe()I"));
+        assertEquals(2, classifier.getCount(Route.LIGHT));
+    }
+
+    @Test
+    public void testInvokingLocalOrUnsafeMethodIsFull() {
+        assertEquals(Route.FULL, classify("invokeLocal()I"));
+        assertEquals(Route.FULL, classify("invokeUnsafe()V"));
+    }
+
+    @Test
+    public void testBranchesStaticStateAndMathAreFull() {
+        assertEquals(Route.FULL, classify("branch(I)I"));
+        assertEquals(Route.FULL, classify("getStatic()I"));
+        assertEquals(Route.FULL, classify("math(II)I"));
+        assertEquals(3, classifier.getCount(Route.FULL));
+    }
+
+    @Test
+    public void testOverwrittenAssignmentIsDead() {
+        assertTrue(hasDeadAssignment("deadAssignment()I"));
+    }
+
+    @Test
+    public void testReadAssignmentsAreNotDead() {
+        assertFalse(hasDeadAssignment("getter()I"));
+        assertFalse(hasDeadAssignment("invokeSafe()I"));
+        assertFalse(hasDeadAssignment("math(II)I"));
+    }
+
+}
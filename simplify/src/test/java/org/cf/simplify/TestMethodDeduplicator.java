@@ -0,0 +1,126 @@
+package org.cf.simplify;
+
+import org.cf.smalivm.ClassManager;
+import org.cf.smalivm.VMTester;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.BuilderTryBlock;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.builder.instruction.BuilderInstruction11n;
+import org.jf.dexlib2.iface.instruction.*;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class TestMethodDeduplicator {
+
+    private static final String CLASS_NAME = "Lmethod_deduplicator_test;";
+    private static final String ORIGINAL = CLASS_NAME + "->original(I)I";
+    private static final String DIFFERENT_REGISTERS = CLASS_NAME + "->differentRegisters(I)I";
+    private static final String DIFFERENT_CONSTANT = CLASS_NAME + "->differentConstant(I)I";
+    private static final String REFERENCE_ABS = CLASS_NAME + "->referenceAbs(I)I";
+    private static final String REFERENCE_ABS_COPY = CLASS_NAME + "->referenceAbsCopy(I)I";
+    private static final String REFERENCE_SIGNUM = CLASS_NAME + "->referenceSignum(I)I";
+    private static final String TRY_CATCH = CLASS_NAME + "->tryCatch(I)I";
+    private static final String TRY_CATCH_COPY = CLASS_NAME + "->tryCatchCopy(I)I";
+
+    private ClassManager classManager;
+    private MethodDeduplicator deduplicator;
+
+    private static List<String> describe(MutableMethodImplementation implementation) {
+        List<String> description = new LinkedList<String>();
+        for (BuilderInstruction instruction : implementation.getInstructions()) {
+            StringBuilder sb = new StringBuilder(instruction.getOpcode().name);
+            if (instruction instanceof OneRegisterInstruction) {
+                sb.append(" a").append(((OneRegisterInstruction) instruction).getRegisterA());
+            }
+            if (instruction instanceof TwoRegisterInstruction) {
+                sb.append(" b").append(((TwoRegisterInstruction) instruction).getRegisterB());
+            }
+            if (instruction instanceof ThreeRegisterInstruction) {
+                sb.append(" c").append(((ThreeRegisterInstruction) instruction).getRegisterC());
+            }
+            if (instruction instanceof NarrowLiteralInstruction) {
+                sb.append(" #").append(((NarrowLiteralInstruction) instruction).getNarrowLiteral());
+            }
+            if (instruction instanceof OffsetInstruction) {
+                sb.append(" @").append(((OffsetInstruction) instruction).getCodeOffset());
+            }
+            description.add(sb.toString());
+        }
+        for (BuilderTryBlock tryBlock : implementation.getTryBlocks()) {
+            description.add("try " + tryBlock.getStartCodeAddress() + " " + tryBlock.getCodeUnitCount() + " " +
+                    tryBlock.exceptionHandler.getExceptionType() + ":" + tryBlock.exceptionHandler
+                    .getHandlerCodeAddress());
+        }
+
+        return description;
+    }
+
+    private MutableMethodImplementation getImplementation(String methodDescriptor) {
+        return (MutableMethodImplementation) classManager.getMethod(methodDescriptor).getImplementation();
+    }
+
+    @Before
+    public void setUp() {
+        // Implementations are changed, so don't share classes with other tests.
+        classManager = VMTester.getTestVM(true).getClassManager();
+        List<String> methodDescriptors = Arrays.asList(ORIGINAL, DIFFERENT_REGISTERS, DIFFERENT_CONSTANT,
+                REFERENCE_ABS, REFERENCE_ABS_COPY, REFERENCE_SIGNUM, TRY_CATCH, TRY_CATCH_COPY);
+        deduplicator = new MethodDeduplicator(classManager, methodDescriptors);
+    }
+
+    @Test
+    public void testDifferentRegistersAndLabelsAreDuplicates() {
+        assertEquals(Arrays.asList(DIFFERENT_REGISTERS), deduplicator.getMembers(ORIGINAL));
+        assertTrue(deduplicator.isMember(DIFFERENT_REGISTERS));
+    }
+
+    @Test
+    public void testDifferentConstantIsNotDuplicate() {
+        assertFalse(deduplicator.isMember(DIFFERENT_CONSTANT));
+        assertEquals(0, deduplicator.getMembers(DIFFERENT_CONSTANT).size());
+    }
+
+    @Test
+    public void testDifferentReferenceIsNotDuplicate() {
+        assertEquals(Arrays.asList(REFERENCE_ABS_COPY), deduplicator.getMembers(REFERENCE_ABS));
+        assertFalse(deduplicator.isMember(REFERENCE_SIGNUM));
+        assertEquals(0, deduplicator.getMembers(REFERENCE_SIGNUM).size());
+    }
+
+    @Test
+    public void testGroupsAreCounted() {
+        assertEquals(3, deduplicator.getGroupCount());
+        assertEquals(3, deduplicator.getDuplicateCount());
+    }
+
+    @Test
+    public void testCopyingChangesMemberImplementationInPlace() {
+        MutableMethodImplementation representative = getImplementation(ORIGINAL);
+        representative.replaceInstruction(0, new BuilderInstruction11n(Opcode.CONST_4, 0, 5));
+        MutableMethodImplementation member = getImplementation(DIFFERENT_REGISTERS);
+
+        assertTrue(deduplicator.copyImplementation(ORIGINAL, DIFFERENT_REGISTERS));
+        assertSame(member, getImplementation(DIFFERENT_REGISTERS));
+        assertEquals(describe(representative), describe(member));
+    }
+
+    @Test
+    public void testCopyingKeepsTryBlocks() {
+        MutableMethodImplementation representative = getImplementation(TRY_CATCH);
+        representative.replaceInstruction(0, new BuilderInstruction11n(Opcode.CONST_4, 0, 2));
+        MutableMethodImplementation member = getImplementation(TRY_CATCH_COPY);
+
+        assertTrue(deduplicator.copyImplementation(TRY_CATCH, TRY_CATCH_COPY));
+        assertSame(member, getImplementation(TRY_CATCH_COPY));
+        assertEquals(1, member.getTryBlocks().size());
+        assertEquals(describe(representative), describe(member));
+    }
+
+}
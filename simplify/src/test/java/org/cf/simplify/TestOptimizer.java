@@ -0,0 +1,71 @@
+package org.cf.simplify;
+
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
+import org.cf.smalivm.exception.MaxCallDepthExceeded;
+import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
+import org.cf.smalivm.exception.UnhandledVirtualException;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestOptimizer {
+
+    private static final String METHOD_DESCRIPTOR = "Lpartial_graph_test;->deadAssignmentBeforeLoop()I";
+    private static final int DEAD_REGISTER = 2;
+
+    private VirtualMachine vm;
+
+    private static boolean hasDeadAssignment(BuilderMethod method) {
+        MutableMethodImplementation implementation = (MutableMethodImplementation) method.getImplementation();
+        for (BuilderInstruction instruction : implementation.getInstructions()) {
+            if ((instruction.getOpcode() == Opcode.CONST_4) &&
+                    (((OneRegisterInstruction) instruction).getRegisterA() == DEAD_REGISTER)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private BuilderMethod simplify() throws MaxAddressVisitsExceeded, MaxCallDepthExceeded, MaxMethodVisitsExceeded,
+            UnhandledVirtualException {
+        ExecutionGraph graph = vm.execute(METHOD_DESCRIPTOR);
+        BuilderMethod method = vm.getClassManager().getMethod(METHOD_DESCRIPTOR);
+        Optimizer optimizer = new Optimizer(graph, method, vm, VMTester.getDexBuilder());
+        optimizer.simplify(100);
+
+        return method;
+    }
+
+    @Before
+    public void setUp() {
+        // Implementations are changed, so don't share classes with other tests.
+        vm = VMTester.getTestVM(true);
+        vm.setAllowPartialGraphs(true);
+    }
+
+    @Test
+    public void testDeadAssignmentIsRemovedFromCompleteGraph() throws MaxAddressVisitsExceeded,
+            MaxCallDepthExceeded, MaxMethodVisitsExceeded, UnhandledVirtualException {
+        assertFalse(hasDeadAssignment(simplify()));
+    }
+
+    @Test
+    public void testDeadAssignmentIsKeptInPartialGraph() throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
+            MaxMethodVisitsExceeded, UnhandledVirtualException {
+        vm.setLimits(10, 20, 1000000);
+
+        assertTrue(hasDeadAssignment(simplify()));
+    }
+
+}
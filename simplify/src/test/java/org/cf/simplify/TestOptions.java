@@ -0,0 +1,48 @@
+package org.cf.simplify;
+
+import org.junit.Test;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class TestOptions {
+
+    private static Options parse(String... args) throws CmdLineException {
+        Options opts = new Options();
+        new CmdLineParser(opts).parseArgument(args);
+
+        return opts;
+    }
+
+    @Test
+    public void testEagerLoadingIsOffByDefault() throws CmdLineException {
+        Options opts = parse("-i", "in.smali");
+
+        assertEquals(0, opts.getEagerLoadClassCount());
+    }
+
+    @Test
+    public void testEagerLoadingIsUsedWithoutStreaming() throws CmdLineException {
+        Options opts = parse("-i", "in.smali", "--eager-load-classes", "10");
+
+        assertEquals(10, opts.getEagerLoadClassCount());
+    }
+
+    @Test
+    public void testStreamingDisablesEagerLoading() throws CmdLineException {
+        Options opts = parse("-i", "in.smali", "--eager-load-classes", "10", "--stream-output");
+
+        assertEquals(0, opts.getEagerLoadClassCount());
+    }
+
+    @Test
+    public void testCallGraphOrderChangesResultConfiguration() throws CmdLineException {
+        Options opts = parse("-i", "in.smali");
+        Options callGraphOrderOpts = parse("-i", "in.smali", "--call-graph-order");
+
+        assertNotEquals(opts.getResultConfiguration(), callGraphOrderOpts.getResultConfiguration());
+    }
+
+}
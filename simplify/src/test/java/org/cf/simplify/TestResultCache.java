@@ -0,0 +1,163 @@
+package org.cf.simplify;
+
+import org.apache.commons.io.FileUtils;
+import org.cf.smalivm.ClassManager;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestResultCache {
+
+    private static final String CONFIGURATION = "configuration";
+    private static final String CLASS_NAME = "Lcache/Caller;";
+    private static final int API_LEVEL = 15;
+
+    private static final String CALLER = ".class public Lcache/Caller;\n.super Ljava/lang/Object;\n\n" +
+            ".method public static callStatic()I\n    .registers 1\n    invoke-static {}, Lcache/Callee;->callee()I\n" +
+            "    move-result v0\n    return v0\n.end method\n\n" +
+            ".method public static callVirtual(Lcache/Callee;)I\n    .registers 2\n" +
+            "    invoke-virtual {p0}, Lcache/Callee;->virtualCallee()I\n    move-result v0\n    return v0\n" +
+            ".end method\n";
+    private static final String CALLEE = ".class public Lcache/Callee;\n.super Ljava/lang/Object;\n\n" +
+            ".method public constructor <init>()V\n    .registers 1\n" +
+            "    invoke-direct {p0}, Ljava/lang/Object;-><init>()V\n    return-void\n.end method\n\n" +
+            ".method public static callee()I\n    .registers 1\n    const/4 v0, 0x1\n    return v0\n.end method\n\n" +
+            ".method public virtualCallee()I\n    .registers 2\n    const/4 v0, 0x2\n    return v0\n.end method\n\n" +
+            ".method public static unrelated()I\n    .registers 1\n    const/4 v0, 0x3\n    return v0\n.end method\n";
+    private static final String CALLEE_CLINIT = ".method static constructor <clinit>()V\n    .registers 0\n" +
+            "    return-void\n.end method\n";
+    private static final String SUBCLASS = ".class public Lcache/Subclass;\n.super Lcache/Callee;\n\n" +
+            ".method public virtualCallee()I\n    .registers 2\n    const/4 v0, 0x4\n    return v0\n.end method\n";
+    private static final String UNRELATED = ".class public Lcache/Unrelated;\n.super Ljava/lang/Object;\n\n" +
+            ".method public static unrelated()I\n    .registers 1\n    const/4 v0, 0x5\n    return v0\n.end method\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File cacheDirectory;
+    private Map<String, String> classes;
+
+    private String getKey() throws IOException {
+        return getKey(CONFIGURATION);
+    }
+
+    private String getKey(String configuration) throws IOException {
+        File smaliDirectory = folder.newFolder();
+        for (Map.Entry<String, String> entry : classes.entrySet()) {
+            FileUtils.writeStringToFile(new File(smaliDirectory, entry.getKey()), entry.getValue(), "UTF-8");
+        }
+        ClassManager classManager = new ClassManager(smaliDirectory.getPath());
+        ResultCache resultCache = new ResultCache(cacheDirectory, configuration);
+
+        return resultCache.getKey(CLASS_NAME, classManager);
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        cacheDirectory = folder.newFolder("cache");
+        classes = new HashMap<String, String>();
+        classes.put("cache/Caller.smali", CALLER);
+        classes.put("cache/Callee.smali", CALLEE);
+        classes.put("cache/Subclass.smali", SUBCLASS);
+        classes.put("cache/Unrelated.smali", UNRELATED);
+    }
+
+    @Test
+    public void testRestoringStoredResultIsHit() throws IOException {
+        ResultCache resultCache = new ResultCache(cacheDirectory, CONFIGURATION);
+        String key = getKey();
+        File partFile = folder.newFile();
+        byte[] dex = new byte[]{1, 2, 3};
+        FileUtils.writeByteArrayToFile(partFile, dex);
+        Map<String, Integer> counts = new HashMap<String, Integer>();
+        counts.put("constantized", 1);
+        resultCache.store(key, partFile, counts);
+
+        StreamingDexWriter writer = new StreamingDexWriter(API_LEVEL);
+        assertTrue(resultCache.restore(key, writer));
+        assertEquals(1, resultCache.getHits());
+        assertEquals(0, resultCache.getMisses());
+        assertEquals(1, writer.getPartCount());
+    }
+
+    @Test
+    public void testRestoringUnknownKeyIsMiss() throws IOException {
+        ResultCache resultCache = new ResultCache(cacheDirectory, CONFIGURATION);
+        StreamingDexWriter writer = new StreamingDexWriter(API_LEVEL);
+
+        assertFalse(resultCache.restore(getKey(), writer));
+        assertEquals(0, resultCache.getHits());
+        assertEquals(1, resultCache.getMisses());
+        assertEquals(0, writer.getPartCount());
+    }
+
+    @Test
+    public void testKeyIsStable() throws IOException {
+        assertEquals(getKey(), getKey());
+    }
+
+    @Test
+    public void testChangingConfigurationChangesKey() throws IOException {
+        assertNotEquals(getKey(), getKey("other " + CONFIGURATION));
+    }
+
+    @Test
+    public void testChangingClassChangesKey() throws IOException {
+        String key = getKey();
+        classes.put("cache/Caller.smali", CALLER.replace(".registers 2", ".registers 3"));
+
+        assertNotEquals(key, getKey());
+    }
+
+    @Test
+    public void testChangingCalleeChangesKey() throws IOException {
+        String key = getKey();
+        classes.put("cache/Callee.smali", CALLEE.replace("0x1", "0x7"));
+
+        assertNotEquals(key, getKey());
+    }
+
+    @Test
+    public void testAddingCalleeStaticInitializerChangesKey() throws IOException {
+        String key = getKey();
+        classes.put("cache/Callee.smali", CALLEE + "\n" + CALLEE_CLINIT);
+
+        assertNotEquals(key, getKey());
+    }
+
+    @Test
+    public void testChangingOverridingMethodChangesKey() throws IOException {
+        String key = getKey();
+        classes.put("cache/Subclass.smali", SUBCLASS.replace("0x4", "0x7"));
+
+        assertNotEquals(key, getKey());
+    }
+
+    @Test
+    public void testChangingUncalledMethodOfCalleeClassKeepsKey() throws IOException {
+        String key = getKey();
+        classes.put("cache/Callee.smali", CALLEE.replace("0x3", "0x7"));
+
+        assertEquals(key, getKey());
+    }
+
+    @Test
+    public void testChangingUnreferencedClassKeepsKey() throws IOException {
+        String key = getKey();
+        classes.put("cache/Unrelated.smali", UNRELATED.replace("0x5", "0x7"));
+
+        assertEquals(key, getKey());
+    }
+
+}
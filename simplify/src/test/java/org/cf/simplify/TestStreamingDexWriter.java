@@ -0,0 +1,90 @@
+package org.cf.simplify;
+
+import org.cf.smalivm.ClassManager;
+import org.jf.dexlib2.DexFileFactory;
+import org.jf.dexlib2.iface.ClassDef;
+import org.jf.dexlib2.iface.DexFile;
+import org.jf.dexlib2.iface.Method;
+import org.jf.dexlib2.iface.MethodImplementation;
+import org.jf.dexlib2.iface.instruction.Instruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.util.ReferenceUtil;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestStreamingDexWriter {
+
+    private static final String TEST_DIRECTORY = "resources/test";
+    private static final int API_LEVEL = 15;
+    private static final String[] CLASS_NAMES = new String[]{"Lnumeric;", "Loptimizer_test;"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static Map<String, List<String>> describe(File dexFile) throws IOException {
+        DexFile dex = DexFileFactory.loadDexFile(dexFile, API_LEVEL);
+        Map<String, List<String>> classNameToDescription = new TreeMap<String, List<String>>();
+        for (ClassDef classDef : dex.getClasses()) {
+            List<String> description = new LinkedList<String>();
+            description.add(classDef.getSuperclass());
+            for (Method method : classDef.getMethods()) {
+                description.add(ReferenceUtil.getMethodDescriptor(method));
+                MethodImplementation implementation = method.getImplementation();
+                if (implementation == null) {
+                    continue;
+                }
+                description.add("registers=" + implementation.getRegisterCount());
+                for (Instruction instruction : implementation.getInstructions()) {
+                    String line = instruction.getOpcode().name;
+                    if (instruction instanceof ReferenceInstruction) {
+                        line += " " + ReferenceUtil.getReferenceString(((ReferenceInstruction) instruction)
+                                .getReference());
+                    }
+                    description.add(line);
+                }
+            }
+            classNameToDescription.put(classDef.getType(), description);
+        }
+
+        return classNameToDescription;
+    }
+
+    @Test
+    public void testStreamedOutputMatchesSingleBuilderOutput() throws IOException {
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(API_LEVEL);
+        ClassManager classManager = new ClassManager(TEST_DIRECTORY, dexBuilder);
+        for (String className : CLASS_NAMES) {
+            classManager.getClass(className);
+        }
+        File singleDexFile = folder.newFile("single.dex");
+        dexBuilder.writeTo(new FileDataStore(singleDexFile));
+
+        ClassManager streamingClassManager = new ClassManager(TEST_DIRECTORY, DexBuilder.makeDexBuilder(API_LEVEL));
+        streamingClassManager.useClassDexBuilders(API_LEVEL);
+        StreamingDexWriter writer = new StreamingDexWriter(API_LEVEL);
+        for (String className : CLASS_NAMES) {
+            writer.writeClass(className, streamingClassManager.getDexBuilder(className));
+            streamingClassManager.unloadClass(className);
+        }
+        assertEquals(CLASS_NAMES.length, writer.getPartCount());
+        File streamedDexFile = folder.newFile("streamed.dex");
+        writer.merge(streamedDexFile);
+
+        Map<String, List<String>> expected = describe(singleDexFile);
+        assertEquals(CLASS_NAMES.length, expected.size());
+        assertEquals(expected, describe(streamedDexFile));
+    }
+
+}
@@ -0,0 +1,118 @@
+package org.cf.smalivm;
+
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.cf.smalivm.exception.UnknownAncestors;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Index of every supertype, including interfaces, of each type which has been checked. Types are interned to ids and
+ * each type's ancestors are resolved once, including reflected ancestors of non-local types. After that, a subtype check
+ * is a set lookup.
+ */
+class ClassHierarchy {
+
+    private final ClassManager classManager;
+    private final TObjectIntMap<String> typeToId;
+    private final List<Entry> entries;
+
+    ClassHierarchy(ClassManager classManager) {
+        this.classManager = classManager;
+        typeToId = new TObjectIntHashMap<String>(1024, 0.5f, -1);
+        entries = new ArrayList<Entry>(1024);
+    }
+
+    /**
+     * @param childType  non-array class type
+     * @param targetType non-array class type
+     * @return true if childType is targetType or has it as an ancestor
+     * @throws UnknownAncestors if targetType isn't a known ancestor, but some ancestors of childType are unknown
+     */
+    boolean isSubtype(String childType, String targetType) throws UnknownAncestors {
+        if (childType.equals(targetType)) {
+            return true;
+        }
+
+        Entry child = resolve(intern(childType));
+        // Resolving interns every ancestor, so a target without an id can't be one.
+        int targetId = typeToId.get(targetType);
+        if ((targetId != -1) && child.ancestors.contains(targetId)) {
+            return true;
+        }
+        if (child.unknownAncestor != null) {
+            throw new UnknownAncestors(child.unknownAncestor);
+        }
+
+        return false;
+    }
+
+    private int intern(String type) {
+        int id = typeToId.get(type);
+        if (id == -1) {
+            id = entries.size();
+            typeToId.put(type, id);
+            entries.add(new Entry(type));
+        }
+
+        return id;
+    }
+
+    private Entry resolve(int id) {
+        Entry entry = entries.get(id);
+        if ((entry.ancestors != null) || entry.isResolving) {
+            return entry;
+        }
+
+        entry.isResolving = true;
+        TIntSet ancestors = new TIntHashSet();
+        ancestors.add(id);
+        try {
+            Set<String> parents = classManager.getAncestors(entry.type);
+            for (String parent : parents) {
+                int parentId = intern(parent);
+                Entry parentEntry = resolve(parentId);
+                ancestors.add(parentId);
+                if (parentEntry.isResolving) {
+                    // Circular hierarchy in malformed input. The parent's ancestors aren't known yet, and never will
+                    // be, so don't pretend this set is complete.
+                    if (entry.unknownAncestor == null) {
+                        entry.unknownAncestor = parentEntry.type;
+                    }
+                    continue;
+                }
+                if (parentEntry.ancestors != null) {
+                    ancestors.addAll(parentEntry.ancestors);
+                }
+                if ((entry.unknownAncestor == null) && (parentEntry.unknownAncestor != null)) {
+                    entry.unknownAncestor = parentEntry.unknownAncestor;
+                }
+            }
+        } catch (UnknownAncestors e) {
+            entry.unknownAncestor = entry.type;
+        }
+        entry.ancestors = ancestors;
+        entry.isResolving = false;
+
+        return entry;
+    }
+
+    private static class Entry {
+
+        private final String type;
+        private TIntSet ancestors;
+        // First type whose parents couldn't be found, or null if all ancestors are known
+        private String unknownAncestor;
+        private boolean isResolving;
+
+        private Entry(String type) {
+            this.type = type;
+        }
+
+    }
+
+}
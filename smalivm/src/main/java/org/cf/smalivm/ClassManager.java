@@ -2,8 +2,11 @@ package org.cf.smalivm;
 
 import org.cf.smalivm.exception.UnknownAncestors;
 import org.cf.util.Dexifier;
+import org.cf.util.Dexifier.ParsedSmaliFile;
 import org.cf.util.SmaliClassUtils;
 import org.cf.util.SmaliFileFactory;
+import org.cf.util.SmaliParseCache;
+import org.cf.util.SymbolTable;
 import org.cf.util.Utils;
 import org.jf.dexlib2.builder.BuilderTryBlock;
 import org.jf.dexlib2.builder.MutableMethodImplementation;
@@ -17,6 +20,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.lang.reflect.Modifier;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * The class manager is responsible for loading Smali files into Dexlib2 objects and making them available.
@@ -26,6 +33,7 @@ import java.util.*;
 public class ClassManager {
 
     private static final Logger log = LoggerFactory.getLogger(ClassManager.class.getSimpleName());
+    private static final int PARSED_FILES_PER_THREAD = 2;
 
     // Use separate dex builder to intern framework classes so they're not included in output dex
     private final DexBuilder frameworkDexBuilder = DexBuilder.makeDexBuilder();
@@ -37,7 +45,14 @@ public class ClassManager {
     private final Map<String, List<String>> methodDescriptorToParameterTypes;
     private final Map<String, List<BuilderTryBlock>> methodDescriptorToTryBlocks;
     private final Map<String, List<String>> classNameToFieldNameAndType;
+    private final Map<String, DexBuilder> classNameToDexBuilder;
+    private final Map<String, Map<String, String>> classNameToVirtualTargets;
+    private final Map<String, Set<String>> classNameToClassAncestors;
+    private final ClassHierarchy classHierarchy;
+    private final Set<String> unloadedClassNames;
     private final SmaliFileFactory smaliFileFactory;
+    private int classDexBuilderApiLevel;
+    private SmaliParseCache parseCache;
 
     /**
      * @param smaliPath  Path to Smali file or folder
@@ -45,7 +60,17 @@ public class ClassManager {
      * @throws IOException
      */
     public ClassManager(File smaliPath, DexBuilder dexBuilder) throws IOException {
-        smaliFileFactory = new SmaliFileFactory();
+        this(smaliPath, dexBuilder, 1);
+    }
+
+    /**
+     * @param smaliPath   Path to Smali file or folder
+     * @param dexBuilder
+     * @param threadCount number of threads used to scan for Smali files
+     * @throws IOException
+     */
+    public ClassManager(File smaliPath, DexBuilder dexBuilder, int threadCount) throws IOException {
+        smaliFileFactory = new SmaliFileFactory(threadCount);
         Set<SmaliFile> smaliFiles = smaliFileFactory.getSmaliFiles(smaliPath);
         classNameToSmaliFile = new HashMap<String, SmaliFile>();
         for (SmaliFile smaliFile : smaliFiles) {
@@ -57,6 +82,11 @@ public class ClassManager {
         methodDescriptorToParameterTypes = new HashMap<String, List<String>>();
         methodDescriptorToTryBlocks = new HashMap<String, List<BuilderTryBlock>>();
         classNameToFieldNameAndType = new HashMap<String, List<String>>();
+        classNameToDexBuilder = new HashMap<String, DexBuilder>();
+        classNameToVirtualTargets = new HashMap<String, Map<String, String>>();
+        classNameToClassAncestors = new HashMap<String, Set<String>>();
+        classHierarchy = new ClassHierarchy(this);
+        unloadedClassNames = new HashSet<String>();
     }
 
     /**
@@ -88,6 +118,57 @@ public class ClassManager {
         return classNameToClassDef.get(className);
     }
 
+    /**
+     * Intern each non-framework class into its own dex builder rather than the shared one. This allows classes to be
+     * written out and unloaded individually. Must be called before any classes are loaded.
+     *
+     * @param apiLevel API level for each class's dex builder
+     */
+    public void useClassDexBuilders(int apiLevel) {
+        classDexBuilderApiLevel = apiLevel;
+    }
+
+    /**
+     * @param className
+     * @return dex builder the class was interned with
+     */
+    public DexBuilder getDexBuilder(String className) {
+        if (classDexBuilderApiLevel == 0) {
+            return dexBuilder;
+        }
+        dexifyClassIfNecessary(className);
+        if (unloadedClassNames.contains(className) || smaliFileFactory.isFrameworkClass(className)) {
+            return frameworkDexBuilder;
+        }
+
+        return classNameToDexBuilder.get(className);
+    }
+
+    /**
+     * Forget everything loaded for a class, including its dex builder if using per-class builders. If the class is
+     * needed again, it's loaded from the Smali file into a scratch builder which is never written out.
+     *
+     * @param className
+     */
+    public void unloadClass(String className) {
+        // Even if it was never loaded, so a later load doesn't create a builder which is never written or released.
+        unloadedClassNames.add(className);
+        classNameToDexBuilder.remove(className);
+        BuilderClassDef classDef = classNameToClassDef.remove(className);
+        if (classDef == null) {
+            return;
+        }
+
+        for (BuilderMethod method : classDef.getMethods()) {
+            String methodDescriptor = ReferenceUtil.getMethodDescriptor(method);
+            methodDescriptorToMethod.remove(methodDescriptor);
+            methodDescriptorToParameterTypes.remove(methodDescriptor);
+            methodDescriptorToTryBlocks.remove(methodDescriptor);
+        }
+        classNameToFieldNameAndType.remove(className);
+        classNameToVirtualTargets.remove(className);
+    }
+
     /**
      * Does not load any Smali files.
      *
@@ -134,6 +215,16 @@ public class ClassManager {
         return null;
     }
 
+    /**
+     * Does not load any Smali files.
+     *
+     * @param className
+     * @return Smali file for the class, or null if the class isn't local
+     */
+    public SmaliFile getSmaliFile(String className) {
+        return classNameToSmaliFile.get(className);
+    }
+
     public Set<String> getLoadedClassNames() {
         return classNameToClassDef.keySet();
     }
@@ -213,8 +304,32 @@ public class ClassManager {
         return methodDescriptorToTryBlocks.get(methodDescriptor);
     }
 
+    /**
+     * Find the method a virtual call resolves to by searching the class, then its interfaces and superclasses. Each
+     * class's virtual method table is filled in as signatures are resolved, so each lookup is only searched once.
+     *
+     * @param className       receiver type
+     * @param methodSignature
+     * @return descriptor of the implementing method, or null if it can't be found
+     */
+    public String getVirtualMethodTarget(String className, String methodSignature) {
+        Map<String, String> virtualTargets = classNameToVirtualTargets.get(className);
+        if (virtualTargets == null) {
+            virtualTargets = new HashMap<String, String>();
+            classNameToVirtualTargets.put(className, virtualTargets);
+        }
+        if (virtualTargets.containsKey(methodSignature)) {
+            return virtualTargets.get(methodSignature);
+        }
+
+        String target = findVirtualMethodTarget(className, methodSignature, new HashSet<String>());
+        virtualTargets.put(methodSignature, target);
+
+        return target;
+    }
+
     public boolean isFramework(String typeName) {
-        String className = typeName.split("->")[0];
+        String className = SymbolTable.getClassName(typeName);
 
         return smaliFileFactory.isFrameworkClass(className);
     }
@@ -247,7 +362,7 @@ public class ClassManager {
             baseTarget = SmaliClassUtils.javaClassToSmali(SmaliClassUtils.smaliPrimitiveToJavaWrapper(baseTarget));
         }
 
-        return isInstance(baseChild, baseTarget, new HashSet<String>());
+        return classHierarchy.isSubtype(baseChild, baseTarget);
     }
 
     /**
@@ -263,8 +378,7 @@ public class ClassManager {
      * @return true if {@link=isLocalClass} is true, and method is defined for class
      */
     public boolean isLocalMethod(String methodDescriptor) {
-        String[] parts = methodDescriptor.split("->");
-        String className = parts[0];
+        String className = SymbolTable.getClassName(methodDescriptor);
         if (!isLocalClass(className)) {
             return false;
         }
@@ -283,7 +397,7 @@ public class ClassManager {
     }
 
     public boolean isSafeFramework(String typeName) {
-        String className = typeName.split("->")[0];
+        String className = SymbolTable.getClassName(typeName);
 
         return smaliFileFactory.isSafeFrameworkClass(className);
     }
@@ -298,6 +412,84 @@ public class ClassManager {
         return null != method.getImplementation();
     }
 
+    private static boolean doesNonLocalMethodExist(String className, String methodSignature) {
+        Class<?> klazz = null;
+        try {
+            klazz = Class.forName(SmaliClassUtils.smaliClassToJava(className));
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+
+        StringBuilder sb = new StringBuilder(className);
+        sb.append("->").append(methodSignature);
+        List<String> paramList = Utils.getParameterTypes(sb.toString());
+        Class<?>[] params = new Class<?>[paramList.size()];
+        for (int i = 0; i < paramList.size(); i++) {
+            String paramName = paramList.get(i);
+            try {
+                if (SmaliClassUtils.isPrimitiveType(paramName)) {
+                    params[i] = SmaliClassUtils.getPrimitiveType(SmaliClassUtils.smaliClassToJava(paramName));
+                } else {
+                    params[i] = Class.forName(SmaliClassUtils.smaliClassToJava(paramName));
+                }
+            } catch (ClassNotFoundException e) {
+                return false;
+            }
+        }
+
+        String methodName = methodSignature.split("\\(")[0];
+        try {
+            klazz.getMethod(methodName, params);
+        } catch (NoSuchMethodException e) {
+            return false;
+        } catch (SecurityException e) {
+            return false;
+        }
+
+        return true;
+    }
+
+    private String findVirtualMethodTarget(String className, String methodSignature, Set<String> visited) {
+        visited.add(className);
+        StringBuilder sb = new StringBuilder(className);
+        sb.append("->").append(methodSignature);
+        String methodDescriptor = sb.toString();
+
+        boolean isLocalMethod = isLocalMethod(methodDescriptor);
+        if ((isLocalMethod && methodHasImplementation(methodDescriptor))) {
+            return methodDescriptor;
+        }
+
+        if (MethodReflector.isSafe(methodDescriptor) && doesNonLocalMethodExist(className, methodSignature)) {
+            return methodDescriptor;
+        }
+
+        if (!isLocalClass(className)) {
+            // Can't trace any further up.
+            // Note, also checked if this is white-listed Java API
+            return null;
+        }
+
+        BuilderClassDef classDef = getClass(className);
+        Set<String> parents = new HashSet<String>();
+        parents.addAll(classDef.getInterfaces());
+        if (null != classDef.getSuperclass()) {
+            parents.add(classDef.getSuperclass());
+        }
+
+        for (String parent : parents) {
+            if (visited.contains(parent)) {
+                continue;
+            }
+            String target = findVirtualMethodTarget(parent, methodSignature, visited);
+            if (null != target) {
+                return target;
+            }
+        }
+
+        return null;
+    }
+
     private void addFieldNameAndTypes(BuilderClassDef classDef) {
         String className = ReferenceUtil.getReferenceString(classDef);
         Collection<BuilderField> fields = classDef.getFields();
@@ -346,9 +538,81 @@ public class ClassManager {
         methodDescriptorToTryBlocks.put(methodDescriptor, implementation.getTryBlocks());
     }
 
+    /**
+     * Eagerly load every non-framework class which isn't already loaded. Files are parsed in parallel, but the parsed
+     * classes are interned into dex builders one at a time since builders are not thread safe. Only a few files per
+     * thread are parsed ahead of interning, so parse trees for every class are never held at once.
+     *
+     * @param threadCount
+     */
+    public void loadNonFrameworkClasses(int threadCount) {
+        List<String> classNames = new LinkedList<String>();
+        for (String className : getNonFrameworkClassNames()) {
+            if (!getLoadedClassNames().contains(className)) {
+                classNames.add(className);
+            }
+        }
+
+        int maxPending = threadCount * PARSED_FILES_PER_THREAD;
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            Deque<Future<ParsedSmaliFile>> pending = new ArrayDeque<Future<ParsedSmaliFile>>(maxPending);
+            Iterator<String> toParse = classNames.iterator();
+            for (String className : classNames) {
+                while (toParse.hasNext() && (pending.size() < maxPending)) {
+                    final SmaliFile smaliFile = classNameToSmaliFile.get(toParse.next());
+                    pending.add(executor.submit(new Callable<ParsedSmaliFile>() {
+                        @Override
+                        public ParsedSmaliFile call() throws Exception {
+                            return parse(smaliFile);
+                        }
+                    }));
+                }
+
+                BuilderClassDef classDef;
+                try {
+                    classDef = Dexifier.dexifyParsedSmaliFile(pending.poll().get(), getLoadingDexBuilder(className));
+                } catch (Exception e) {
+                    if (log.isErrorEnabled()) {
+                        log.error("Error while loading class " + className, e);
+                    }
+                    System.exit(-1);
+                    return;
+                }
+                addClass(className, classDef);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Use an on-disk cache of parsed Smali files. Only files which aren't in the cache are parsed.
+     *
+     * @param parseCache
+     */
+    public void setParseCache(SmaliParseCache parseCache) {
+        this.parseCache = parseCache;
+    }
+
+    private ParsedSmaliFile parse(SmaliFile smaliFile) throws Exception {
+        try (InputStream is = smaliFile.open()) {
+            if (parseCache != null) {
+                return parseCache.parse(smaliFile.getPath(), is);
+            }
+
+            return Dexifier.parseSmaliFile(smaliFile.getPath(), is);
+        }
+    }
+
+    private void addClass(String className, BuilderClassDef classDef) {
+        classNameToClassDef.put(className, classDef);
+        addMethods(classDef);
+        addFieldNameAndTypes(classDef);
+    }
+
     private void dexifyClassIfNecessary(String typeDescriptor) {
-        String[] parts = typeDescriptor.split("->");
-        String className = parts[0];
+        String className = SymbolTable.getClassName(typeDescriptor);
         if (getLoadedClassNames().contains(className)) {
             return;
         }
@@ -356,11 +620,7 @@ public class ClassManager {
         SmaliFile smaliFile = classNameToSmaliFile.get(className);
         BuilderClassDef classDef;
         try {
-            boolean isFramework = smaliFileFactory.isFrameworkClass(className);
-            InputStream is = smaliFile.open();
-            classDef = Dexifier
-                    .dexifySmaliFile(smaliFile.getPath(), is, isFramework ? frameworkDexBuilder : dexBuilder);
-            is.close();
+            classDef = Dexifier.dexifyParsedSmaliFile(parse(smaliFile), getLoadingDexBuilder(className));
         } catch (Exception e) {
             if (log.isErrorEnabled()) {
                 log.error("Error while loading class necessary for " + typeDescriptor, e);
@@ -369,9 +629,21 @@ public class ClassManager {
             return;
         }
 
-        classNameToClassDef.put(className, classDef);
-        addMethods(classDef);
-        addFieldNameAndTypes(classDef);
+        addClass(className, classDef);
+    }
+
+    private DexBuilder getLoadingDexBuilder(String className) {
+        if (smaliFileFactory.isFrameworkClass(className) || unloadedClassNames.contains(className)) {
+            return frameworkDexBuilder;
+        }
+        if (classDexBuilderApiLevel == 0) {
+            return dexBuilder;
+        }
+
+        DexBuilder classDexBuilder = DexBuilder.makeDexBuilder(classDexBuilderApiLevel);
+        classNameToDexBuilder.put(className, classDexBuilder);
+
+        return classDexBuilder;
     }
 
     Set<String> getAncestors(String className) throws UnknownAncestors {
@@ -402,7 +674,21 @@ public class ClassManager {
         return parents;
     }
 
+    /**
+     * @param className
+     * @return class and its superclasses, excluding interfaces; a copy the caller may modify
+     */
     Set<String> getClassAncestors(String className) {
+        Set<String> ancestors = classNameToClassAncestors.get(className);
+        if (ancestors == null) {
+            ancestors = buildClassAncestors(className);
+            classNameToClassAncestors.put(className, ancestors);
+        }
+
+        return new HashSet<String>(ancestors);
+    }
+
+    private Set<String> buildClassAncestors(String className) {
         Set<String> ancestors = new HashSet<String>();
         ancestors.add(className);
         String superClass = className;
@@ -417,26 +703,4 @@ public class ClassManager {
         return ancestors;
     }
 
-    private boolean isInstance(String childType, String targetType, Set<String> visited) throws UnknownAncestors {
-        if (childType.equals(targetType)) {
-            return true;
-        }
-
-        Set<String> parents = getAncestors(childType);
-        for (String parent : parents) {
-            if (visited.contains(parent)) {
-                continue;
-            }
-            visited.add(parent);
-
-            if (parent.equals(targetType)) {
-                return true;
-            } else if (isInstance(parent, targetType, visited)) {
-                return true;
-            }
-        }
-
-        return false;
-    }
-
 }
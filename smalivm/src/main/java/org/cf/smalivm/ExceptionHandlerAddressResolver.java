@@ -1,5 +1,9 @@
 package org.cf.smalivm;
 
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import org.cf.util.SmaliClassUtils;
 import org.jf.dexlib2.builder.BuilderTryBlock;
 import org.jf.dexlib2.iface.ExceptionHandler;
@@ -7,14 +11,43 @@ import org.jf.dexlib2.iface.TryBlock;
 
 import java.util.*;
 
+/**
+ * Finds the handler address for an exception thrown at an address. Try block ranges are split up front into segments
+ * of addresses covered by the same try blocks, and each segment knows its first handler for each exception type.
+ * Resolved addresses are remembered per exception class, so the resolver should be built once per method and reused.
+ */
 public class ExceptionHandlerAddressResolver {
 
+    private static final int NOT_RESOLVED = -2;
+
     private final ClassManager classManager;
-    private final List<BuilderTryBlock> tryBlocks;
+    // Segment i covers addresses from segmentStarts[i] up to, but not including, segmentStarts[i + 1]
+    private final int[] segmentStarts;
+    private final Segment[] segments;
+    private final Map<String, TIntIntMap> exceptionClassToAddressToHandler;
 
     ExceptionHandlerAddressResolver(ClassManager classManager, String methodDescriptor) {
         this.classManager = classManager;
-        tryBlocks = classManager.getTryBlocks(methodDescriptor);
+        List<BuilderTryBlock> tryBlocks = classManager.getTryBlocks(methodDescriptor);
+        if (tryBlocks == null) {
+            tryBlocks = Collections.emptyList();
+        }
+
+        SortedSet<Integer> boundaries = new TreeSet<Integer>();
+        for (TryBlock<? extends ExceptionHandler> tryBlock : tryBlocks) {
+            boundaries.add(tryBlock.getStartCodeAddress());
+            // End is inclusive.
+            boundaries.add(tryBlock.getStartCodeAddress() + tryBlock.getCodeUnitCount() + 1);
+        }
+        segmentStarts = new int[boundaries.size()];
+        segments = new Segment[boundaries.size()];
+        int i = 0;
+        for (int start : boundaries) {
+            segmentStarts[i] = start;
+            segments[i] = new Segment(start, tryBlocks);
+            i++;
+        }
+        exceptionClassToAddressToHandler = new HashMap<String, TIntIntMap>();
     }
 
     @Deprecated
@@ -27,13 +60,65 @@ public class ExceptionHandlerAddressResolver {
         return resolve(vex.getExceptionClass(), address);
     }
 
+    private Segment getSegment(int address) {
+        int index = Arrays.binarySearch(segmentStarts, address);
+        if (index < 0) {
+            // Insertion point is one past the segment containing the address.
+            index = -index - 2;
+        }
+
+        return index < 0 ? null : segments[index];
+    }
+
     private int resolve(String exceptionClass, int address) {
+        TIntIntMap addressToHandler = exceptionClassToAddressToHandler.get(exceptionClass);
+        if (addressToHandler == null) {
+            addressToHandler = new TIntIntHashMap(8, 0.5f, -1, NOT_RESOLVED);
+            exceptionClassToAddressToHandler.put(exceptionClass, addressToHandler);
+        }
+        int handlerAddress = addressToHandler.get(address);
+        if (handlerAddress == NOT_RESOLVED) {
+            handlerAddress = findHandler(exceptionClass, getSegment(address));
+            addressToHandler.put(address, handlerAddress);
+        }
+
+        return handlerAddress;
+    }
+
+    private int findHandler(String exceptionClass, Segment segment) {
+        if ((segment == null) || segment.isEmpty()) {
+            return -1;
+        }
+
         Deque<String> classAncestors = new ArrayDeque<String>();
         classAncestors.add(exceptionClass);
         Set<String> visited = new HashSet<String>();
 
         String currentExceptionClass;
         while ((currentExceptionClass = classAncestors.poll()) != null) {
+            int handlerAddress = segment.exceptionTypeToHandler.get(currentExceptionClass);
+            if (handlerAddress != -1) {
+                return handlerAddress;
+            }
+
+            visited.add(currentExceptionClass);
+            Set<String> ancestors = classManager.getClassAncestors(currentExceptionClass);
+            ancestors.removeAll(visited);
+            classAncestors.addAll(ancestors);
+        }
+
+        // Not caught by anything. Look for a catch-all / finally.
+        return segment.catchAllHandler;
+    }
+
+    private static class Segment {
+
+        // First matching handler for each type, in try block and handler order
+        private final TObjectIntMap<String> exceptionTypeToHandler;
+        private int catchAllHandler = -1;
+
+        private Segment(int address, List<BuilderTryBlock> tryBlocks) {
+            exceptionTypeToHandler = new TObjectIntHashMap<String>(4, 0.5f, -1);
             for (TryBlock<? extends ExceptionHandler> tryBlock : tryBlocks) {
                 if ((address < tryBlock.getStartCodeAddress()) || (address > (tryBlock.getStartCodeAddress() + tryBlock
                         .getCodeUnitCount()))) {
@@ -42,42 +127,27 @@ public class ExceptionHandlerAddressResolver {
                 }
 
                 List<? extends ExceptionHandler> handlers = tryBlock.getExceptionHandlers();
+                if (handlers.isEmpty()) {
+                    continue;
+                }
                 for (ExceptionHandler handler : handlers) {
                     String handlerType = handler.getExceptionType();
-                    if (currentExceptionClass.equals(handlerType)) {
-                        int handlerAddress = handler.getHandlerCodeAddress();
-
-                        return handlerAddress;
+                    if ((handlerType != null) && !exceptionTypeToHandler.containsKey(handlerType)) {
+                        exceptionTypeToHandler.put(handlerType, handler.getHandlerCodeAddress());
                     }
                 }
-            }
-
-            visited.add(currentExceptionClass);
-            Set<String> ancestors = classManager.getClassAncestors(currentExceptionClass);
-            ancestors.removeAll(visited);
-            classAncestors.addAll(ancestors);
-        }
-
-        // Not caught by anything. Look for a catch-all / finally.
-        for (TryBlock<? extends ExceptionHandler> tryBlock : tryBlocks) {
-            if ((address < tryBlock.getStartCodeAddress()) || (address > (tryBlock.getStartCodeAddress() + tryBlock
-                    .getCodeUnitCount()))) {
-                // address is not inside of this try/catch
-                continue;
-            }
-
-            List<? extends ExceptionHandler> handlers = tryBlock.getExceptionHandlers();
-            ExceptionHandler handler = handlers.get(handlers.size() - 1);
-            if (null == handler.getExceptionType()) {
-                // catch-all
-                int handlerAddress = handler.getHandlerCodeAddress();
 
-                return handlerAddress;
+                ExceptionHandler handler = handlers.get(handlers.size() - 1);
+                if ((catchAllHandler == -1) && (null == handler.getExceptionType())) {
+                    catchAllHandler = handler.getHandlerCodeAddress();
+                }
             }
+        }
 
+        private boolean isEmpty() {
+            return exceptionTypeToHandler.isEmpty() && (catchAllHandler == -1);
         }
 
-        return -1;
     }
 
 }
@@ -0,0 +1,177 @@
+package org.cf.smalivm;
+
+import org.cf.smalivm.context.ExecutionGraph;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of template execution graphs. Each graph is weighted by its instruction count. When the
+ * total weight exceeds the maximum, the least recently used graphs are evicted. Evicted graphs are rebuilt on demand.
+ */
+public class ExecutionGraphCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ExecutionGraphCache.class.getSimpleName());
+
+    private final LinkedHashMap<BuilderMethod, Entry> methodToEntry;
+    private final int maxWeight;
+
+    private long evictions;
+    private long hits;
+    private long misses;
+    private long residentWeight;
+
+    /**
+     * @param maxWeight maximum total instruction count of all cached graphs, or 0 for no limit
+     */
+    public ExecutionGraphCache(int maxWeight) {
+        this.maxWeight = maxWeight;
+        methodToEntry = new LinkedHashMap<BuilderMethod, Entry>(16, 0.75f, true);
+    }
+
+    public boolean containsKey(BuilderMethod method) {
+        return methodToEntry.containsKey(method);
+    }
+
+    /**
+     * @param method
+     * @return cached template graph, or null if not cached
+     */
+    public ExecutionGraph get(BuilderMethod method) {
+        Entry entry = methodToEntry.get(method);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+
+        return entry.graph;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    public double getHitRate() {
+        long lookups = hits + misses;
+        if (lookups == 0) {
+            return 0;
+        }
+
+        return (double) hits / lookups;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public int getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return total instruction count of all cached graphs
+     */
+    public long getResidentWeight() {
+        return residentWeight;
+    }
+
+    public int size() {
+        return methodToEntry.size();
+    }
+
+    /**
+     * Add or replace a graph. This may evict other graphs, but never the one being added.
+     *
+     * @param method
+     * @param graph
+     */
+    public void put(BuilderMethod method, ExecutionGraph graph) {
+        Entry entry = new Entry(graph);
+        Entry previous = methodToEntry.put(method, entry);
+        if (previous != null) {
+            residentWeight -= previous.weight;
+        }
+        residentWeight += entry.weight;
+
+        if (maxWeight > 0) {
+            evict(method);
+        }
+    }
+
+    public void remove(BuilderMethod method) {
+        Entry entry = methodToEntry.remove(method);
+        if (entry != null) {
+            residentWeight -= entry.weight;
+        }
+    }
+
+    /**
+     * Remove graphs for every method of a class.
+     *
+     * @param className
+     */
+    public void removeClass(String className) {
+        Iterator<Map.Entry<BuilderMethod, Entry>> it = methodToEntry.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<BuilderMethod, Entry> entry = it.next();
+            if (className.equals(entry.getKey().getDefiningClass())) {
+                residentWeight -= entry.getValue().weight;
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Template graphs: ");
+        sb.append(size()).append(" resident, ");
+        sb.append(residentWeight).append(" instructions");
+        if (maxWeight > 0) {
+            sb.append(" of ").append(maxWeight).append(" max");
+        }
+        sb.append(", hit rate=").append(String.format("%.2f", getHitRate() * 100)).append('%');
+        sb.append(" (hits=").append(hits).append(", misses=").append(misses).append(')');
+        sb.append(", evictions=").append(evictions);
+
+        return sb.toString();
+    }
+
+    private void evict(BuilderMethod keep) {
+        Iterator<Map.Entry<BuilderMethod, Entry>> it = methodToEntry.entrySet().iterator();
+        while ((residentWeight > maxWeight) && it.hasNext()) {
+            Map.Entry<BuilderMethod, Entry> entry = it.next();
+            if (entry.getKey() == keep) {
+                continue;
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Evicting template graph for " + entry.getValue().graph.getMethodDescriptor());
+            }
+            residentWeight -= entry.getValue().weight;
+            it.remove();
+            evictions++;
+        }
+    }
+
+    private static class Entry {
+
+        private final ExecutionGraph graph;
+        private final int weight;
+
+        private Entry(ExecutionGraph graph) {
+            this.graph = graph;
+            weight = graph.getAddresses().length;
+        }
+
+    }
+
+}
@@ -0,0 +1,247 @@
+package org.cf.smalivm;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.ExecutionNode;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Decides which node the method executor visits next. Order doesn't matter when every path is explored, but it decides
+ * what gets explored when a visit limit or budget is hit.
+ */
+public abstract class ExecutionWorklist {
+
+    /**
+     * @param strategy
+     * @param addressToVisitCount     visits so far, updated by the executor
+     * @param addressToReturnDistance distances from {@link #buildReturnDistances(ExecutionGraph)}, only used by
+     *                                {@link Strategy#SHORTEST_RETURN}
+     * @return empty worklist
+     */
+    static ExecutionWorklist create(Strategy strategy, TIntIntMap addressToVisitCount,
+                                    TIntIntMap addressToReturnDistance) {
+        switch (strategy) {
+            case DFS:
+                return new DepthFirstWorklist();
+            case COVERAGE:
+                return new CoverageWorklist(addressToVisitCount);
+            case SHORTEST_RETURN:
+                return new ShortestReturnWorklist(addressToReturnDistance);
+            case BFS:
+            default:
+                return new BreadthFirstWorklist();
+        }
+    }
+
+    /**
+     * Breadth first search backwards from every address without children, i.e. returns and throws. Only normal
+     * control flow is followed. Exception edges into handlers are ignored, so an address which can only reach a return
+     * by throwing has no distance. The result only depends on the instructions, so it can be reused for every
+     * execution of the same template.
+     *
+     * @param graph
+     * @return distance to the closest return or throw for each address, or {@link Integer#MAX_VALUE} if there isn't one
+     */
+    static TIntIntMap buildReturnDistances(ExecutionGraph graph) {
+        TIntObjectMap<TIntList> addressToParents = new TIntObjectHashMap<TIntList>();
+        TIntList frontier = new TIntArrayList();
+        for (int address : graph.getAddresses()) {
+            int[] children = graph.getTemplateNode(address).getOp().getChildren();
+            if (children.length == 0) {
+                frontier.add(address);
+            }
+            for (int child : children) {
+                TIntList parents = addressToParents.get(child);
+                if (parents == null) {
+                    parents = new TIntArrayList(1);
+                    addressToParents.put(child, parents);
+                }
+                parents.add(address);
+            }
+        }
+
+        TIntIntMap result = new TIntIntHashMap(frontier.size() * 4, 0.5f, -1, Integer.MAX_VALUE);
+        int distance = 0;
+        while (!frontier.isEmpty()) {
+            TIntList nextFrontier = new TIntArrayList();
+            for (int address : frontier.toArray()) {
+                if (result.containsKey(address)) {
+                    continue;
+                }
+                result.put(address, distance);
+                TIntList parents = addressToParents.get(address);
+                if (parents != null) {
+                    nextFrontier.addAll(parents);
+                }
+            }
+            frontier = nextFrontier;
+            distance++;
+        }
+
+        return result;
+    }
+
+    public void addAll(List<ExecutionNode> nodes) {
+        for (ExecutionNode node : nodes) {
+            add(node);
+        }
+    }
+
+    public abstract void add(ExecutionNode node);
+
+    /**
+     * @return next node to execute, or null if empty
+     */
+    public abstract ExecutionNode poll();
+
+    public enum Strategy {
+        /**
+         * Visit nodes in the order they're spawned.
+         */
+        BFS,
+        /**
+         * Follow each path as far as possible before backtracking.
+         */
+        DFS,
+        /**
+         * Prefer nodes at the least visited addresses, so one loop can't starve the rest of the method.
+         */
+        COVERAGE,
+        /**
+         * Prefer nodes closest to a return or throw, so terminating addresses are reached even if limits are hit.
+         * Distances ignore exception edges.
+         */
+        SHORTEST_RETURN
+    }
+
+    private static class BreadthFirstWorklist extends ExecutionWorklist {
+
+        private final Deque<ExecutionNode> nodes = new ArrayDeque<ExecutionNode>();
+
+        @Override
+        public void add(ExecutionNode node) {
+            nodes.addLast(node);
+        }
+
+        @Override
+        public ExecutionNode poll() {
+            return nodes.pollFirst();
+        }
+
+    }
+
+    private static class DepthFirstWorklist extends ExecutionWorklist {
+
+        private final Deque<ExecutionNode> nodes = new ArrayDeque<ExecutionNode>();
+
+        @Override
+        public void addAll(List<ExecutionNode> children) {
+            // Push in reverse so the first child is visited first.
+            for (int i = children.size() - 1; i >= 0; i--) {
+                add(children.get(i));
+            }
+        }
+
+        @Override
+        public void add(ExecutionNode node) {
+            nodes.push(node);
+        }
+
+        @Override
+        public ExecutionNode poll() {
+            return nodes.poll();
+        }
+
+    }
+
+    /*
+     * Nodes with equal priority are visited in the order they were added.
+     */
+    private static abstract class PriorityWorklist extends ExecutionWorklist {
+
+        private final PriorityQueue<Entry> entries = new PriorityQueue<Entry>();
+        private long sequence;
+
+        @Override
+        public void add(ExecutionNode node) {
+            entries.add(new Entry(node, getPriority(node), sequence++));
+        }
+
+        @Override
+        public ExecutionNode poll() {
+            Entry entry = entries.poll();
+
+            return entry == null ? null : entry.node;
+        }
+
+        /**
+         * @return priority, lower is visited first
+         */
+        protected abstract int getPriority(ExecutionNode node);
+
+        private static class Entry implements Comparable<Entry> {
+
+            private final ExecutionNode node;
+            private final int priority;
+            private final long sequence;
+
+            private Entry(ExecutionNode node, int priority, long sequence) {
+                this.node = node;
+                this.priority = priority;
+                this.sequence = sequence;
+            }
+
+            @Override
+            public int compareTo(Entry other) {
+                if (priority != other.priority) {
+                    return priority < other.priority ? -1 : 1;
+                }
+
+                return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+            }
+
+        }
+
+    }
+
+    private static class CoverageWorklist extends PriorityWorklist {
+
+        private final TIntIntMap addressToVisitCount;
+
+        private CoverageWorklist(TIntIntMap addressToVisitCount) {
+            this.addressToVisitCount = addressToVisitCount;
+        }
+
+        @Override
+        protected int getPriority(ExecutionNode node) {
+            return addressToVisitCount.get(node.getAddress());
+        }
+
+    }
+
+    private static class ShortestReturnWorklist extends PriorityWorklist {
+
+        private final TIntIntMap addressToDistance;
+
+        private ShortestReturnWorklist(TIntIntMap addressToDistance) {
+            this.addressToDistance = addressToDistance;
+        }
+
+        @Override
+        protected int getPriority(ExecutionNode node) {
+            // Addresses which can't reach a return without an exception, e.g. infinite loops, go last.
+            return addressToDistance.get(node.getAddress());
+        }
+
+    }
+
+}
@@ -0,0 +1,292 @@
+package org.cf.smalivm;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.cf.smalivm.context.ExecutionNode;
+import org.cf.smalivm.context.HeapItem;
+import org.cf.util.Utils;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.iface.instruction.NarrowLiteralInstruction;
+import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.TwoRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.formats.Instruction21t;
+import org.jf.dexlib2.iface.instruction.formats.Instruction22t;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Per address visit limits derived from the loops of a method. Loops are found from backward branches, and a loop's
+ * trip count is estimated from its induction variable, i.e. a register which is only changed in the loop by adding a
+ * literal and is compared against a register the loop never changes.
+ * <p>
+ * Each time a loop is entered, the induction variable and bound are read when the loop test is first visited. Loops
+ * with a known trip count get a few times that many visits, to leave room for branching in the body. Loops whose
+ * induction variable or bound is unknown will never exit on their own, so they get a small fixed budget. All other
+ * addresses, and loops without a recognizable induction variable, are only limited by the global maximum.
+ */
+class LoopVisitLimits {
+
+    private static final int TRIP_MULTIPLIER = 4;
+    private static final int TRIP_SLACK = 16;
+
+    private final List<Loop> loops;
+    // Innermost loop containing each address
+    private final TIntIntMap addressToLoop;
+
+    private LoopVisitLimits(List<Loop> loops, TIntIntMap addressToLoop) {
+        this.loops = loops;
+        this.addressToLoop = addressToLoop;
+    }
+
+    static LoopVisitLimits build(MutableMethodImplementation implementation) {
+        List<BuilderInstruction> instructions = implementation.getInstructions();
+        List<Loop> loops = findLoops(instructions);
+        TIntIntMap addressToLoop = new TIntIntHashMap(instructions.size(), 0.5f, -1, -1);
+        for (BuilderInstruction instruction : instructions) {
+            int address = instruction.getLocation().getCodeAddress();
+            int innermost = -1;
+            for (int i = 0; i < loops.size(); i++) {
+                Loop loop = loops.get(i);
+                if (loop.contains(address) && ((innermost == -1) || (loop.size() < loops.get(innermost).size()))) {
+                    innermost = i;
+                }
+            }
+            if (innermost != -1) {
+                addressToLoop.put(address, innermost);
+            }
+        }
+        for (Loop loop : loops) {
+            findTest(loop, instructions);
+        }
+
+        return new LoopVisitLimits(loops, addressToLoop);
+    }
+
+    private static boolean isBranch(Opcode op) {
+        return op.name.startsWith("goto") || op.name.startsWith("if-");
+    }
+
+    private static List<Loop> findLoops(List<BuilderInstruction> instructions) {
+        List<Loop> loops = new ArrayList<Loop>();
+        for (BuilderInstruction instruction : instructions) {
+            if (!isBranch(instruction.getOpcode())) {
+                continue;
+            }
+            int address = instruction.getLocation().getCodeAddress();
+            int target = address + ((OffsetInstruction) instruction).getCodeOffset();
+            if (target > address) {
+                continue;
+            }
+
+            // Every backward branch to the same header is part of the same loop.
+            int end = address + instruction.getCodeUnits();
+            Loop loop = null;
+            for (Loop other : loops) {
+                if (other.start == target) {
+                    loop = other;
+                    break;
+                }
+            }
+            if (loop == null) {
+                loops.add(new Loop(target, end));
+            } else if (end > loop.end) {
+                loop.end = end;
+            }
+        }
+
+        return loops;
+    }
+
+    /*
+     * Find a branch which exits the loop by comparing an induction variable with an invariant bound.
+     */
+    private static void findTest(Loop loop, List<BuilderInstruction> instructions) {
+        TIntIntMap registerToWrites = new TIntIntHashMap();
+        TIntIntMap registerToStep = new TIntIntHashMap();
+        for (BuilderInstruction instruction : instructions) {
+            int address = instruction.getLocation().getCodeAddress();
+            Opcode op = instruction.getOpcode();
+            if (!loop.contains(address) || !op.setsRegister()) {
+                continue;
+            }
+            int register = ((OneRegisterInstruction) instruction).getRegisterA();
+            registerToWrites.adjustOrPutValue(register, 1, 1);
+            if (op.setsWideRegister()) {
+                registerToWrites.adjustOrPutValue(register + 1, 1, 1);
+            }
+            boolean isAddLiteral = (op == Opcode.ADD_INT_LIT8) || (op == Opcode.ADD_INT_LIT16);
+            if (isAddLiteral && (register == ((TwoRegisterInstruction) instruction).getRegisterB())) {
+                registerToStep.put(register, ((NarrowLiteralInstruction) instruction).getNarrowLiteral());
+            }
+        }
+
+        for (BuilderInstruction instruction : instructions) {
+            int address = instruction.getLocation().getCodeAddress();
+            if (!loop.contains(address) || !instruction.getOpcode().name.startsWith("if-")) {
+                continue;
+            }
+            int target = address + ((OffsetInstruction) instruction).getCodeOffset();
+            int next = address + instruction.getCodeUnits();
+            if (loop.contains(target) && loop.contains(next)) {
+                continue;
+            }
+
+            int register1 = ((OneRegisterInstruction) instruction).getRegisterA();
+            if (instruction instanceof Instruction21t) {
+                if (isInduction(register1, registerToWrites, registerToStep)) {
+                    loop.setTest(address, register1, -1, registerToStep.get(register1));
+                    return;
+                }
+            } else if (instruction instanceof Instruction22t) {
+                int register2 = ((Instruction22t) instruction).getRegisterB();
+                if (isInduction(register1, registerToWrites, registerToStep) && !registerToWrites.containsKey(
+                        register2)) {
+                    loop.setTest(address, register1, register2, registerToStep.get(register1));
+                    return;
+                } else if (isInduction(register2, registerToWrites, registerToStep) && !registerToWrites
+                        .containsKey(register1)) {
+                    loop.setTest(address, register2, register1, registerToStep.get(register2));
+                    return;
+                }
+            }
+        }
+    }
+
+    private static boolean isInduction(int register, TIntIntMap registerToWrites, TIntIntMap registerToStep) {
+        return registerToStep.containsKey(register) && (registerToWrites.get(register) == 1) && (registerToStep
+                .get(register) != 0);
+    }
+
+    private static Integer getIntegerValue(HeapItem item) {
+        if ((item == null) || item.isUnknown()) {
+            return null;
+        }
+        Object value = item.getValue();
+        if ((value instanceof Number) || (value instanceof Character) || (value instanceof Boolean)) {
+            return Utils.getIntegerValue(value);
+        }
+
+        return null;
+    }
+
+    /**
+     * @param maxAddressVisits     hard ceiling for any address
+     * @param maxUnknownLoopVisits visits allowed each time a loop with an unknown trip count is entered
+     * @return limits for one execution of the method
+     */
+    Budget newBudget(int maxAddressVisits, int maxUnknownLoopVisits) {
+        return new Budget(maxAddressVisits, maxUnknownLoopVisits);
+    }
+
+    private static class Loop {
+
+        private final int start;
+        private int end;
+        private int testAddress = -1;
+        private int inductionRegister;
+        // -1 if compared to zero
+        private int boundRegister;
+        private int step;
+
+        private Loop(int start, int end) {
+            this.start = start;
+            this.end = end;
+        }
+
+        private boolean contains(int address) {
+            return (start <= address) && (address < end);
+        }
+
+        private int size() {
+            return end - start;
+        }
+
+        private void setTest(int testAddress, int inductionRegister, int boundRegister, int step) {
+            this.testAddress = testAddress;
+            this.inductionRegister = inductionRegister;
+            this.boundRegister = boundRegister;
+            this.step = step;
+        }
+
+    }
+
+    class Budget {
+
+        private final int maxAddressVisits;
+        private final int maxUnknownLoopVisits;
+        private final int[] loopToAllowance;
+        private final boolean[] loopToEntered;
+
+        private Budget(int maxAddressVisits, int maxUnknownLoopVisits) {
+            this.maxAddressVisits = maxAddressVisits;
+            this.maxUnknownLoopVisits = maxUnknownLoopVisits;
+            loopToAllowance = new int[loops.size()];
+            loopToEntered = new boolean[loops.size()];
+        }
+
+        /**
+         * @param address
+         * @return maximum visits for the address
+         */
+        int getMaxVisits(int address) {
+            int index = addressToLoop.get(address);
+            if ((index == -1) || (loopToAllowance[index] == 0)) {
+                return maxAddressVisits;
+            }
+
+            return Math.min(maxAddressVisits, loopToAllowance[index]);
+        }
+
+        /**
+         * Update loop allowances. Call before the node is executed.
+         *
+         * @param node
+         */
+        void visit(ExecutionNode node) {
+            int address = node.getAddress();
+            ExecutionNode parent = node.getParent();
+            for (int i = 0; i < loops.size(); i++) {
+                Loop loop = loops.get(i);
+                if (!loop.contains(address)) {
+                    continue;
+                }
+                if ((parent == null) || !loop.contains(parent.getAddress())) {
+                    loopToEntered[i] = true;
+                }
+                if ((address == loop.testAddress) && loopToEntered[i]) {
+                    loopToEntered[i] = false;
+                    int allowance = estimateVisits(loop, node);
+                    // Saturate instead of overflowing when a long running loop is entered many times.
+                    loopToAllowance[i] = (int) Math.min(Integer.MAX_VALUE, (long) loopToAllowance[i] + allowance);
+                }
+            }
+        }
+
+        private int estimateVisits(Loop loop, ExecutionNode node) {
+            HeapItem inductionItem = node.getContext().getMethodState().peekRegister(loop.inductionRegister);
+            Integer induction = getIntegerValue(inductionItem);
+            Integer bound = 0;
+            if (loop.boundRegister != -1) {
+                bound = getIntegerValue(node.getContext().getMethodState().peekRegister(loop.boundRegister));
+            }
+            if ((induction == null) || (bound == null)) {
+                return maxUnknownLoopVisits;
+            }
+
+            long distance = (long) bound - induction;
+            if ((distance != 0) && ((distance > 0) != (loop.step > 0))) {
+                // Moving away from the bound. Only overflow ends this loop, if anything does.
+                return maxAddressVisits;
+            }
+            long trips = (Math.abs(distance) + Math.abs(loop.step) - 1) / Math.abs(loop.step) + 1;
+
+            return (int) Math.min(maxAddressVisits, trips * TRIP_MULTIPLIER + TRIP_SLACK);
+        }
+
+    }
+
+}
@@ -9,21 +9,48 @@ import org.cf.smalivm.exception.MaxCallDepthExceeded;
 import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
 import org.cf.smalivm.exception.UnhandledVirtualException;
 import org.cf.smalivm.opcode.Op;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayDeque;
-import java.util.Deque;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 public class MethodExecutor {
 
     private static Logger log = LoggerFactory.getLogger(MethodExecutor.class.getSimpleName());
 
+    // Checking the clock and allocation counter on every visit is wasteful.
+    private static final int BUDGET_CHECK_INTERVAL = 64;
+    private static final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+
     private final ClassManager classManager;
-    private final int maxCallDepth;
-    private final int maxAddressVisits;
-    private final int maxMethodVisits;
+    private int maxCallDepth;
+    private int maxAddressVisits;
+    private int maxMethodVisits;
     private int totalVisits;
+    private int limitsExceededCount;
+    private boolean allowPartialGraphs;
+    private ExecutionWorklist.Strategy worklistStrategy = ExecutionWorklist.Strategy.BFS;
+    private boolean adaptiveVisitLimits;
+    private int maxUnknownLoopVisits;
+    // Keyed by template graph so these are rebuilt along with the graph when a method changes.
+    private final Map<ExecutionGraph, LoopVisitLimits> templateToLoopLimits = new WeakHashMap<ExecutionGraph,
+            LoopVisitLimits>();
+    private final Map<ExecutionGraph, ExceptionHandlerAddressResolver> templateToExceptionResolver = new
+            WeakHashMap<ExecutionGraph, ExceptionHandlerAddressResolver>();
+    private final Map<ExecutionGraph, TIntIntMap> templateToReturnDistances = new WeakHashMap<ExecutionGraph,
+            TIntIntMap>();
+    private long maxExecutionMillis;
+    private long maxAllocatedBytes;
+    private String rootMethodDescriptor;
+    private long rootStartNanos;
+    private long rootStartAllocatedBytes;
+    private boolean isOverBudget;
+    private int budgetsExceededCount;
 
     MethodExecutor(ClassManager classManager, int maxCallDepth, int maxAddressVisits, int maxMethodVisits) {
         this.classManager = classManager;
@@ -33,6 +60,17 @@ public class MethodExecutor {
         totalVisits = 0;
     }
 
+    private static long getAllocatedBytes() {
+        if (threadBean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunThreadBean = (com.sun.management.ThreadMXBean) threadBean;
+            if (sunThreadBean.isThreadAllocatedMemorySupported() && sunThreadBean.isThreadAllocatedMemoryEnabled()) {
+                return sunThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        }
+
+        return -1;
+    }
+
     private static void spawnChild(ExecutionGraph graph, ExecutionNode parentNode, int childAddress) {
         Op childOp = graph.getTemplateNode(childAddress).getOp();
         ExecutionNode childNode = parentNode.spawnChild(childOp);
@@ -79,6 +117,64 @@ public class MethodExecutor {
         }
     }
 
+    /**
+     * @return number of times any limit was exceeded, including in callees whose exceptions were handled
+     */
+    int getLimitsExceededCount() {
+        return limitsExceededCount;
+    }
+
+    /**
+     * @param allowPartialGraphs if true, stop exploring only the path which exceeded a visit limit and return a partial
+     *                           graph instead of throwing
+     */
+    void setAllowPartialGraphs(boolean allowPartialGraphs) {
+        this.allowPartialGraphs = allowPartialGraphs;
+    }
+
+    /**
+     * @return number of root executions stopped early because of time or allocation budgets
+     */
+    int getBudgetsExceededCount() {
+        return budgetsExceededCount;
+    }
+
+    /**
+     * Budgets apply to a root method execution, including all callees. When one is exceeded, nothing else is executed
+     * and partial graphs are returned.
+     *
+     * @param maxExecutionMillis wall clock time, or 0 for no limit
+     * @param maxAllocatedBytes  bytes allocated by the executing thread, or 0 for no limit
+     */
+    void setBudgets(long maxExecutionMillis, long maxAllocatedBytes) {
+        this.maxExecutionMillis = maxExecutionMillis;
+        this.maxAllocatedBytes = maxAllocatedBytes;
+        if ((maxAllocatedBytes > 0) && (getAllocatedBytes() < 0) && log.isWarnEnabled()) {
+            log.warn("Thread allocation counting isn't supported by this JVM. Allocation budget will be ignored.");
+        }
+    }
+
+    /**
+     * Derive per address visit limits from loops. The maximum address visits still applies to every address.
+     *
+     * @param adaptiveVisitLimits
+     * @param maxUnknownLoopVisits visits allowed each time a loop with an unknown trip count is entered
+     */
+    void setAdaptiveVisitLimits(boolean adaptiveVisitLimits, int maxUnknownLoopVisits) {
+        this.adaptiveVisitLimits = adaptiveVisitLimits;
+        this.maxUnknownLoopVisits = maxUnknownLoopVisits;
+    }
+
+    void setWorklistStrategy(ExecutionWorklist.Strategy worklistStrategy) {
+        this.worklistStrategy = worklistStrategy;
+    }
+
+    void setLimits(int maxCallDepth, int maxAddressVisits, int maxMethodVisits) {
+        this.maxCallDepth = maxCallDepth;
+        this.maxAddressVisits = maxAddressVisits;
+        this.maxMethodVisits = maxMethodVisits;
+    }
+
     private void resetTotalVisits() {
         totalVisits = 0;
     }
@@ -91,8 +187,7 @@ public class MethodExecutor {
             MaxMethodVisitsExceeded, UnhandledVirtualException {
         TIntIntMap addressToVisitCount = new TIntIntHashMap();
         String methodDescriptor = graph.getMethodDescriptor();
-        ExceptionHandlerAddressResolver exceptionResolver = new ExceptionHandlerAddressResolver(classManager,
-                methodDescriptor);
+        ExceptionHandlerAddressResolver exceptionResolver = getExceptionResolver(graph);
 
         ExecutionNode currentNode = graph.getRoot();
         int callDepth = currentNode.getCallDepth();
@@ -100,19 +195,48 @@ public class MethodExecutor {
             log.info("Executing {}, depth={}", methodDescriptor, callDepth);
         }
         if (currentNode.getCallDepth() > getMaxCallDepth()) {
+            limitsExceededCount++;
             throw new MaxCallDepthExceeded(methodDescriptor);
         }
 
         if (callDepth == 0) {
             // This is a new root method.
             resetTotalVisits();
+            startBudgets(methodDescriptor);
         }
 
-        Deque<ExecutionNode> executeStack = new ArrayDeque<ExecutionNode>();
-        executeStack.push(currentNode);
-        while ((currentNode = executeStack.poll()) != null) {
+        LoopVisitLimits.Budget loopBudget = null;
+        if (adaptiveVisitLimits) {
+            loopBudget = getLoopVisitLimits(graph).newBudget(getMaxAddressVisits(), maxUnknownLoopVisits);
+        }
+        TIntIntMap addressToReturnDistance = null;
+        if (worklistStrategy == ExecutionWorklist.Strategy.SHORTEST_RETURN) {
+            addressToReturnDistance = getReturnDistances(graph);
+        }
+        ExecutionWorklist worklist = ExecutionWorklist.create(worklistStrategy, addressToVisitCount,
+                addressToReturnDistance);
+        worklist.add(currentNode);
+        while ((currentNode = worklist.poll()) != null) {
             totalVisits += 1;
-            checkMaxVisits(currentNode, methodDescriptor, addressToVisitCount);
+            if (checkBudgets(currentNode, callDepth)) {
+                graph.truncate(currentNode);
+                continue;
+            }
+            try {
+                if (loopBudget != null) {
+                    loopBudget.visit(currentNode);
+                }
+                checkMaxVisits(currentNode, methodDescriptor, addressToVisitCount, loopBudget);
+            } catch (MaxAddressVisitsExceeded | MaxMethodVisitsExceeded e) {
+                if (!allowPartialGraphs) {
+                    throw e;
+                }
+                if (log.isWarnEnabled()) {
+                    log.warn("{}, not exploring further from this node", e.getMessage());
+                }
+                graph.truncate(currentNode);
+                continue;
+            }
 
             try {
                 currentNode.execute();
@@ -129,12 +253,62 @@ public class MethodExecutor {
             spawnChildren(graph, currentNode);
             spawnExceptionChildren(graph, currentNode, exceptionResolver);
 
-            executeStack.addAll(currentNode.getChildren());
+            worklist.addAll(currentNode.getChildren());
         }
 
         return graph;
     }
 
+    private void startBudgets(String methodDescriptor) {
+        rootMethodDescriptor = methodDescriptor;
+        isOverBudget = false;
+        rootStartNanos = System.nanoTime();
+        rootStartAllocatedBytes = maxAllocatedBytes > 0 ? getAllocatedBytes() : -1;
+    }
+
+    /*
+     * Returns true if the root execution is over budget and the node shouldn't be executed.
+     */
+    private boolean checkBudgets(ExecutionNode node, int callDepth) {
+        if (isOverBudget) {
+            return true;
+        }
+        if (((maxExecutionMillis == 0) && (maxAllocatedBytes == 0)) || ((totalVisits % BUDGET_CHECK_INTERVAL) != 0)) {
+            return false;
+        }
+
+        long elapsedMillis = (System.nanoTime() - rootStartNanos) / 1_000_000;
+        long allocatedBytes = -1;
+        if (rootStartAllocatedBytes >= 0) {
+            allocatedBytes = getAllocatedBytes() - rootStartAllocatedBytes;
+        }
+        String budget;
+        if ((maxExecutionMillis > 0) && (elapsedMillis > maxExecutionMillis)) {
+            budget = "time";
+        } else if ((maxAllocatedBytes > 0) && (allocatedBytes > maxAllocatedBytes)) {
+            budget = "allocation";
+        } else {
+            return false;
+        }
+
+        isOverBudget = true;
+        budgetsExceededCount++;
+        limitsExceededCount++;
+        if (log.isWarnEnabled()) {
+            StringBuilder sb = new StringBuilder("Execution budget exceeded:");
+            sb.append(" budget=").append(budget);
+            sb.append(" method=").append(rootMethodDescriptor);
+            sb.append(" at=").append(node.getOp().getAddress()).append(' ').append(node.getOp());
+            sb.append(" depth=").append(callDepth);
+            sb.append(" visits=").append(totalVisits);
+            sb.append(" elapsedMillis=").append(elapsedMillis).append('/').append(maxExecutionMillis);
+            sb.append(" allocatedBytes=").append(allocatedBytes).append('/').append(maxAllocatedBytes);
+            log.warn(sb.toString());
+        }
+
+        return true;
+    }
+
     private int getMaxMethodVisits() {
         return maxMethodVisits;
     }
@@ -143,15 +317,53 @@ public class MethodExecutor {
         return maxAddressVisits;
     }
 
-    private void checkMaxVisits(ExecutionNode node, String methodDescriptor, TIntIntMap addressToVisitCount)
-            throws MaxAddressVisitsExceeded, MaxMethodVisitsExceeded {
+    private ExceptionHandlerAddressResolver getExceptionResolver(ExecutionGraph graph) {
+        ExecutionGraph template = graph.getTemplate();
+        ExceptionHandlerAddressResolver resolver = templateToExceptionResolver.get(template);
+        if (resolver == null) {
+            resolver = new ExceptionHandlerAddressResolver(classManager, graph.getMethodDescriptor());
+            templateToExceptionResolver.put(template, resolver);
+        }
+
+        return resolver;
+    }
+
+    private LoopVisitLimits getLoopVisitLimits(ExecutionGraph graph) {
+        ExecutionGraph template = graph.getTemplate();
+        LoopVisitLimits limits = templateToLoopLimits.get(template);
+        if (limits == null) {
+            BuilderMethod method = classManager.getMethod(graph.getMethodDescriptor());
+            limits = LoopVisitLimits.build((MutableMethodImplementation) method.getImplementation());
+            templateToLoopLimits.put(template, limits);
+        }
+
+        return limits;
+    }
+
+    private TIntIntMap getReturnDistances(ExecutionGraph graph) {
+        ExecutionGraph template = graph.getTemplate();
+        TIntIntMap distances = templateToReturnDistances.get(template);
+        if (distances == null) {
+            distances = ExecutionWorklist.buildReturnDistances(template);
+            templateToReturnDistances.put(template, distances);
+        }
+
+        return distances;
+    }
+
+    private void checkMaxVisits(ExecutionNode node, String methodDescriptor, TIntIntMap addressToVisitCount,
+                                LoopVisitLimits.Budget loopBudget) throws MaxAddressVisitsExceeded,
+            MaxMethodVisitsExceeded {
         if (totalVisits > getMaxMethodVisits()) {
+            limitsExceededCount++;
             throw new MaxMethodVisitsExceeded(node, methodDescriptor);
         }
 
         int address = node.getAddress();
         int visitCount = addressToVisitCount.get(address);
-        if (visitCount > getMaxAddressVisits()) {
+        int maxVisits = loopBudget == null ? getMaxAddressVisits() : loopBudget.getMaxVisits(address);
+        if (visitCount > maxVisits) {
+            limitsExceededCount++;
             throw new MaxAddressVisitsExceeded(node, methodDescriptor);
         }
         boolean adjusted = addressToVisitCount.adjustValue(address, 1);
@@ -6,16 +6,27 @@ import org.cf.smalivm.context.HeapItem;
 import org.cf.smalivm.context.MethodState;
 import org.cf.smalivm.type.UnknownValue;
 import org.cf.util.ConfigLoader;
+import org.cf.util.ImmutableUtils;
+import org.cf.util.SmaliClassUtils;
+import org.cf.util.SymbolTable;
+import org.cf.util.SymbolTable.MethodSymbol;
 import org.cf.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
 
 public class MethodReflector {
 
@@ -26,6 +37,8 @@ public class MethodReflector {
     private static Set<String> SafeClasses;
     private static Set<String> SafeMethods;
     private static Set<String> UnsafeMethods;
+    private static final ConcurrentMap<String, MethodReflector> methodDescriptorToReflector = new
+            ConcurrentHashMap<String, MethodReflector>();
 
     static {
         try {
@@ -44,6 +57,14 @@ public class MethodReflector {
     private final String methodName;
     private final List<String> parameterTypes;
     private final String returnType;
+    // Argument conversion plan, one entry per argument
+    private final int[] argumentRegisters;
+    private final String[] argumentTypes;
+    private final Class<?>[] argumentWrappers;
+    // Null if the exact method couldn't be resolved up front
+    private final Class<?> declaringClass;
+    private final Method method;
+    private final Constructor<?> constructor;
 
     public MethodReflector(String methodDescriptor, String returnType, List<String> parameterTypes, boolean isStatic) {
         this.methodDescriptor = methodDescriptor;
@@ -51,11 +72,92 @@ public class MethodReflector {
         this.parameterTypes = parameterTypes;
         this.isStatic = isStatic;
 
-        String[] parts = methodDescriptor.split("->");
+        MethodSymbol symbol = SymbolTable.getMethod(methodDescriptor);
         // ClassUtils expects "Ljava.lang.Class;"
-        smaliClassName = parts[0];
-        javaIshClassName = smaliClassName.replaceAll("/", ".");
-        methodName = parts[1].substring(0, parts[1].indexOf("("));
+        smaliClassName = symbol.getClassName();
+        javaIshClassName = smaliClassName.replace('/', '.');
+        methodName = symbol.getName();
+
+        // First element in context will be instance reference if non-static method.
+        int offset = isStatic ? 0 : 1;
+        int argumentCount = parameterTypes.size() - offset;
+        argumentRegisters = new int[argumentCount];
+        argumentTypes = new String[argumentCount];
+        argumentWrappers = new Class<?>[argumentCount];
+        int register = isStatic ? 0 : Utils.getRegisterSize(parameterTypes.get(0));
+        for (int i = 0; i < argumentCount; i++) {
+            String parameterType = parameterTypes.get(i + offset);
+            argumentRegisters[i] = register;
+            argumentTypes[i] = parameterType;
+            if (SmaliClassUtils.isPrimitiveOrWrapperType(parameterType)) {
+                argumentWrappers[i] = getWrapperClass(parameterType);
+            }
+            register += Utils.getRegisterSize(parameterType);
+        }
+
+        Class<?> resolvedClass = null;
+        Method resolvedMethod = null;
+        Constructor<?> resolvedConstructor = null;
+        try {
+            // Strip leading 'L' and trailing ';' from smali type descriptor
+            resolvedClass = Class.forName(javaIshClassName.substring(1, javaIshClassName.length() - 1));
+            Class<?>[] parameterClasses = new Class<?>[argumentCount];
+            for (int i = 0; i < argumentCount; i++) {
+                parameterClasses[i] = getClass(argumentTypes[i]);
+            }
+            if ("<init>".equals(methodName)) {
+                resolvedConstructor = resolvedClass.getConstructor(parameterClasses);
+            } else {
+                // Public methods inherited from non-public classes can't be invoked directly.
+                resolvedMethod = MethodUtils.getAccessibleMethod(resolvedClass.getMethod(methodName,
+                        parameterClasses));
+            }
+        } catch (ClassNotFoundException | NoSuchMethodException | SecurityException | StringIndexOutOfBoundsException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Couldn't resolve {} up front, will look it up per call", methodDescriptor, e);
+            }
+        }
+        declaringClass = resolvedClass;
+        method = resolvedMethod;
+        constructor = resolvedConstructor;
+    }
+
+    /**
+     * Reflectors are immutable once built, so they're shared by every call to the same method.
+     *
+     * @return reflector for the method, built on first use
+     */
+    public static MethodReflector getReflector(String methodDescriptor, String returnType, List<String> parameterTypes,
+                                               boolean isStatic) {
+        MethodReflector reflector = methodDescriptorToReflector.get(methodDescriptor);
+        if (reflector == null) {
+            reflector = new MethodReflector(methodDescriptor, returnType, parameterTypes, isStatic);
+            MethodReflector previous = methodDescriptorToReflector.putIfAbsent(methodDescriptor, reflector);
+            if (previous != null) {
+                reflector = previous;
+            }
+        }
+
+        return reflector;
+    }
+
+    private static Class<?> getClass(String smaliType) throws ClassNotFoundException {
+        String javaName = SmaliClassUtils.smaliClassToJava(smaliType);
+        if (SmaliClassUtils.isPrimitiveType(smaliType)) {
+            return SmaliClassUtils.getPrimitiveType(javaName);
+        }
+
+        return Class.forName(javaName);
+    }
+
+    private static Class<?> getWrapperClass(String smaliType) {
+        String javaName = SmaliClassUtils.isPrimitiveType(smaliType) ? SmaliClassUtils.smaliPrimitiveToJavaWrapper(
+                smaliType) : SmaliClassUtils.smaliClassToJava(smaliType);
+        try {
+            return Class.forName(javaName);
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
     }
 
     public static boolean canReflect(String typeDescriptor) {
@@ -63,14 +165,13 @@ public class MethodReflector {
     }
 
     public static boolean isSafe(String typeDescriptor) {
-        String[] parts = typeDescriptor.split("->");
-        String className = parts[0];
+        String className = SymbolTable.getClassName(typeDescriptor);
 
         if (SafeClasses.contains(className) && !UnsafeMethods.contains(typeDescriptor)) {
             return true;
         }
 
-        if (parts.length > 1) {
+        if (className.length() < typeDescriptor.length()) {
             // It's a method name
             if (SafeMethods.contains(typeDescriptor)) {
                 return true;
@@ -97,6 +198,14 @@ public class MethodReflector {
     }
 
     public void reflect(MethodState calleeContext) {
+        reflect(calleeContext, null);
+    }
+
+    /**
+     * @param calleeContext
+     * @param executor      runs the call with a time limit, or null to run it on this thread
+     */
+    public void reflect(MethodState calleeContext, ReflectionExecutor executor) {
         if (log.isDebugEnabled()) {
             log.debug("Reflecting {} with context:\n{}", methodDescriptor, calleeContext);
         }
@@ -105,33 +214,52 @@ public class MethodReflector {
         try {
             // Class<?> clazz = ClassUtils.getClass(javaIshClassName, false);
             // Strip leading 'L' and trailing ';' from smali type descriptor
-            Class<?> clazz = Class.forName(javaIshClassName.substring(1, javaIshClassName.length() - 1));
-            Object[] args = getArguments(calleeContext);
-            if ("<init>".equals(methodName)) {
-                // This class is used by the JVM to do instance initialization, i.e. newInstance. Can't just reflect it.
+            final Class<?> clazz = declaringClass != null ? declaringClass : Class.forName(javaIshClassName.substring(
+                    1, javaIshClassName.length() - 1));
+            final Object[] args = getArguments(calleeContext);
+            final Object target;
+            if ("<init>".equals(methodName) || isStatic) {
+                target = null;
                 if (log.isDebugEnabled()) {
                     log.debug("Reflecting {}, clazz={} args={}", methodDescriptor, clazz, Arrays.toString(args));
                 }
-                resultValue = ConstructorUtils.invokeConstructor(clazz, args);
-                // kind of a hack. store newly init'ed value here
-                calleeContext.assignParameter(0, new HeapItem(resultValue, smaliClassName));
             } else {
-                if (isStatic) {
-                    if (log.isDebugEnabled()) {
-                        log.debug("Reflecting {}, clazz={} args={}", methodDescriptor, clazz, Arrays.toString(args));
-                    }
-                    resultValue = MethodUtils.invokeStaticMethod(clazz, methodName, args);
-                } else {
-                    HeapItem targetItem = calleeContext.peekRegister(0);
-                    if (log.isDebugEnabled()) {
-                        log.debug("Reflecting {}, target={} args={}", methodDescriptor, targetItem,
-                                Arrays.toString(args));
-                    }
-                    resultValue = MethodUtils.invokeMethod(targetItem.getValue(), methodName, args);
+                HeapItem targetItem = calleeContext.peekRegister(0);
+                target = targetItem.getValue();
+                if (log.isDebugEnabled()) {
+                    log.debug("Reflecting {}, target={} args={}", methodDescriptor, targetItem,
+                            Arrays.toString(args));
                 }
             }
-        } catch (NullPointerException | ClassNotFoundException | NoSuchMethodException | SecurityException | InstantiationException | IllegalAccessException | IllegalArgumentException | InvocationTargetException e) {
+
+            if (executor == null) {
+                resultValue = invoke(clazz, target, args);
+            } else {
+                resultValue = executor.execute(new Callable<Object>() {
+                    @Override
+                    public Object call() throws Exception {
+                        return invoke(clazz, target, args);
+                    }
+                });
+            }
+
+            if ("<init>".equals(methodName)) {
+                // kind of a hack. store newly init'ed value here
+                calleeContext.assignParameter(0, new HeapItem(resultValue, smaliClassName));
+            }
+        } catch (NullPointerException | ClassNotFoundException | NoSuchMethodException | SecurityException | InstantiationException | IllegalAccessException | IllegalArgumentException e) {
+            resultValue = new UnknownValue();
+            if (log.isWarnEnabled()) {
+                log.warn("Failed to reflect {}", methodDescriptor);
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("Stack trace:", e);
+            }
+        } catch (InvocationTargetException | ExecutionException e) {
+            // The call threw part way through, so arguments may be partly changed.
             resultValue = new UnknownValue();
+            assumeMaximumUnknown(calleeContext);
             if (log.isWarnEnabled()) {
                 log.warn("Failed to reflect {}", methodDescriptor);
             }
@@ -139,6 +267,14 @@ public class MethodReflector {
             if (log.isDebugEnabled()) {
                 log.debug("Stack trace:", e);
             }
+        } catch (TimeoutException e) {
+            // An abandoned call may still be changing its arguments, and a refused call never ran, so nothing is known.
+            resultValue = new UnknownValue();
+            assumeMaximumUnknown(calleeContext);
+            if (log.isWarnEnabled()) {
+                log.warn("Gave up reflecting {} after {} ms: {}", methodDescriptor, executor.getTimeoutMillis(),
+                        e.getMessage());
+            }
         }
 
         boolean returnsVoid = "V".equals(returnType);
@@ -148,31 +284,62 @@ public class MethodReflector {
         }
     }
 
-    private Object[] getArguments(MethodState mState) {
-        int offset = 0;
-        if (!isStatic) {
-            // First element in context will be instance reference if non-static method.
-            offset = 1;
+    /*
+     * Replace the instance and every mutable argument with unknown values, like InvokeOp does for calls it can't make.
+     */
+    private void assumeMaximumUnknown(MethodState calleeContext) {
+        boolean isInitializing = "<init>".equals(methodName);
+        int register = 0;
+        for (String type : parameterTypes) {
+            HeapItem item = calleeContext.peekParameter(register);
+            int parameterRegister = register;
+            register += Utils.getRegisterSize(type);
+            if ((item == null) || (item.getValue() == null)) {
+                // Nulls don't mutate.
+                continue;
+            }
+            if (!isInitializing && (ImmutableUtils.isImmutableClass(type) || item.isImmutable())) {
+                continue;
+            }
+
+            calleeContext.assignParameter(parameterRegister, HeapItem.newUnknown(type));
         }
+    }
 
-        int size = parameterTypes.size() - offset;
-        Object[] args = new Object[size];
-        for (int i = offset; i < mState.getRegisterCount(); i++) {
-            HeapItem argItem = mState.peekParameter(i);
-            Object arg = argItem.getValue();
-            String parameterType = parameterTypes.get(i);
-            if (null != arg) {
-                // In Dalvik, I type is overloaded and can represent multiple primitives, e.g. B, S, C
-                if (argItem.isPrimitiveOrWrapper()) {
-                    arg = Utils.castToPrimitiveWrapper(arg, parameterType);
-                }
+    private Object invoke(Class<?> clazz, Object target, Object[] args) throws NoSuchMethodException,
+            IllegalAccessException, InvocationTargetException, InstantiationException {
+        if ("<init>".equals(methodName)) {
+            // This class is used by the JVM to do instance initialization, i.e. newInstance. Can't just reflect it.
+            if (constructor != null) {
+                return constructor.newInstance(args);
+            } else {
+                return ConstructorUtils.invokeConstructor(clazz, args);
             }
-            args[i - offset] = arg;
+        } else if (isStatic) {
+            if (method != null) {
+                return method.invoke(null, args);
+            } else {
+                return MethodUtils.invokeStaticMethod(clazz, methodName, args);
+            }
+        } else {
+            if (method != null) {
+                return method.invoke(target, args);
+            } else {
+                return MethodUtils.invokeMethod(target, methodName, args);
+            }
+        }
+    }
 
-            if (Utils.getRegisterSize(parameterType) == 2) {
-                // Long tried every diet but is still fat and takes 2 registers. Could be thyroid.
-                i++;
+    private Object[] getArguments(MethodState mState) {
+        Object[] args = new Object[argumentRegisters.length];
+        for (int i = 0; i < args.length; i++) {
+            Object arg = mState.peekParameter(argumentRegisters[i]).getValue();
+            Class<?> wrapper = argumentWrappers[i];
+            if ((arg != null) && (wrapper != null) && (arg.getClass() != wrapper)) {
+                // In Dalvik, I type is overloaded and can represent multiple primitives, e.g. B, S, C
+                arg = Utils.castToPrimitiveWrapper(arg, argumentTypes[i]);
             }
+            args[i] = arg;
         }
 
         return args;
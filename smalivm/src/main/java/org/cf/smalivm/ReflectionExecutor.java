@@ -0,0 +1,144 @@
+package org.cf.smalivm;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs reflected calls on a small pool of daemon threads so a call with a pathological argument, e.g. a huge format
+ * string or regex, can't stall the VM. A call which doesn't finish in time is interrupted and abandoned. Framework code
+ * may ignore interrupts, so an abandoned call can keep its thread busy. When every thread is busy, calls are refused
+ * instead of queued.
+ */
+public class ReflectionExecutor {
+
+    private final ExecutorService executor;
+    private final long timeoutMillis;
+    private final AtomicLong calls;
+    private final AtomicLong timeouts;
+    private final AtomicLong rejections;
+    private final AtomicLong totalNanos;
+    private final AtomicLong maxNanos;
+
+    /**
+     * @param threadCount   maximum threads, including threads stuck in abandoned calls
+     * @param timeoutMillis maximum time to wait for each call
+     */
+    public ReflectionExecutor(int threadCount, long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        executor = new ThreadPoolExecutor(0, threadCount, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                new ThreadFactory() {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "reflection-" + threadNumber.incrementAndGet());
+                        thread.setDaemon(true);
+
+                        return thread;
+                    }
+                });
+        calls = new AtomicLong();
+        timeouts = new AtomicLong();
+        rejections = new AtomicLong();
+        totalNanos = new AtomicLong();
+        maxNanos = new AtomicLong();
+    }
+
+    /**
+     * @param call
+     * @return result of the call
+     * @throws ExecutionException if the call threw, with the original exception as the cause
+     * @throws TimeoutException   if the call didn't finish in time or there was no free thread to run it
+     */
+    public Object execute(Callable<Object> call) throws ExecutionException, TimeoutException {
+        Future<Object> future;
+        try {
+            future = executor.submit(call);
+        } catch (RejectedExecutionException e) {
+            rejections.incrementAndGet();
+            throw new TimeoutException("No free reflection threads");
+        }
+
+        calls.incrementAndGet();
+        long startNanos = System.nanoTime();
+        try {
+            return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            timeouts.incrementAndGet();
+            throw e;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new TimeoutException("Interrupted while waiting for reflected call");
+        } finally {
+            recordLatency(System.nanoTime() - startNanos);
+        }
+    }
+
+    public long getCalls() {
+        return calls.get();
+    }
+
+    public long getMaxLatencyNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * @return mean time spent waiting for each call, including calls which timed out
+     */
+    public long getMeanLatencyNanos() {
+        long callCount = calls.get();
+
+        return callCount == 0 ? 0 : totalNanos.get() / callCount;
+    }
+
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     * Stop all threads, interrupting any running calls.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Reflection executor: ");
+        sb.append("calls=").append(getCalls()).append(", timeouts=").append(getTimeouts());
+        sb.append(", rejections=").append(getRejections());
+        sb.append(", mean latency=").append(TimeUnit.NANOSECONDS.toMicros(getMeanLatencyNanos())).append("us");
+        sb.append(", max latency=").append(TimeUnit.NANOSECONDS.toMillis(getMaxLatencyNanos())).append("ms");
+
+        return sb.toString();
+    }
+
+    private void recordLatency(long nanos) {
+        totalNanos.addAndGet(nanos);
+        long max = maxNanos.get();
+        while ((nanos > max) && !maxNanos.compareAndSet(max, nanos)) {
+            max = maxNanos.get();
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package org.cf.smalivm;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least recently used table of results of reflected methods. Only whitelisted methods are reflected and they
+ * have no side effects, so when every argument is an immutable value, the same arguments always give the same result.
+ * <p>
+ * Callers are responsible for only storing results of calls whose arguments and return value are immutable.
+ */
+public class ReflectionMemo {
+
+    private final int maxSize;
+    private final Map<Key, Object> keyToResult;
+    private long hits;
+    private long misses;
+
+    public ReflectionMemo(final int maxSize) {
+        this.maxSize = maxSize;
+        keyToResult = new LinkedHashMap<Key, Object>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Object> eldest) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+    /**
+     * @param methodDescriptor
+     * @param arguments        argument values, including the instance for non-static methods
+     * @return key for {@link #get} and {@link #put}
+     */
+    public static Key getKey(String methodDescriptor, Object[] arguments) {
+        return new Key(methodDescriptor, arguments);
+    }
+
+    /**
+     * Look up a result, counting the lookup as a hit or miss.
+     *
+     * @param key
+     * @return stored result, or null if there isn't one
+     */
+    public synchronized Object get(Key key) {
+        Object result = keyToResult.get(key);
+        if (result == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+
+        return result;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return fraction of lookups which were hits, or 0 if there have been no lookups
+     */
+    public synchronized double getHitRate() {
+        long lookups = hits + misses;
+
+        return lookups == 0 ? 0 : (double) hits / lookups;
+    }
+
+    /**
+     * @param key
+     * @param result result of the call, which isn't stored if null
+     */
+    public synchronized void put(Key key, Object result) {
+        if (result == null) {
+            return;
+        }
+        keyToResult.put(key, result);
+    }
+
+    public synchronized int size() {
+        return keyToResult.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder("Reflection memo: ");
+        sb.append("hits=").append(hits).append(", misses=").append(misses);
+        sb.append(", hit rate=").append(String.format("%.2f", getHitRate()));
+        sb.append(", size=").append(size()).append('/').append(maxSize);
+
+        return sb.toString();
+    }
+
+    public static class Key {
+
+        private final String methodDescriptor;
+        private final Object[] arguments;
+        private final int hashCode;
+
+        private Key(String methodDescriptor, Object[] arguments) {
+            this.methodDescriptor = methodDescriptor;
+            this.arguments = arguments;
+            hashCode = (31 * methodDescriptor.hashCode()) + Arrays.hashCode(arguments);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+
+            return (hashCode == other.hashCode) && methodDescriptor.equals(other.methodDescriptor) && Arrays.equals(
+                    arguments, other.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+    }
+
+}
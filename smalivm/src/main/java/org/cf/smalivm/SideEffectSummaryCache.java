@@ -0,0 +1,242 @@
+package org.cf.smalivm;
+
+import org.cf.smalivm.emulate.MethodEmulator;
+import org.cf.util.SymbolTable;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.iface.reference.TypeReference;
+import org.jf.dexlib2.util.ReferenceUtil;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Static, conservative side effect summaries of local methods, computed once per method from its instructions and the
+ * summaries of the methods it calls. A method is side effect free if no path through it can put a field, create an
+ * instance of an unsafe class, initialize a class whose static initializer isn't side effect free, or invoke anything
+ * which isn't also side effect free. Anything else is inconclusive and side effects are found by executing it.
+ * <p>
+ * Summaries are cached until the method implementations they were built from are changed.
+ */
+public class SideEffectSummaryCache {
+
+    private final VirtualMachine vm;
+    private final ClassManager classManager;
+    private final Map<String, Boolean> methodToIsSideEffectFree;
+    // Methods whose summaries were built from a callee or class initializer summary
+    private final Map<String, Set<String>> methodToDependents;
+
+    private long hits;
+    private long misses;
+
+    SideEffectSummaryCache(VirtualMachine vm) {
+        this.vm = vm;
+        classManager = vm.getClassManager();
+        methodToIsSideEffectFree = new HashMap<String, Boolean>();
+        methodToDependents = new HashMap<String, Set<String>>();
+    }
+
+    /**
+     * Forget all summaries.
+     */
+    public void clear() {
+        methodToIsSideEffectFree.clear();
+        methodToDependents.clear();
+    }
+
+    /**
+     * Forget the summary of a changed method and of every method whose summary depends on it, directly or through
+     * other summaries.
+     *
+     * @param methodDescriptor
+     */
+    public void invalidate(String methodDescriptor) {
+        List<String> stale = new LinkedList<String>();
+        stale.add(methodDescriptor);
+        while (!stale.isEmpty()) {
+            String current = stale.remove(0);
+            methodToIsSideEffectFree.remove(current);
+            Set<String> dependents = methodToDependents.remove(current);
+            if (dependents != null) {
+                stale.addAll(dependents);
+            }
+        }
+    }
+
+    /**
+     * Forget the summaries of every method of a changed class and of every method whose summary depends on them.
+     *
+     * @param className
+     */
+    public void invalidateClass(String className) {
+        String prefix = className + "->";
+        Set<String> methodDescriptors = new HashSet<String>();
+        for (String methodDescriptor : methodToIsSideEffectFree.keySet()) {
+            if (methodDescriptor.startsWith(prefix)) {
+                methodDescriptors.add(methodDescriptor);
+            }
+        }
+        for (String methodDescriptor : methodToDependents.keySet()) {
+            if (methodDescriptor.startsWith(prefix)) {
+                methodDescriptors.add(methodDescriptor);
+            }
+        }
+        for (String methodDescriptor : methodDescriptors) {
+            invalidate(methodDescriptor);
+        }
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @param methodDescriptor
+     * @return true if executing the method can't have side effects, false if it may or if it's unknown
+     */
+    public boolean isSideEffectFree(String methodDescriptor) {
+        Boolean isSideEffectFree = methodToIsSideEffectFree.get(methodDescriptor);
+        if (isSideEffectFree != null) {
+            hits++;
+            return isSideEffectFree;
+        }
+        misses++;
+
+        return summarize(methodDescriptor, null, new HashSet<String>());
+    }
+
+    public int size() {
+        return methodToIsSideEffectFree.size();
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Side effect summaries: ");
+        sb.append(size()).append(" methods, hits=").append(hits).append(", misses=").append(misses);
+
+        return sb.toString();
+    }
+
+    private void addDependent(String methodDescriptor, String dependentDescriptor) {
+        Set<String> dependents = methodToDependents.get(methodDescriptor);
+        if (dependents == null) {
+            dependents = new HashSet<String>();
+            methodToDependents.put(methodDescriptor, dependents);
+        }
+        dependents.add(dependentDescriptor);
+    }
+
+    private boolean summarize(String methodDescriptor, String dependentDescriptor, Set<String> visiting) {
+        if (dependentDescriptor != null) {
+            // Includes recursive calls, since their pessimistic result is only valid until the method changes.
+            addDependent(methodDescriptor, dependentDescriptor);
+        }
+
+        Boolean isSideEffectFree = methodToIsSideEffectFree.get(methodDescriptor);
+        if (isSideEffectFree != null) {
+            return isSideEffectFree;
+        }
+        if (!visiting.add(methodDescriptor)) {
+            // Recursive call. Assume the worst rather than solving the cycle.
+            return false;
+        }
+
+        isSideEffectFree = summarizeInstructions(methodDescriptor, visiting);
+        visiting.remove(methodDescriptor);
+        // Results which depend on a method still being summarized are pessimistic, but never wrong.
+        methodToIsSideEffectFree.put(methodDescriptor, isSideEffectFree);
+
+        return isSideEffectFree;
+    }
+
+    private boolean summarizeInstructions(String methodDescriptor, Set<String> visiting) {
+        if (!classManager.isLocalMethod(methodDescriptor) || !classManager.methodHasImplementation(methodDescriptor)) {
+            return false;
+        }
+
+        // The class of an executed method is initialized first, unless this is the initializer.
+        String className = SymbolTable.getMethod(methodDescriptor).getClassName();
+        boolean isInitializer = methodDescriptor.equals(className + "-><clinit>()V");
+        if (!isInitializer && !isInitializationSideEffectFree(className, methodDescriptor, visiting)) {
+            return false;
+        }
+
+        MutableMethodImplementation implementation = (MutableMethodImplementation) classManager.getMethod(
+                methodDescriptor).getImplementation();
+        for (BuilderInstruction instruction : implementation.getInstructions()) {
+            if (!isInstructionSideEffectFree(instruction, methodDescriptor, className, visiting)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private boolean isInstructionSideEffectFree(BuilderInstruction instruction, String methodDescriptor,
+                                                 String className, Set<String> visiting) {
+        String name = instruction.getOpcode().name;
+        if (name.startsWith("iput") || name.startsWith("sput")) {
+            return false;
+        } else if (name.startsWith("sget")) {
+            FieldReference reference = (FieldReference) ((ReferenceInstruction) instruction).getReference();
+            String fieldClassName = reference.getDefiningClass();
+
+            return fieldClassName.equals(className) || isInitializationSideEffectFree(fieldClassName,
+                    methodDescriptor, visiting);
+        } else if (name.equals("new-instance")) {
+            String instanceClassName = ((TypeReference) ((ReferenceInstruction) instruction).getReference()).getType();
+            if (vm.isLocalClass(instanceClassName)) {
+                return instanceClassName.equals(className) || isInitializationSideEffectFree(instanceClassName,
+                        methodDescriptor, visiting);
+            }
+
+            return MethodReflector.isSafe(instanceClassName);
+        } else if (name.startsWith("invoke-")) {
+            if (!name.startsWith("invoke-static") && !name.startsWith("invoke-direct")) {
+                // Virtual, interface and super targets depend on the receiver's or caller's class hierarchy.
+                return false;
+            }
+
+            MethodReference reference = (MethodReference) ((ReferenceInstruction) instruction).getReference();
+            String targetMethod = ReferenceUtil.getMethodDescriptor(reference);
+            if (MethodReflector.canReflect(targetMethod) || MethodEmulator.canEmulate(targetMethod)) {
+                // Side effects depend on whether arguments are known, or on the emulated method.
+                return false;
+            }
+            if (classManager.isFramework(targetMethod) && !classManager.isSafeFramework(targetMethod)) {
+                return false;
+            }
+
+            return summarize(targetMethod, methodDescriptor, visiting);
+        }
+
+        return true;
+    }
+
+    private boolean isInitializationSideEffectFree(String className, String dependentDescriptor,
+                                                   Set<String> visiting) {
+        if (!vm.isLocalClass(className)) {
+            // Only local classes are initialized by the VM.
+            return true;
+        }
+
+        String initializerDescriptor = className + "-><clinit>()V";
+        if (!classManager.isLocalMethod(initializerDescriptor)) {
+            return true;
+        }
+
+        return summarize(initializerDescriptor, dependentDescriptor, visiting);
+    }
+
+}
@@ -5,6 +5,8 @@ import org.cf.smalivm.context.ClassState;
 import org.cf.smalivm.context.ExecutionContext;
 import org.cf.smalivm.context.HeapItem;
 import org.cf.util.SmaliClassUtils;
+import org.cf.util.SymbolTable;
+import org.cf.util.SymbolTable.FieldSymbol;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,12 +23,11 @@ public class StaticFieldAccessor {
     }
 
     public HeapItem getField(ExecutionContext ectx, String fieldDescriptor) {
-        String[] parts = fieldDescriptor.split("->");
-        String className = parts[0];
-        String fieldNameAndType = parts[1];
-        parts = fieldNameAndType.split(":");
-        String fieldName = parts[0];
-        String fieldType = parts[1];
+        FieldSymbol symbol = SymbolTable.getField(fieldDescriptor);
+        String className = symbol.getClassName();
+        String fieldNameAndType = symbol.getNameAndType();
+        String fieldName = symbol.getName();
+        String fieldType = symbol.getType();
 
         HeapItem fieldItem;
         if (vm.isLocalClass(className)) {
@@ -58,9 +59,9 @@ public class StaticFieldAccessor {
     }
 
     public void putField(ExecutionContext ectx, String fieldDescriptor, HeapItem putItem) {
-        String[] parts = fieldDescriptor.split("->");
-        String className = parts[0];
-        String fieldNameAndType = parts[1];
+        FieldSymbol symbol = SymbolTable.getField(fieldDescriptor);
+        String className = symbol.getClassName();
+        String fieldNameAndType = symbol.getNameAndType();
         if (vm.isLocalClass(className)) {
             ClassState cState = ectx.readClassState(className);
             cState.assignField(fieldNameAndType, putItem);
@@ -8,6 +8,7 @@ import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
 import org.cf.smalivm.exception.UnhandledVirtualException;
 import org.cf.smalivm.type.LocalInstance;
 import org.cf.util.ImmutableUtils;
+import org.cf.util.SymbolTable;
 import org.cf.util.Utils;
 import org.jf.dexlib2.iface.MethodImplementation;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
@@ -15,9 +16,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.lang.reflect.Modifier;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 
 public class VirtualMachine {
 
@@ -27,26 +26,47 @@ public class VirtualMachine {
     private static final int DEFAULT_MAX_METHOD_VISITS = 1_000_000;
     private final MethodExecutor methodExecutor;
     private final ClassManager classManager;
-    private final Map<BuilderMethod, ExecutionGraph> methodToTemplateExecutionGraph;
+    private final ExecutionGraphCache templateGraphCache;
+    private final SideEffectSummaryCache sideEffectSummaryCache;
     private final StaticFieldAccessor staticFieldAccessor;
+    private ReflectionMemo reflectionMemo;
+    private ReflectionExecutor reflectionExecutor;
 
     public VirtualMachine(ClassManager manager) {
         this(manager, DEFAULT_MAX_ADDRESS_VISITS, DEFAULT_MAX_CALL_DEPTH, DEFAULT_MAX_METHOD_VISITS);
     }
 
     public VirtualMachine(ClassManager manager, int maxAddressVisits, int maxCallDepth, int maxMethodVisits) {
+        this(manager, maxAddressVisits, maxCallDepth, maxMethodVisits, 0);
+    }
+
+    /**
+     * @param maxTemplateInstructions maximum total instructions of cached template graphs, or 0 for no limit
+     */
+    public VirtualMachine(ClassManager manager, int maxAddressVisits, int maxCallDepth, int maxMethodVisits,
+                          int maxTemplateInstructions) {
         this.classManager = manager;
         methodExecutor = new MethodExecutor(classManager, maxCallDepth, maxAddressVisits, maxMethodVisits);
-        methodToTemplateExecutionGraph = new HashMap<BuilderMethod, ExecutionGraph>();
+        templateGraphCache = new ExecutionGraphCache(maxTemplateInstructions);
+        sideEffectSummaryCache = new SideEffectSummaryCache(this);
         staticFieldAccessor = new StaticFieldAccessor(this);
     }
 
     private static String getClassNameFromMethodDescriptor(String methodDescriptor) {
-        return methodDescriptor.split("->", 2)[0];
+        return SymbolTable.getMethod(methodDescriptor).getClassName();
     }
 
     private static HeapItem getMutableParameterConsensus(TIntList addressList, ExecutionGraph graph,
-                                                         int parameterRegister) {
+                                                         int parameterRegister, String type) {
+        for (int address : addressList.toArray()) {
+            if (graph.isIncompleteAddress(address)) {
+                return HeapItem.newUnknown(type);
+            }
+        }
+        if (addressList.isEmpty()) {
+            return HeapItem.newUnknown(type);
+        }
+
         ExecutionNode firstNode = graph.getNodePile(addressList.get(0)).get(0);
         HeapItem item = firstNode.getContext().getMethodState().peekParameter(parameterRegister);
         int[] addresses = addressList.toArray();
@@ -54,7 +74,7 @@ public class VirtualMachine {
             List<ExecutionNode> nodes = graph.getNodePile(address);
             for (ExecutionNode node : nodes) {
                 HeapItem otherItem = node.getContext().getMethodState().peekParameter(parameterRegister);
-                if (item.getValue() != otherItem.getValue()) {
+                if (!item.valueIdentity(otherItem)) {
                     if (log.isTraceEnabled()) {
                         log.trace("No conensus value for r" + parameterRegister + ". Returning unknown.");
                     }
@@ -132,16 +152,122 @@ public class VirtualMachine {
         return classManager;
     }
 
+    /**
+     * @return memo of reflected results, or null if memoization is off
+     */
+    public ReflectionMemo getReflectionMemo() {
+        return reflectionMemo;
+    }
+
+    /**
+     * @return executor for reflected calls, or null if they run on the calling thread
+     */
+    public ReflectionExecutor getReflectionExecutor() {
+        return reflectionExecutor;
+    }
+
     public StaticFieldAccessor getStaticFieldAccessor() {
         return staticFieldAccessor;
     }
 
+    /**
+     * @return number of times an execution limit was exceeded by any method, including callees
+     */
+    public int getLimitsExceededCount() {
+        return methodExecutor.getLimitsExceededCount();
+    }
+
+    /**
+     * @param allowPartialGraphs if true, executions which exceed address or method visit limits return partial graphs
+     *                           with the unexplored addresses marked incomplete, rather than throwing
+     */
+    public void setAllowPartialGraphs(boolean allowPartialGraphs) {
+        methodExecutor.setAllowPartialGraphs(allowPartialGraphs);
+    }
+
+    /**
+     * @return number of root executions stopped early because of time or allocation budgets
+     */
+    public int getBudgetsExceededCount() {
+        return methodExecutor.getBudgetsExceededCount();
+    }
+
+    /**
+     * Set per root method execution budgets, including time spent in callees. Executions over budget stop and return
+     * partial graphs.
+     *
+     * @param maxExecutionMillis wall clock time, or 0 for no limit
+     * @param maxAllocatedBytes  bytes allocated while executing, or 0 for no limit
+     */
+    public void setBudgets(long maxExecutionMillis, long maxAllocatedBytes) {
+        methodExecutor.setBudgets(maxExecutionMillis, maxAllocatedBytes);
+    }
+
+    /**
+     * Derive per address visit limits from loop trip counts. The maximum address visits acts as a ceiling.
+     *
+     * @param adaptiveVisitLimits
+     * @param maxUnknownLoopVisits visits allowed each time a loop with an unknown trip count is entered
+     */
+    public void setAdaptiveVisitLimits(boolean adaptiveVisitLimits, int maxUnknownLoopVisits) {
+        methodExecutor.setAdaptiveVisitLimits(adaptiveVisitLimits, maxUnknownLoopVisits);
+    }
+
+    /**
+     * Remember results of reflected methods called with immutable arguments, so identical calls aren't reflected again.
+     *
+     * @param maxSize maximum remembered results, or 0 to turn memoization off
+     */
+    public void setReflectionMemoSize(int maxSize) {
+        reflectionMemo = maxSize > 0 ? new ReflectionMemo(maxSize) : null;
+    }
+
+    /**
+     * Run reflected calls on separate threads and give up on calls which take too long. The result of a call which
+     * is given up on is unknown.
+     *
+     * @param timeoutMillis maximum time for each reflected call, or 0 to run them on the calling thread with no limit
+     * @param threadCount   maximum threads for reflected calls
+     */
+    public void setReflectionTimeout(long timeoutMillis, int threadCount) {
+        if (reflectionExecutor != null) {
+            reflectionExecutor.shutdown();
+        }
+        reflectionExecutor = timeoutMillis > 0 ? new ReflectionExecutor(threadCount, timeoutMillis) : null;
+    }
+
+    /**
+     * @param worklistStrategy order in which nodes are executed
+     */
+    public void setWorklistStrategy(ExecutionWorklist.Strategy worklistStrategy) {
+        methodExecutor.setWorklistStrategy(worklistStrategy);
+    }
+
+    /**
+     * Change execution limits for subsequent executions.
+     *
+     * @param maxAddressVisits
+     * @param maxCallDepth
+     * @param maxMethodVisits
+     */
+    public void setLimits(int maxAddressVisits, int maxCallDepth, int maxMethodVisits) {
+        methodExecutor.setLimits(maxCallDepth, maxAddressVisits, maxMethodVisits);
+    }
+
+    public ExecutionGraphCache getTemplateGraphCache() {
+        return templateGraphCache;
+    }
+
+    public SideEffectSummaryCache getSideEffectSummaryCache() {
+        return sideEffectSummaryCache;
+    }
+
     public ExecutionGraph spawnInstructionGraph(String methodDescriptor) {
         BuilderMethod method = classManager.getMethod(methodDescriptor);
-        if (!methodToTemplateExecutionGraph.containsKey(method)) {
-            updateInstructionGraph(methodDescriptor);
+        ExecutionGraph graph = templateGraphCache.get(method);
+        if (graph == null) {
+            graph = buildInstructionGraph(method);
         }
-        ExecutionGraph graph = methodToTemplateExecutionGraph.get(method);
         ExecutionGraph spawn = new ExecutionGraph(graph);
 
         return spawn;
@@ -185,10 +311,37 @@ public class VirtualMachine {
         return classManager.isLocalClass(classDescriptor) && !MethodReflector.isSafe(classDescriptor);
     }
 
+    /**
+     * Drop the template execution graph for a method. It's rebuilt the next time the method is executed.
+     *
+     * @param methodDescriptor
+     */
+    public void removeInstructionGraph(String methodDescriptor) {
+        templateGraphCache.remove(classManager.getMethod(methodDescriptor));
+        sideEffectSummaryCache.invalidate(methodDescriptor);
+    }
+
+    /**
+     * Drop template execution graphs for every method of a class. They're rebuilt if the class is executed again.
+     *
+     * @param className
+     */
+    public void removeInstructionGraphs(String className) {
+        templateGraphCache.removeClass(className);
+        sideEffectSummaryCache.invalidateClass(className);
+    }
+
     public void updateInstructionGraph(String methodDescriptor) {
         BuilderMethod method = classManager.getMethod(methodDescriptor);
+        buildInstructionGraph(method);
+        sideEffectSummaryCache.invalidate(methodDescriptor);
+    }
+
+    private ExecutionGraph buildInstructionGraph(BuilderMethod method) {
         ExecutionGraph graph = new ExecutionGraph(this, method);
-        methodToTemplateExecutionGraph.put(method, graph);
+        templateGraphCache.put(method, graph);
+
+        return graph;
     }
 
     public void addTemplateClassState(ExecutionContext ectx, String className) {
@@ -217,7 +370,7 @@ public class VirtualMachine {
                     continue;
                 }
 
-                HeapItem item = getMutableParameterConsensus(terminatingAddresses, graph, parameterRegister);
+                HeapItem item = getMutableParameterConsensus(terminatingAddresses, graph, parameterRegister, type);
                 int register = parameterRegisters[parameterIndex];
                 mState.assignRegister(register, item);
 
@@ -130,7 +130,7 @@ class BaseState {
         // Don't just examine registersRead. v0 and v1 may contain the same object reference, but v0 is never read.
         for (int currentRegister : getRegistersRead().toArray()) {
             HeapItem currentItem = peekRegister(currentRegister, heapId);
-            if (item.getValue() == currentItem.getValue()) {
+            if (item.valueIdentity(currentItem)) {
                 return true;
             }
         }
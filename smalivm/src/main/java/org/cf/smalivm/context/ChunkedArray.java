@@ -0,0 +1,197 @@
+package org.cf.smalivm.context;
+
+import java.lang.reflect.Array;
+
+/**
+ * Copy on write storage for a large one dimensional primitive array. Elements are kept unboxed in fixed size chunks and
+ * copies share chunks until one of them writes to a chunk, so copying an array for a new context costs one reference
+ * per chunk instead of one copy of every element.
+ * <p>
+ * The first time the array is needed as a Java array, the chunks are joined into one array which is used from then on.
+ * Any changes made to that array are seen by every holder of this object.
+ */
+public class ChunkedArray {
+
+    /**
+     * Shorter arrays are cheap enough to copy whole.
+     */
+    public static final int MIN_LENGTH = 256;
+
+    private static final int CHUNK_SHIFT = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    private final Class<?> componentType;
+    private final int length;
+    private Object[] chunks;
+    // True if a chunk may also be used by a copy and must be copied before writing
+    private boolean[] isShared;
+    // Java array, once one has been built
+    private Object array;
+
+    private ChunkedArray(Class<?> componentType, int length, Object[] chunks, boolean[] isShared) {
+        this.componentType = componentType;
+        this.length = length;
+        this.chunks = chunks;
+        this.isShared = isShared;
+    }
+
+    /**
+     * @param value
+     * @return true if value is a one dimensional primitive array of at least {@link #MIN_LENGTH} elements
+     */
+    public static boolean canChunk(Object value) {
+        if ((value == null) || !value.getClass().isArray()) {
+            return false;
+        }
+
+        return value.getClass().getComponentType().isPrimitive() && (Array.getLength(value) >= MIN_LENGTH);
+    }
+
+    /**
+     * @param array one dimensional primitive array, which isn't changed or kept
+     * @return chunked copy of the array
+     */
+    public static ChunkedArray copyOf(Object array) {
+        Class<?> componentType = array.getClass().getComponentType();
+        int length = Array.getLength(array);
+        int chunkCount = (length + CHUNK_SIZE - 1) >> CHUNK_SHIFT;
+        Object[] chunks = new Object[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            int start = i << CHUNK_SHIFT;
+            int chunkLength = Math.min(CHUNK_SIZE, length - start);
+            Object chunk = Array.newInstance(componentType, chunkLength);
+            System.arraycopy(array, start, chunk, 0, chunkLength);
+            chunks[i] = chunk;
+        }
+
+        return new ChunkedArray(componentType, length, chunks, new boolean[chunkCount]);
+    }
+
+    private static Object copyChunk(Object chunk) {
+        int chunkLength = Array.getLength(chunk);
+        Object copy = Array.newInstance(chunk.getClass().getComponentType(), chunkLength);
+        System.arraycopy(chunk, 0, copy, 0, chunkLength);
+
+        return copy;
+    }
+
+    /**
+     * @return independent copy which shares chunks with this array until either is written to
+     */
+    public ChunkedArray copy() {
+        if (array != null) {
+            return copyOf(array);
+        }
+
+        boolean[] copyIsShared = new boolean[chunks.length];
+        for (int i = 0; i < chunks.length; i++) {
+            isShared[i] = true;
+            copyIsShared[i] = true;
+        }
+
+        return new ChunkedArray(componentType, length, chunks.clone(), copyIsShared);
+    }
+
+    /**
+     * @param index
+     * @return boxed element
+     * @throws ArrayIndexOutOfBoundsException
+     */
+    public Object get(int index) {
+        if (array != null) {
+            return Array.get(array, index);
+        }
+        checkIndex(index);
+
+        return Array.get(chunks[index >> CHUNK_SHIFT], index & CHUNK_MASK);
+    }
+
+    /**
+     * @return class of the Java array, without joining the chunks
+     */
+    public Class<?> getArrayClass() {
+        return Array.newInstance(componentType, 0).getClass();
+    }
+
+    public Class<?> getComponentType() {
+        return componentType;
+    }
+
+    /**
+     * @param other
+     * @return number of chunks at the same position which are still shared with the other array, 0 if either is joined
+     */
+    public int getSharedChunkCount(ChunkedArray other) {
+        if ((chunks == null) || (other.chunks == null)) {
+            return 0;
+        }
+
+        int count = 0;
+        for (int i = 0; i < Math.min(chunks.length, other.chunks.length); i++) {
+            if (chunks[i] == other.chunks[i]) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+    /**
+     * @return true if this is backed by a Java array instead of chunks
+     */
+    public boolean isJoined() {
+        return array != null;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @param index
+     * @param value boxed element
+     * @throws ArrayIndexOutOfBoundsException
+     * @throws IllegalArgumentException       if value can't be converted to the component type
+     */
+    public void set(int index, Object value) {
+        if (array != null) {
+            Array.set(array, index, value);
+            return;
+        }
+        checkIndex(index);
+
+        int chunkIndex = index >> CHUNK_SHIFT;
+        if (isShared[chunkIndex]) {
+            chunks[chunkIndex] = copyChunk(chunks[chunkIndex]);
+            isShared[chunkIndex] = false;
+        }
+        Array.set(chunks[chunkIndex], index & CHUNK_MASK, value);
+    }
+
+    /**
+     * Join the chunks into a Java array, which backs this object from then on.
+     *
+     * @return the same Java array each time
+     */
+    public Object toArray() {
+        if (array == null) {
+            array = Array.newInstance(componentType, length);
+            for (int i = 0; i < chunks.length; i++) {
+                Object chunk = chunks[i];
+                System.arraycopy(chunk, 0, array, i << CHUNK_SHIFT, Array.getLength(chunk));
+            }
+            chunks = null;
+            isShared = null;
+        }
+
+        return array;
+    }
+
+    private void checkIndex(int index) {
+        if ((index < 0) || (index >= length)) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
+    }
+
+}
@@ -4,12 +4,21 @@ import gnu.trove.list.TIntList;
 import gnu.trove.list.array.TIntArrayList;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
 import org.cf.smalivm.SideEffect;
+import org.cf.smalivm.SideEffectSummaryCache;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.opcode.Op;
 import org.cf.smalivm.opcode.OpFactory;
+import org.cf.smalivm.opcode.RegisterType;
+import org.cf.smalivm.opcode.RegisterTypeInference;
+import org.cf.util.SymbolTable;
+import org.cf.util.SymbolTable.FieldSymbol;
 import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderExceptionHandler;
 import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.BuilderTryBlock;
 import org.jf.dexlib2.builder.MutableMethodImplementation;
 import org.jf.dexlib2.util.ReferenceUtil;
 import org.jf.dexlib2.writer.builder.BuilderMethod;
@@ -26,25 +35,52 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     protected final TIntObjectMap<List<ExecutionNode>> addressToNodePile;
     private final String methodDescriptor;
     private final TIntList terminatingAddresses;
-
+    /*
+     * Spawned graphs share template nodes with this graph and only have node piles for addresses which were reached.
+     * Template graphs have a pile for every address and no template.
+     */
+    private final ExecutionGraph template;
+    private final List<BuilderTryBlock> tryBlocks;
+    // Null if the graph may not match the method's implementation, e.g. wrapping graphs
+    private final SideEffectSummaryCache sideEffectSummaryCache;
+    /*
+     * Addresses of nodes which weren't executed because a limit was reached. Everything reachable from them is
+     * incomplete, and consensus there is unknown. Both are null if the graph is complete.
+     */
+    private TIntSet truncatedAddresses;
+    private TIntSet incompleteAddresses;
+
+    /**
+     * Spawn a new, unexecuted graph from a template graph. Nothing is copied up front. A node pile is created only when
+     * an address is first reached.
+     *
+     * @param other template graph
+     */
     public ExecutionGraph(ExecutionGraph other) {
         methodDescriptor = other.methodDescriptor;
         addressToNodePile = new TIntObjectHashMap<List<ExecutionNode>>();
-        for (int address : other.addressToNodePile.keys()) {
-            List<ExecutionNode> otherNodePile = other.addressToNodePile.get(address);
-            List<ExecutionNode> nodePile = new ArrayList<ExecutionNode>(otherNodePile.size());
-            for (ExecutionNode otherNode : otherNodePile) {
-                nodePile.add(new ExecutionNode(otherNode));
-            }
-            addressToNodePile.put(address, nodePile);
-        }
         terminatingAddresses = other.terminatingAddresses;
+        template = other.template != null ? other.template : other;
+        tryBlocks = other.tryBlocks;
+        sideEffectSummaryCache = other.sideEffectSummaryCache;
     }
 
     public ExecutionGraph(ExecutionGraph other, boolean wrap) {
+        if (other.template != null) {
+            // Wrapping graphs modify piles directly, so every address needs one.
+            other.materializeNodePiles();
+        }
+        this.template = null;
         this.addressToNodePile = other.addressToNodePile;
         this.methodDescriptor = other.methodDescriptor;
         this.terminatingAddresses = other.terminatingAddresses;
+        this.tryBlocks = other.tryBlocks;
+        this.sideEffectSummaryCache = null;
+        if (other.isPartial()) {
+            // Wrapping graphs shift addresses around, so find incomplete addresses while they're still valid.
+            truncatedAddresses = other.truncatedAddresses;
+            incompleteAddresses = new TIntHashSet(other.getIncompleteAddresses());
+        }
     }
 
     public ExecutionGraph(VirtualMachine vm, BuilderMethod method) {
@@ -53,6 +89,29 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         List<BuilderInstruction> instructions = implementation.getInstructions();
         addressToNodePile = buildAddressToNodePile(vm, instructions);
         terminatingAddresses = buildTerminatingAddresses(instructions);
+        template = null;
+        tryBlocks = implementation.getTryBlocks();
+        sideEffectSummaryCache = vm.getSideEffectSummaryCache();
+        annotateRegisterTypes(method, addressToNodePile);
+    }
+
+    private static void annotateRegisterTypes(BuilderMethod method,
+                                              TIntObjectMap<List<ExecutionNode>> addressToNodePile) {
+        TIntObjectMap<RegisterType[]> addressToTypes;
+        try {
+            addressToTypes = RegisterTypeInference.infer(method);
+        } catch (RuntimeException e) {
+            // Ops work without types, just without typed shortcuts.
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to infer register types for " + ReferenceUtil.getMethodDescriptor(method), e);
+            }
+            return;
+        }
+
+        for (int address : addressToNodePile.keys()) {
+            Op op = addressToNodePile.get(address).get(TEMPLATE_NODE_INDEX).getOp();
+            op.setRegisterTypes(addressToTypes.get(address));
+        }
     }
 
     private static TIntObjectMap<List<ExecutionNode>> buildAddressToNodePile(VirtualMachine vm,
@@ -93,10 +152,29 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     public void addNode(ExecutionNode node) {
-        addressToNodePile.get(node.getAddress()).add(node);
+        int address = node.getAddress();
+        List<ExecutionNode> nodePile = addressToNodePile.get(address);
+        if (nodePile == null) {
+            nodePile = new ArrayList<ExecutionNode>(2);
+            // Copy, like materializeNodePiles, so changes to this pile can't reach graphs sharing the template.
+            nodePile.add(new ExecutionNode(template.getTemplateNode(address)));
+            addressToNodePile.put(address, nodePile);
+        }
+        nodePile.add(node);
+    }
+
+    /**
+     * @return template graph this graph was spawned from, or this graph if it isn't spawned
+     */
+    public ExecutionGraph getTemplate() {
+        return template != null ? template : this;
     }
 
     public int[] getAddresses() {
+        if (template != null) {
+            return template.getAddresses();
+        }
+
         return addressToNodePile.keys();
     }
 
@@ -104,7 +182,8 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         TIntList result = new TIntArrayList(1);
         for (int i = 0; i < terminatingAddresses.size(); i++) {
             int address = terminatingAddresses.get(i);
-            if (wasAddressReached(address)) {
+            // Unexplored paths may have reached incomplete addresses.
+            if (wasAddressReached(address) || isIncompleteAddress(address)) {
                 result.add(address);
             }
         }
@@ -113,18 +192,19 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     public HeapItem getFieldConsensus(TIntList addressList, String fieldDescriptor) {
-        String[] parts = fieldDescriptor.split("->");
-        String className = parts[0];
-        String fieldNameAndType = parts[1];
+        FieldSymbol symbol = SymbolTable.getField(fieldDescriptor);
 
-        return getFieldConsensus(addressList, className, fieldNameAndType);
+        return getFieldConsensus(addressList, symbol.getClassName(), symbol.getNameAndType());
     }
 
     public HeapItem getFieldConsensus(TIntList addressList, String className, String fieldNameAndType) {
-        String[] parts = fieldNameAndType.split(":");
-        String type = parts[1];
+        String type = fieldNameAndType.substring(fieldNameAndType.indexOf(':') + 1);
         Set<HeapItem> items = new HashSet<HeapItem>();
         for (int address : addressList.toArray()) {
+            if (isIncompleteAddress(address)) {
+                return HeapItem.newUnknown(type);
+            }
+
             // If the class wasn't initialized in one path, it's unknown
             for (ExecutionNode node : getNodePile(address)) {
                 if (!node.getContext().isClassInitialized(className)) {
@@ -183,15 +263,18 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
 
     public List<ExecutionNode> getNodePile(int address) {
         List<ExecutionNode> result = addressToNodePile.get(address);
+        if (result == null) {
+            // Address was never reached
+            return Collections.emptyList();
+        }
         result = result.subList(1, result.size());
 
         return result;
     }
 
     public Op getOp(int address) {
-        List<ExecutionNode> pile = addressToNodePile.get(address);
         // same pile implies same op
-        ExecutionNode bottomNode = pile.get(TEMPLATE_NODE_INDEX);
+        ExecutionNode bottomNode = getTemplateNode(address);
 
         return bottomNode.getOp();
     }
@@ -248,7 +331,15 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
 
     public HeapItem getRegisterConsensus(TIntList addressList, int register) {
         Set<HeapItem> items = new HashSet<HeapItem>();
+        boolean isIncomplete = false;
         for (int address : addressList.toArray()) {
+            if (isIncompleteAddress(address)) {
+                // Pile may be empty, but keep looking for an item to get the type from.
+                isIncomplete = true;
+                items.addAll(getRegisterItems(address, register));
+                continue;
+            }
+
             items.addAll(getRegisterItems(address, register));
             if (items.size() != 1) {
                 if (log.isTraceEnabled()) {
@@ -259,6 +350,17 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
                 return HeapItem.newUnknown(item.getType());
             }
         }
+
+        if (isIncomplete) {
+            for (HeapItem item : items) {
+                if (item != null) {
+                    return HeapItem.newUnknown(item.getType());
+                }
+            }
+
+            // No paths reached any address, so there's nothing to say.
+            return null;
+        }
         assert items.size() == 1;
 
         return items.toArray(new HeapItem[1])[0];
@@ -278,6 +380,10 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
 
     public ExecutionNode getRoot() {
         List<ExecutionNode> pile = addressToNodePile.get(METHOD_ROOT_ADDRESS);
+        if (pile == null) {
+            return template.getRoot();
+        }
+
         // Return node with initialized context if available.
         if (pile.size() > 1) {
             return pile.get(1);
@@ -287,6 +393,16 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     public SideEffect.Level getHighestSideEffectLevel() {
+        if (isPartial()) {
+            // Unexplored paths could do anything.
+            return SideEffect.Level.STRONG;
+        }
+
+        if ((sideEffectSummaryCache != null) && sideEffectSummaryCache.isSideEffectFree(methodDescriptor)) {
+            // No path can have side effects of its own, so skip looking at every node and class.
+            return SideEffect.Level.NONE;
+        }
+
         SideEffect.Level result = getHighestMethodSideEffectLevel();
         if (result == SideEffect.Level.STRONG) {
             return result;
@@ -330,7 +446,12 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
     }
 
     public ExecutionNode getTemplateNode(int address) {
-        return addressToNodePile.get(address).get(TEMPLATE_NODE_INDEX);
+        List<ExecutionNode> pile = addressToNodePile.get(address);
+        if ((pile == null) && (template != null)) {
+            return template.getTemplateNode(address);
+        }
+
+        return pile.get(TEMPLATE_NODE_INDEX);
     }
 
     public HeapItem getTerminatingFieldConsensus(String fieldDescriptor) {
@@ -367,6 +488,39 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         return result;
     }
 
+    /**
+     * @param address
+     * @return true if paths which weren't explored because of a limit may have reached the address
+     */
+    public boolean isIncompleteAddress(int address) {
+        if (!isPartial()) {
+            return false;
+        }
+
+        return getIncompleteAddresses().contains(address);
+    }
+
+    /**
+     * @return true if execution stopped exploring some paths because a limit was reached
+     */
+    public boolean isPartial() {
+        return truncatedAddresses != null;
+    }
+
+    /**
+     * Stop exploring from a node which wasn't executed because a limit was reached. Every address reachable from the
+     * node becomes incomplete.
+     *
+     * @param node
+     */
+    public void truncate(ExecutionNode node) {
+        if (truncatedAddresses == null) {
+            truncatedAddresses = new TIntHashSet();
+        }
+        truncatedAddresses.add(node.getAddress());
+        incompleteAddresses = null;
+    }
+
     @Override
     public Iterator<ExecutionNode> iterator() {
         return new ExecutionGraphIterator(this);
@@ -384,6 +538,9 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
 
         // If this address was reached during execution there will be clones in the pile.
         List<ExecutionNode> nodePile = addressToNodePile.get(address);
+        if ((nodePile == null) && (template != null)) {
+            nodePile = template.addressToNodePile.get(address);
+        }
         if ((nodePile == null) || (1 > nodePile.size())) {
             log.warn("Node pile @" + address + " has no template node.");
             return false;
@@ -392,4 +549,74 @@ public class ExecutionGraph implements Iterable<ExecutionNode> {
         return nodePile.size() > 1;
     }
 
+    protected void shiftIncompleteAddresses(int startAddress, int shift) {
+        if (!isPartial()) {
+            return;
+        }
+
+        TIntSet shifted = new TIntHashSet();
+        for (int address : getIncompleteAddresses().toArray()) {
+            shifted.add(address > startAddress ? address + shift : address);
+        }
+        incompleteAddresses = shifted;
+    }
+
+    /**
+     * Mark an address as incomplete, e.g. when an instruction is inserted in front of an incomplete address. Does
+     * nothing if the graph is complete.
+     *
+     * @param address
+     */
+    protected void addIncompleteAddress(int address) {
+        if (!isPartial()) {
+            return;
+        }
+
+        getIncompleteAddresses().add(address);
+    }
+
+    /*
+     * Everything reachable from a truncated address, including exception handlers.
+     */
+    private TIntSet getIncompleteAddresses() {
+        if (incompleteAddresses != null) {
+            return incompleteAddresses;
+        }
+
+        incompleteAddresses = new TIntHashSet();
+        TIntList toVisit = new TIntArrayList(truncatedAddresses.toArray());
+        while (!toVisit.isEmpty()) {
+            int address = toVisit.removeAt(toVisit.size() - 1);
+            if (!incompleteAddresses.add(address)) {
+                continue;
+            }
+
+            toVisit.add(getTemplateNode(address).getOp().getChildren());
+            for (BuilderTryBlock tryBlock : tryBlocks) {
+                int start = tryBlock.getStartCodeAddress();
+                // End is inclusive, same as ExceptionHandlerAddressResolver
+                if ((address < start) || (address > (start + tryBlock.getCodeUnitCount()))) {
+                    continue;
+                }
+                for (BuilderExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                    toVisit.add(handler.getHandlerCodeAddress());
+                }
+            }
+        }
+
+        return incompleteAddresses;
+    }
+
+    private void materializeNodePiles() {
+        for (int address : template.getAddresses()) {
+            if (addressToNodePile.containsKey(address)) {
+                continue;
+            }
+
+            List<ExecutionNode> nodePile = new ArrayList<ExecutionNode>(1);
+            nodePile.add(new ExecutionNode(template.getTemplateNode(address)));
+            addressToNodePile.put(address, nodePile);
+        }
+    }
+
 }
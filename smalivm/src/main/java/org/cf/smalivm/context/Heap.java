@@ -96,7 +96,7 @@ class Heap {
             }
 
             HeapItem currentItem = ancestor.get(currentKey);
-            if (targetItem.getValue() == currentItem.getValue()) {
+            if (targetItem.valueIdentity(currentItem)) {
                 set(currentKey, cloneItem);
             }
         }
@@ -160,7 +160,7 @@ class Heap {
         HeapItem oldItem = get(key);
         for (String currentKey : keySet()) {
             HeapItem currentValue = get(currentKey);
-            if (oldItem.getValue() == currentValue.getValue()) {
+            if (oldItem.valueIdentity(currentValue)) {
                 set(currentKey, item);
             }
         }
@@ -24,7 +24,15 @@ public class HeapItem {
     }
 
     HeapItem(HeapItem other) {
-        value = cloner.deepClone(other.getValue());
+        Object otherValue = other.value;
+        if (otherValue instanceof ChunkedArray) {
+            value = ((ChunkedArray) otherValue).copy();
+        } else if (ChunkedArray.canChunk(otherValue)) {
+            // Later copies of this copy only copy chunks which are written to.
+            value = ChunkedArray.copyOf(otherValue);
+        } else {
+            value = cloner.deepClone(otherValue);
+        }
         type = other.getType();
     }
 
@@ -32,10 +40,33 @@ public class HeapItem {
         return new HeapItem(new UnknownValue(), type);
     }
 
+    /**
+     * Unlike building a new item from {@link #getValue()}, this doesn't join a chunked array.
+     *
+     * @param type
+     * @return item with the same value and the given type
+     */
+    public HeapItem withType(String type) {
+        return new HeapItem(value, type);
+    }
+
     public Object getValue() {
+        if (value instanceof ChunkedArray) {
+            return ((ChunkedArray) value).toArray();
+        }
+
         return value;
     }
 
+    /**
+     * Ops which only read or write single elements should use this so large arrays don't have to be joined.
+     *
+     * @return value if it's stored as a chunked array, otherwise null
+     */
+    public ChunkedArray getChunkedArray() {
+        return value instanceof ChunkedArray ? (ChunkedArray) value : null;
+    }
+
     public double getDoubleValue() {
         return Utils.getDoubleValue(getValue());
     }
@@ -78,7 +109,18 @@ public class HeapItem {
     }
 
     public boolean valueIdentity(HeapItem other) {
-        return getValue() == other.getValue();
+        return getIdentity() == other.getIdentity();
+    }
+
+    /*
+     * Like getValue, but doesn't join chunked arrays. A joined array is the same object as its Java array.
+     */
+    private Object getIdentity() {
+        if ((value instanceof ChunkedArray) && ((ChunkedArray) value).isJoined()) {
+            return ((ChunkedArray) value).toArray();
+        }
+
+        return value;
     }
 
     public boolean isPrimitive() {
@@ -94,7 +136,7 @@ public class HeapItem {
     }
 
     public boolean isUnknown() {
-        return getValue() instanceof UnknownValue;
+        return value instanceof UnknownValue;
     }
 
     public boolean isImmutable() {
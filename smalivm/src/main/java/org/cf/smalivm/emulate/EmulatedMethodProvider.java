@@ -0,0 +1,16 @@
+package org.cf.smalivm.emulate;
+
+import java.util.Map;
+
+/**
+ * Service for adding emulated methods without changing smalivm. List implementations in
+ * META-INF/services/org.cf.smalivm.emulate.EmulatedMethodProvider and they're loaded with {@link MethodEmulator}.
+ */
+public interface EmulatedMethodProvider {
+
+    /**
+     * @return emulated method classes keyed by method descriptor
+     */
+    Map<String, Class<? extends EmulatedMethod>> getEmulatedMethods();
+
+}
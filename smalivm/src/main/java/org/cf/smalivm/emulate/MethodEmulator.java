@@ -1,20 +1,35 @@
 package org.cf.smalivm.emulate;
 
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
 import org.cf.smalivm.SideEffect;
 import org.cf.smalivm.VirtualException;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.ExecutionContext;
+import org.cf.util.SymbolTable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashMap;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
 import java.util.Set;
 
+/**
+ * Emulates methods which can't be executed or reflected. Built in emulated methods are added first, then methods from
+ * each {@link EmulatedMethodProvider} found with {@link ServiceLoader}. Methods are looked up by the interned id of
+ * their descriptor.
+ * <p>
+ * Emulated methods implementing {@link ReusableMethod} are created once and shared. All others are created for each
+ * call from a constructor which is resolved when the method is added.
+ */
 public class MethodEmulator {
 
     private static final Logger log = LoggerFactory.getLogger(MethodEmulator.class.getSimpleName());
-    private static Map<String, Class<? extends EmulatedMethod>> emulatedMethods = new HashMap<String, Class<? extends EmulatedMethod>>();
+    // Copied on write so lookups need no locking
+    private static volatile TIntObjectMap<Registration> methodIdToRegistration = new TIntObjectHashMap<Registration>();
 
     static {
         addMethod("Lorg/cf/simplify/Utils;->breakpoint()V", org_cf_simplify_Utils_breakpoint.class);
@@ -31,6 +46,7 @@ public class MethodEmulator {
                 java_lang_Class_getField.class);
         addMethod("Ljava/lang/reflect/Field;->get(Ljava/lang/Object;)Ljava/lang/Object;",
                 java_lang_reflect_Field_get.class);
+        loadProviders(MethodEmulator.class.getClassLoader());
     }
 
     private final VirtualMachine vm;
@@ -45,34 +61,83 @@ public class MethodEmulator {
         method = getMethod(methodDescriptor);
     }
 
+    private static Registration getRegistration(String methodDescriptor) {
+        return methodIdToRegistration.get(SymbolTable.getMethod(methodDescriptor).getId());
+    }
+
     private static EmulatedMethod getMethod(String methodDescriptor) {
-        Class<? extends EmulatedMethod> methodClass = emulatedMethods.get(methodDescriptor);
+        Registration registration = getRegistration(methodDescriptor);
         EmulatedMethod em = null;
         try {
-            em = methodClass.newInstance();
-        } catch (InstantiationException | IllegalAccessException e) {
+            em = registration.getMethod();
+        } catch (InstantiationException | IllegalAccessException | InvocationTargetException e) {
             e.printStackTrace();
         }
 
         return em;
     }
 
-    public static void addMethod(String methodDescriptor, Class<? extends EmulatedMethod> methodClass) {
-        emulatedMethods.put(methodDescriptor, methodClass);
+    public static synchronized void addMethod(String methodDescriptor, Class<? extends EmulatedMethod> methodClass) {
+        Registration registration;
+        try {
+            registration = new Registration(methodClass);
+        } catch (NoSuchMethodException | InstantiationException | IllegalAccessException |
+                InvocationTargetException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to add emulated method " + methodDescriptor + " with " + methodClass, e);
+            }
+            return;
+        }
+
+        TIntObjectMap<Registration> updated = new TIntObjectHashMap<Registration>(methodIdToRegistration);
+        updated.put(SymbolTable.getMethod(methodDescriptor).getId(), registration);
+        methodIdToRegistration = updated;
+    }
+
+    public static synchronized void removeMethod(String methodDescriptor) {
+        TIntObjectMap<Registration> updated = new TIntObjectHashMap<Registration>(methodIdToRegistration);
+        updated.remove(SymbolTable.getMethod(methodDescriptor).getId());
+        methodIdToRegistration = updated;
+    }
+
+    /**
+     * Add methods from each {@link EmulatedMethodProvider} listed in META-INF/services. Methods from later providers
+     * replace earlier ones with the same descriptor.
+     *
+     * @param classLoader
+     */
+    public static void loadProviders(ClassLoader classLoader) {
+        ServiceLoader<EmulatedMethodProvider> providers = ServiceLoader.load(EmulatedMethodProvider.class,
+                classLoader);
+        try {
+            for (EmulatedMethodProvider provider : providers) {
+                Map<String, Class<? extends EmulatedMethod>> methods = provider.getEmulatedMethods();
+                for (Map.Entry<String, Class<? extends EmulatedMethod>> entry : methods.entrySet()) {
+                    addMethod(entry.getKey(), entry.getValue());
+                }
+                if (log.isDebugEnabled()) {
+                    log.debug("Added {} emulated methods from {}", methods.size(), provider.getClass().getName());
+                }
+            }
+        } catch (ServiceConfigurationError e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to load emulated method providers", e);
+            }
+        }
     }
 
     public static boolean canEmulate(String methodDescriptor) {
-        return emulatedMethods.containsKey(methodDescriptor);
+        return getRegistration(methodDescriptor) != null;
     }
 
     public static boolean canHandleUnknownValues(String methodDescriptor) {
-        Class<? extends EmulatedMethod> methodClass = emulatedMethods.get(methodDescriptor);
+        Registration registration = getRegistration(methodDescriptor);
 
-        return (methodClass != null) && (methodClass.isAssignableFrom(UnknownValuesMethod.class));
+        return (registration != null) && registration.handlesUnknownValues;
     }
 
-    public static void clearMethods() {
-        emulatedMethods.clear();
+    public static synchronized void clearMethods() {
+        methodIdToRegistration = new TIntObjectHashMap<Registration>();
     }
 
     public void emulate() {
@@ -97,4 +162,33 @@ public class MethodEmulator {
         return method.getExceptions();
     }
 
+    private static class Registration {
+
+        private final boolean handlesUnknownValues;
+        // Either the shared instance or the constructor for each call
+        private final EmulatedMethod instance;
+        private final Constructor<? extends EmulatedMethod> constructor;
+
+        private Registration(Class<? extends EmulatedMethod> methodClass) throws NoSuchMethodException,
+                InstantiationException, IllegalAccessException, InvocationTargetException {
+            handlesUnknownValues = UnknownValuesMethod.class.isAssignableFrom(methodClass);
+            Constructor<? extends EmulatedMethod> ctor = methodClass.getDeclaredConstructor();
+            // Built in emulated methods have package private constructors.
+            ctor.setAccessible(true);
+            if (ReusableMethod.class.isAssignableFrom(methodClass)) {
+                instance = ctor.newInstance();
+                constructor = null;
+            } else {
+                instance = null;
+                constructor = ctor;
+            }
+        }
+
+        private EmulatedMethod getMethod() throws InstantiationException, IllegalAccessException,
+                InvocationTargetException {
+            return instance != null ? instance : constructor.newInstance();
+        }
+
+    }
+
 }
@@ -0,0 +1,9 @@
+package org.cf.smalivm.emulate;
+
+/**
+ * Emulated method which keeps no state between calls, so a single instance can be shared by every call and thread. Its
+ * side effect level and exceptions must not depend on the call.
+ */
+public interface ReusableMethod extends EmulatedMethod {
+
+}
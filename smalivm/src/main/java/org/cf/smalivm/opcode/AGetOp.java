@@ -1,6 +1,7 @@
 package org.cf.smalivm.opcode;
 
 import org.cf.smalivm.VirtualException;
+import org.cf.smalivm.context.ChunkedArray;
 import org.cf.smalivm.context.ExecutionNode;
 import org.cf.smalivm.context.HeapItem;
 import org.cf.smalivm.context.MethodState;
@@ -63,7 +64,8 @@ public class AGetOp extends MethodStateOp {
             String innerType = getUnknownArrayInnerType(arrayItem);
             getItem = HeapItem.newUnknown(innerType);
         } else {
-            Object array = arrayItem.getValue();
+            ChunkedArray chunkedArray = arrayItem.getChunkedArray();
+            Object array = chunkedArray != null ? chunkedArray : arrayItem.getValue();
             if (indexItem.isUnknown()) {
                 String innerType = arrayItem.getType().replaceFirst("\\[", "");
                 getItem = HeapItem.newUnknown(innerType);
@@ -80,13 +82,14 @@ public class AGetOp extends MethodStateOp {
 
                 int index = indexItem.getIntegerValue();
                 String innerType = arrayItem.getType().replaceFirst("\\[", "");
-                if (index >= Array.getLength(array)) {
+                int length = chunkedArray != null ? chunkedArray.length() : Array.getLength(array);
+                if (index >= length) {
                     VirtualException exception = new VirtualException(ArrayIndexOutOfBoundsException.class);
                     node.setException(exception);
                     node.clearChildAddresses();
                     return;
                 } else {
-                    Object value = Array.get(array, index);
+                    Object value = chunkedArray != null ? chunkedArray.get(index) : Array.get(array, index);
                     getItem = new HeapItem(value, innerType);
                     // node.clearExceptions();
                 }
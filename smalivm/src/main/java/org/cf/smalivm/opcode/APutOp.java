@@ -3,6 +3,7 @@ package org.cf.smalivm.opcode;
 import org.cf.smalivm.ClassManager;
 import org.cf.smalivm.VirtualException;
 import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.ChunkedArray;
 import org.cf.smalivm.context.ExecutionNode;
 import org.cf.smalivm.context.HeapItem;
 import org.cf.smalivm.context.MethodState;
@@ -120,7 +121,8 @@ public class APutOp extends MethodStateOp {
                 String type = arrayItem.getType();
                 arrayItem = HeapItem.newUnknown(type);
             } else {
-                Object array = arrayItem.getValue();
+                ChunkedArray chunkedArray = arrayItem.getChunkedArray();
+                Object array = chunkedArray != null ? chunkedArray : arrayItem.getValue();
                 if (null == array) {
                     node.setException(new VirtualException(NullPointerException.class));
                     node.clearChildAddresses();
@@ -128,13 +130,19 @@ public class APutOp extends MethodStateOp {
                 }
 
                 int index = indexItem.getIntegerValue();
-                if (index >= Array.getLength(array)) {
+                int length = chunkedArray != null ? chunkedArray.length() : Array.getLength(array);
+                if (index >= length) {
                     node.setException(new VirtualException(ArrayIndexOutOfBoundsException.class));
                     node.clearChildAddresses();
                     return;
                 } else {
                     Object value = castValue(getName(), valueItem.getValue());
-                    Array.set(array, index, value);
+                    if (chunkedArray != null) {
+                        // Only copies the chunk with the index if it's shared with another context.
+                        chunkedArray.set(index, value);
+                    } else {
+                        Array.set(array, index, value);
+                    }
                     node.clearExceptions();
                 }
             }
@@ -1,6 +1,7 @@
 package org.cf.smalivm.opcode;
 
 import org.cf.smalivm.VirtualException;
+import org.cf.smalivm.context.ChunkedArray;
 import org.cf.smalivm.context.ExecutionNode;
 import org.cf.smalivm.context.HeapItem;
 import org.cf.smalivm.context.MethodState;
@@ -41,10 +42,14 @@ public class ArrayLengthOp extends MethodStateOp {
     @Override
     public void execute(ExecutionNode node, MethodState mState) {
         HeapItem arrayItem = mState.readRegister(arrayRegister);
-        Object array = arrayItem.getValue();
+        ChunkedArray chunkedArray = arrayItem.getChunkedArray();
+        Object array = chunkedArray != null ? chunkedArray : arrayItem.getValue();
         Object lengthValue = null;
         if (arrayItem.isUnknown()) {
             lengthValue = new UnknownValue();
+        } else if (chunkedArray != null) {
+            lengthValue = chunkedArray.length();
+            node.clearExceptions();
         } else if ((array != null) && array.getClass().isArray()) {
             lengthValue = Array.getLength(array);
             node.clearExceptions();
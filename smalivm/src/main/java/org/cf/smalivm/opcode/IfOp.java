@@ -114,7 +114,10 @@ public class IfOp extends MethodStateOp {
         Object lhs = lhsItem.getValue();
         Object rhs = rhsItem.getValue();
         int cmp = Integer.MIN_VALUE;
-        if (compareToZero) {
+        if (isIntegerCompare() && (lhs != null) && (rhs != null)) {
+            // Types are known statically, so skip checking value classes.
+            cmp = Integer.compare(getIntValue(lhs), getIntValue(rhs));
+        } else if (compareToZero) {
             if (lhs == null) {
                 // if-*z ops are used to check for null refs
                 cmp = lhs == null ? 0 : 1;
@@ -144,6 +147,14 @@ public class IfOp extends MethodStateOp {
         node.setChildAddresses(result);
     }
 
+    private static int getIntValue(Object value) {
+        return value instanceof Integer ? (Integer) value : Utils.getIntegerValue(value);
+    }
+
+    private boolean isIntegerCompare() {
+        return getRegisterType(register1).isIntegral() && (compareToZero || getRegisterType(register2).isIntegral());
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder(getName());
@@ -4,6 +4,7 @@ import gnu.trove.list.TIntList;
 import gnu.trove.list.linked.TIntLinkedList;
 import org.cf.smalivm.ClassManager;
 import org.cf.smalivm.MethodReflector;
+import org.cf.smalivm.ReflectionMemo;
 import org.cf.smalivm.SideEffect;
 import org.cf.smalivm.VirtualMachine;
 import org.cf.smalivm.context.*;
@@ -15,6 +16,7 @@ import org.cf.smalivm.exception.UnhandledVirtualException;
 import org.cf.smalivm.type.LocalType;
 import org.cf.util.ImmutableUtils;
 import org.cf.util.SmaliClassUtils;
+import org.cf.util.SymbolTable;
 import org.cf.util.Utils;
 import org.jf.dexlib2.iface.instruction.Instruction;
 import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
@@ -22,13 +24,10 @@ import org.jf.dexlib2.iface.instruction.formats.Instruction35c;
 import org.jf.dexlib2.iface.instruction.formats.Instruction3rc;
 import org.jf.dexlib2.iface.reference.MethodReference;
 import org.jf.dexlib2.util.ReferenceUtil;
-import org.jf.dexlib2.writer.builder.BuilderClassDef;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
 import java.util.List;
-import java.util.Set;
 
 public class InvokeOp extends ExecutionContextOp {
 
@@ -40,6 +39,8 @@ public class InvokeOp extends ExecutionContextOp {
     private final String returnType;
     private final VirtualMachine vm;
     private SideEffect.Level sideEffectLevel;
+    private Object cachedReceiverKey;
+    private String cachedTarget;
 
     private InvokeOp(int address, String opName, int childAddress, String methodDescriptor, String returnType,
                      int[] parameterRegisters, List<String> parameterTypes, VirtualMachine vm, boolean isStatic) {
@@ -119,43 +120,6 @@ public class InvokeOp extends ExecutionContextOp {
                 parameterTypes, vm, isStatic);
     }
 
-    private static boolean doesNonLocalMethodExist(String className, String methodSignature) {
-        Class<?> klazz = null;
-        try {
-            klazz = Class.forName(SmaliClassUtils.smaliClassToJava(className));
-        } catch (ClassNotFoundException e) {
-            return false;
-        }
-
-        StringBuilder sb = new StringBuilder(className);
-        sb.append("->").append(methodSignature);
-        List<String> paramList = Utils.getParameterTypes(sb.toString());
-        Class<?>[] params = new Class<?>[paramList.size()];
-        for (int i = 0; i < paramList.size(); i++) {
-            String paramName = paramList.get(i);
-            try {
-                if (SmaliClassUtils.isPrimitiveType(paramName)) {
-                    params[i] = SmaliClassUtils.getPrimitiveType(SmaliClassUtils.smaliClassToJava(paramName));
-                } else {
-                    params[i] = Class.forName(SmaliClassUtils.smaliClassToJava(paramName));
-                }
-            } catch (ClassNotFoundException e) {
-                return false;
-            }
-        }
-
-        String methodName = methodSignature.split("\\(")[0];
-        try {
-            klazz.getMethod(methodName, params);
-        } catch (NoSuchMethodException e) {
-            return false;
-        } catch (SecurityException e) {
-            return false;
-        }
-
-        return true;
-    }
-
     @Override
     public void execute(ExecutionNode node, ExecutionContext ectx) {
         // TODO: In order to get working call stacks, refactor this to delegate most of the work to MethodExecutor.
@@ -168,7 +132,7 @@ public class InvokeOp extends ExecutionContextOp {
             // Resolve what the actual virtual target is because method call may be to interface or abstract class.
             int targetRegister = parameterRegisters[0];
             HeapItem item = ectx.getMethodState().peekRegister(targetRegister);
-            targetMethod = getLocalTargetForVirtualMethod(item.getValue());
+            targetMethod = getLocalTargetForVirtualMethod(item);
         }
 
         MethodState callerMethodState = ectx.getMethodState();
@@ -282,11 +246,31 @@ public class InvokeOp extends ExecutionContextOp {
             // Since we have explicit type, over ride any implied type as it may be inaccurate.
             // For example, might think it's an int when really it's a short or boolean.
             String type = parameterTypes.get(i);
-            calleeState.assignParameter(parameterRegister, new HeapItem(item.getValue(), type));
+            calleeState.assignParameter(parameterRegister, item.withType(type));
             parameterRegister += Utils.getRegisterSize(type);
         }
     }
 
+    /*
+     * Reflection makes arguments unknown if a failed call may have changed them. Do the same in the caller. The
+     * instance is updated separately.
+     */
+    private void updateUnknownArguments(MethodState callerState, MethodState calleeState) {
+        int parameterRegister = calleeState.getParameterStart();
+        for (int i = 0; i < parameterRegisters.length; i++) {
+            HeapItem item = calleeState.peekParameter(parameterRegister);
+            parameterRegister += Utils.getRegisterSize(parameterTypes.get(i));
+            if ((i == 0) && !isStatic) {
+                continue;
+            }
+
+            int callerRegister = parameterRegisters[i];
+            if (item.isUnknown() && !callerState.peekRegister(callerRegister).isUnknown()) {
+                callerState.assignRegisterAndUpdateIdentities(callerRegister, item);
+            }
+        }
+    }
+
     private void assumeMaximumUnknown(MethodState mState) {
         // TODO: add option to mark all class states unknown instead of just method state
         for (int i = 0; i < parameterTypes.size(); i++) {
@@ -384,12 +368,39 @@ public class InvokeOp extends ExecutionContextOp {
 
         if (!returnType.equals("V")) {
             HeapItem consensus = graph.getTerminatingRegisterConsensus(MethodState.ReturnRegister);
+            if ((consensus == null) && graph.isPartial()) {
+                // No explored path returned.
+                consensus = HeapItem.newUnknown(returnType);
+            }
             callerContext.getMethodState().assignResultRegister(consensus);
         }
 
         sideEffectLevel = graph.getHighestSideEffectLevel();
     }
 
+    /*
+     * Results can only be shared between calls if nothing can mutate the arguments or the result.
+     */
+    private ReflectionMemo.Key getMemoKey(String methodDescriptor, MethodState calleeMethodState) {
+        if ("V".equals(returnType) || !ImmutableUtils.isImmutableClass(returnType) || methodDescriptor.contains(
+                "-><init>(")) {
+            return null;
+        }
+
+        Object[] arguments = new Object[parameterTypes.size()];
+        int register = 0;
+        for (int i = 0; i < arguments.length; i++) {
+            HeapItem item = calleeMethodState.peekParameter(register);
+            if (!item.isImmutable()) {
+                return null;
+            }
+            arguments[i] = item.getValue();
+            register += Utils.getRegisterSize(parameterTypes.get(i));
+        }
+
+        return ReflectionMemo.getKey(methodDescriptor, arguments);
+    }
+
     private void executeNonLocalMethod(String methodDescriptor, MethodState callerContext,
                                        ExecutionContext calleeContext, ExecutionNode node) {
         if (MethodEmulator.canEmulate(methodDescriptor)) {
@@ -404,8 +415,31 @@ public class InvokeOp extends ExecutionContextOp {
         } else if (MethodReflector.canReflect(methodDescriptor)) {
             assert allArgumentsKnown(calleeContext.getMethodState());
 
-            MethodReflector reflector = new MethodReflector(methodDescriptor, returnType, parameterTypes, isStatic);
-            reflector.reflect(calleeContext.getMethodState()); // playa play
+            MethodState calleeMethodState = calleeContext.getMethodState();
+            ReflectionMemo memo = vm.getReflectionMemo();
+            ReflectionMemo.Key memoKey = null;
+            Object memoResult = null;
+            if (memo != null) {
+                memoKey = getMemoKey(methodDescriptor, calleeMethodState);
+                if (memoKey != null) {
+                    memoResult = memo.get(memoKey);
+                }
+            }
+
+            if (memoResult != null) {
+                calleeMethodState.assignReturnRegister(memoResult, returnType);
+            } else {
+                MethodReflector reflector = MethodReflector.getReflector(methodDescriptor, returnType, parameterTypes,
+                        isStatic);
+                reflector.reflect(calleeMethodState, vm.getReflectionExecutor()); // playa play
+                updateUnknownArguments(callerContext, calleeMethodState);
+                if (memoKey != null) {
+                    HeapItem returnItem = calleeMethodState.readReturnRegister();
+                    if (!returnItem.isUnknown()) {
+                        memo.put(memoKey, returnItem.getValue());
+                    }
+                }
+            }
 
             // Only safe, non-side-effect methods are allowed to be reflected.
             sideEffectLevel = SideEffect.Level.NONE;
@@ -415,7 +449,7 @@ public class InvokeOp extends ExecutionContextOp {
             // Handle updating the instance reference
             HeapItem originalInstanceItem = callerContext.peekRegister(parameterRegisters[0]);
             HeapItem newInstanceItem = calleeContext.getMethodState().peekParameter(0);
-            if (originalInstanceItem.getValue() != newInstanceItem.getValue()) {
+            if (!originalInstanceItem.valueIdentity(newInstanceItem)) {
                 // Instance went from UninitializedInstance class to something else.
                 // TODO: add test for this!
                 callerContext.assignRegisterAndUpdateIdentities(parameterRegisters[0], newInstanceItem);
@@ -431,65 +465,39 @@ public class InvokeOp extends ExecutionContextOp {
         }
     }
 
-    private String getLocalTargetForVirtualMethod(Object value) {
-        String actualType;
+    private String getLocalTargetForVirtualMethod(HeapItem item) {
+        // Only the class of a chunked array matters, so don't join it.
+        ChunkedArray chunkedArray = item.getChunkedArray();
+        Object value = chunkedArray == null ? item.getValue() : null;
+        // Local instances are all LocalTypes, so key on their type name. Otherwise the class is enough.
+        Object receiverKey;
         if (value instanceof LocalType) {
-            actualType = ((LocalType) value).getName();
+            receiverKey = ((LocalType) value).getName();
         } else {
-            actualType = SmaliClassUtils.javaClassToSmali(value.getClass().getName());
+            receiverKey = chunkedArray != null ? chunkedArray.getArrayClass() : value.getClass();
         }
-
-        if (SmaliClassUtils.isPrimitiveType(actualType)) {
-            actualType = SmaliClassUtils.smaliPrimitiveToJavaWrapper(actualType);
+        if (receiverKey.equals(cachedReceiverKey)) {
+            return cachedTarget;
         }
-        String methodSignature = methodDescriptor.split("->")[1];
-        ClassManager classManager = vm.getClassManager();
-        String targetMethod = getLocalTargetForVirtualMethod(actualType, methodSignature, classManager,
-                new HashSet<String>());
-
-        return targetMethod != null ? targetMethod : methodDescriptor;
-    }
 
-    private String getLocalTargetForVirtualMethod(String className, String methodSignature, ClassManager classManager,
-                                                  Set<String> visited) {
-        visited.add(className);
-        StringBuilder sb = new StringBuilder(className);
-        sb.append("->").append(methodSignature);
-        String methodDescriptor = sb.toString();
-
-        boolean isLocalMethod = classManager.isLocalMethod(methodDescriptor);
-        if ((isLocalMethod && classManager.methodHasImplementation(methodDescriptor))) {
-            return methodDescriptor;
-        }
-
-        if (MethodReflector.isSafe(methodDescriptor) && doesNonLocalMethodExist(className, methodSignature)) {
-            return methodDescriptor;
-        }
-
-        if (!classManager.isLocalClass(className)) {
-            // Can't trace any further up.
-            // Note, also checked if this is white-listed Java API
-            return null;
+        String actualType;
+        if (value instanceof LocalType) {
+            actualType = (String) receiverKey;
+        } else {
+            actualType = SmaliClassUtils.javaClassToSmali(((Class<?>) receiverKey).getName());
         }
 
-        BuilderClassDef classDef = classManager.getClass(className);
-        Set<String> parents = new HashSet<String>();
-        parents.addAll(classDef.getInterfaces());
-        if (null != classDef.getSuperclass()) {
-            parents.add(classDef.getSuperclass());
+        if (SmaliClassUtils.isPrimitiveType(actualType)) {
+            actualType = SmaliClassUtils.smaliPrimitiveToJavaWrapper(actualType);
         }
+        String methodSignature = SymbolTable.getMethod(methodDescriptor).getSignature();
+        String targetMethod = vm.getClassManager().getVirtualMethodTarget(actualType, methodSignature);
 
-        for (String parent : parents) {
-            if (visited.contains(parent)) {
-                continue;
-            }
-            String target = getLocalTargetForVirtualMethod(parent, methodSignature, classManager, visited);
-            if (null != target) {
-                return target;
-            }
-        }
+        // Call sites almost always see one receiver type, so only remember the last one.
+        cachedReceiverKey = receiverKey;
+        cachedTarget = targetMethod != null ? targetMethod : methodDescriptor;
 
-        return null;
+        return cachedTarget;
     }
 
     public String getMethodDescriptor() {
@@ -13,6 +13,8 @@ public abstract class Op {
     // These should be final, but when graphs are modified, these values need to change.
     private int address;
     private int[] childAddresses;
+    // Register types before this op, from static inference. Null if unknown, e.g. for ops added by optimizations.
+    private RegisterType[] registerTypes;
 
     Op(int address, String opName, int childAddress) {
         this(address, opName, new int[]{childAddress});
@@ -45,6 +47,22 @@ public abstract class Op {
         this.childAddresses = childAddresses;
     }
 
+    /**
+     * @param register
+     * @return statically inferred type of the register before this op, or CONFLICT if it isn't known
+     */
+    public RegisterType getRegisterType(int register) {
+        if ((registerTypes == null) || (register < 0) || (register >= registerTypes.length)) {
+            return RegisterType.CONFLICT;
+        }
+
+        return registerTypes[register];
+    }
+
+    public void setRegisterTypes(RegisterType[] registerTypes) {
+        this.registerTypes = registerTypes;
+    }
+
     public SideEffect.Level sideEffectLevel() {
         return SideEffect.Level.NONE;
     }
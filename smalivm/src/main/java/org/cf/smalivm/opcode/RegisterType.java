@@ -0,0 +1,79 @@
+package org.cf.smalivm.opcode;
+
+/**
+ * Statically inferred kind of value in a register. Coarser than a type descriptor, like the categories used by the
+ * Dalvik verifier, but enough to know how a value is represented while executing.
+ */
+public enum RegisterType {
+
+    /**
+     * Narrow literal zero, which may also be used as null or false. It's executed as Integer 0.
+     */
+    ZERO,
+    /**
+     * int, short, byte, char or boolean
+     */
+    INTEGRAL,
+    FLOAT,
+    /**
+     * Either register of a long or double
+     */
+    WIDE,
+    /**
+     * Object or array reference, or null
+     */
+    REFERENCE,
+    /**
+     * Not known, or different kinds on different paths
+     */
+    CONFLICT;
+
+    /**
+     * @param type type descriptor, e.g. I or Ljava/lang/Object;
+     * @return kind of register holding a value of the type
+     */
+    public static RegisterType of(String type) {
+        if (type.isEmpty()) {
+            return CONFLICT;
+        }
+
+        switch (type.charAt(0)) {
+            case 'Z':
+            case 'B':
+            case 'S':
+            case 'C':
+            case 'I':
+                return INTEGRAL;
+            case 'F':
+                return FLOAT;
+            case 'J':
+            case 'D':
+                return WIDE;
+            case 'L':
+            case '[':
+                return REFERENCE;
+            default:
+                return CONFLICT;
+        }
+    }
+
+    public boolean isIntegral() {
+        return (this == ZERO) || (this == INTEGRAL);
+    }
+
+    /**
+     * @param other
+     * @return kind which holds for both this and other
+     */
+    public RegisterType merge(RegisterType other) {
+        if (this == other) {
+            return this;
+        }
+        if (isIntegral() && other.isIntegral()) {
+            return INTEGRAL;
+        }
+
+        return CONFLICT;
+    }
+
+}
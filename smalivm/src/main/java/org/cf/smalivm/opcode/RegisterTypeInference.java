@@ -0,0 +1,289 @@
+package org.cf.smalivm.opcode;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntObjectMap;
+import gnu.trove.map.hash.TIntObjectHashMap;
+import gnu.trove.set.TIntSet;
+import gnu.trove.set.hash.TIntHashSet;
+import org.jf.dexlib2.Opcode;
+import org.jf.dexlib2.builder.BuilderExceptionHandler;
+import org.jf.dexlib2.builder.BuilderInstruction;
+import org.jf.dexlib2.builder.BuilderTryBlock;
+import org.jf.dexlib2.builder.MutableMethodImplementation;
+import org.jf.dexlib2.iface.instruction.NarrowLiteralInstruction;
+import org.jf.dexlib2.iface.instruction.OffsetInstruction;
+import org.jf.dexlib2.iface.instruction.OneRegisterInstruction;
+import org.jf.dexlib2.iface.instruction.ReferenceInstruction;
+import org.jf.dexlib2.iface.instruction.SwitchElement;
+import org.jf.dexlib2.iface.instruction.SwitchPayload;
+import org.jf.dexlib2.iface.instruction.TwoRegisterInstruction;
+import org.jf.dexlib2.iface.reference.FieldReference;
+import org.jf.dexlib2.iface.reference.MethodReference;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * Infers the kind of value in each register before each instruction of a method, similar to the Dalvik verifier. This
+ * is a forward dataflow pass over every path, including exception handlers, so it only depends on the code and is done
+ * once per method.
+ */
+public class RegisterTypeInference {
+
+    /**
+     * @param method method with an implementation
+     * @return register types before each reachable instruction, indexed by register and keyed by address
+     */
+    public static TIntObjectMap<RegisterType[]> infer(BuilderMethod method) {
+        MutableMethodImplementation implementation = (MutableMethodImplementation) method.getImplementation();
+        int registerCount = implementation.getRegisterCount();
+        List<BuilderInstruction> instructions = implementation.getInstructions();
+        TIntObjectMap<BuilderInstruction> addressToInstruction = new TIntObjectHashMap<BuilderInstruction>(
+                instructions.size());
+        for (BuilderInstruction instruction : instructions) {
+            addressToInstruction.put(instruction.getLocation().getCodeAddress(), instruction);
+        }
+
+        // One slot per register and a last one for the result register.
+        TIntObjectMap<RegisterType[]> addressToTypes = new TIntObjectHashMap<RegisterType[]>(instructions.size());
+        addressToTypes.put(0, buildEntryTypes(method, registerCount));
+        Deque<Integer> worklist = new ArrayDeque<Integer>();
+        TIntSet queued = new TIntHashSet();
+        worklist.add(0);
+        queued.add(0);
+        while (!worklist.isEmpty()) {
+            int address = worklist.poll();
+            queued.remove(address);
+            BuilderInstruction instruction = addressToInstruction.get(address);
+            if (instruction == null) {
+                continue;
+            }
+
+            RegisterType[] types = addressToTypes.get(address);
+            RegisterType[] nextTypes = types.clone();
+            transfer(instruction, nextTypes);
+            TIntList successors = getSuccessors(instruction, address, addressToInstruction);
+            for (int i = 0; i < successors.size(); i++) {
+                mergeInto(successors.get(i), nextTypes, addressToTypes, worklist, queued);
+            }
+            if (instruction.getOpcode().canThrow()) {
+                // Nothing is written if the instruction throws.
+                for (int handlerAddress : getHandlerAddresses(implementation.getTryBlocks(), address)) {
+                    mergeInto(handlerAddress, types, addressToTypes, worklist, queued);
+                }
+            }
+        }
+
+        TIntObjectMap<RegisterType[]> result = new TIntObjectHashMap<RegisterType[]>(addressToTypes.size());
+        for (int address : addressToTypes.keys()) {
+            result.put(address, Arrays.copyOf(addressToTypes.get(address), registerCount));
+        }
+
+        return result;
+    }
+
+    private static RegisterType[] buildEntryTypes(BuilderMethod method, int registerCount) {
+        RegisterType[] types = new RegisterType[registerCount + 1];
+        Arrays.fill(types, RegisterType.CONFLICT);
+
+        List<? extends CharSequence> parameterTypes = method.getParameterTypes();
+        int parameterSize = Modifier.isStatic(method.getAccessFlags()) ? 0 : 1;
+        for (CharSequence parameterType : parameterTypes) {
+            parameterSize += RegisterType.of(parameterType.toString()) == RegisterType.WIDE ? 2 : 1;
+        }
+        int register = registerCount - parameterSize;
+        if (!Modifier.isStatic(method.getAccessFlags())) {
+            types[register] = RegisterType.REFERENCE;
+            register++;
+        }
+        for (CharSequence parameterType : parameterTypes) {
+            RegisterType type = RegisterType.of(parameterType.toString());
+            types[register] = type;
+            register++;
+            if (type == RegisterType.WIDE) {
+                types[register] = type;
+                register++;
+            }
+        }
+
+        return types;
+    }
+
+    private static void mergeInto(int address, RegisterType[] types, TIntObjectMap<RegisterType[]> addressToTypes,
+                                  Deque<Integer> worklist, TIntSet queued) {
+        RegisterType[] existing = addressToTypes.get(address);
+        boolean isChanged = false;
+        if (existing == null) {
+            addressToTypes.put(address, types.clone());
+            isChanged = true;
+        } else {
+            for (int i = 0; i < existing.length; i++) {
+                RegisterType merged = existing[i].merge(types[i]);
+                if (merged != existing[i]) {
+                    existing[i] = merged;
+                    isChanged = true;
+                }
+            }
+        }
+
+        if (isChanged && queued.add(address)) {
+            worklist.add(address);
+        }
+    }
+
+    private static TIntList getSuccessors(BuilderInstruction instruction, int address,
+                                          TIntObjectMap<BuilderInstruction> addressToInstruction) {
+        TIntList successors = new TIntArrayList(2);
+        Opcode op = instruction.getOpcode();
+        if (op.canContinue()) {
+            successors.add(address + instruction.getCodeUnits());
+        }
+
+        String name = op.name;
+        if (name.startsWith("goto") || name.startsWith("if-")) {
+            successors.add(address + ((OffsetInstruction) instruction).getCodeOffset());
+        } else if (name.endsWith("-switch")) {
+            int payloadAddress = address + ((OffsetInstruction) instruction).getCodeOffset();
+            BuilderInstruction payload = addressToInstruction.get(payloadAddress);
+            if (payload instanceof SwitchPayload) {
+                for (SwitchElement element : ((SwitchPayload) payload).getSwitchElements()) {
+                    // Offsets are relative to the switch, not the payload.
+                    successors.add(address + element.getOffset());
+                }
+            }
+        }
+
+        return successors;
+    }
+
+    private static TIntList getHandlerAddresses(List<BuilderTryBlock> tryBlocks, int address) {
+        TIntList handlerAddresses = new TIntArrayList(0);
+        for (BuilderTryBlock tryBlock : tryBlocks) {
+            int start = tryBlock.getStartCodeAddress();
+            if ((address < start) || (address >= (start + tryBlock.getCodeUnitCount()))) {
+                continue;
+            }
+            for (BuilderExceptionHandler handler : tryBlock.getExceptionHandlers()) {
+                handlerAddresses.add(handler.getHandlerCodeAddress());
+            }
+        }
+
+        return handlerAddresses;
+    }
+
+    private static void transfer(BuilderInstruction instruction, RegisterType[] types) {
+        Opcode op = instruction.getOpcode();
+        int resultSlot = types.length - 1;
+        if (op.setsResult()) {
+            RegisterType resultType = RegisterType.REFERENCE;
+            if (instruction instanceof ReferenceInstruction) {
+                Object reference = ((ReferenceInstruction) instruction).getReference();
+                if (reference instanceof MethodReference) {
+                    resultType = RegisterType.of(((MethodReference) reference).getReturnType());
+                }
+            }
+            types[resultSlot] = resultType;
+            return;
+        }
+        if (!op.setsRegister()) {
+            return;
+        }
+
+        int register = ((OneRegisterInstruction) instruction).getRegisterA();
+        RegisterType type = getWrittenType(instruction, types);
+        types[register] = type;
+        if (op.setsWideRegister() && ((register + 1) < resultSlot)) {
+            types[register + 1] = type;
+        }
+    }
+
+    private static RegisterType getWrittenType(BuilderInstruction instruction, RegisterType[] types) {
+        String name = instruction.getOpcode().name;
+        if (name.startsWith("move-result")) {
+            if (name.endsWith("-wide")) {
+                return RegisterType.WIDE;
+            } else if (name.endsWith("-object")) {
+                return RegisterType.REFERENCE;
+            }
+
+            return types[types.length - 1];
+        } else if (name.equals("move-exception")) {
+            return RegisterType.REFERENCE;
+        } else if (name.startsWith("move")) {
+            return types[((TwoRegisterInstruction) instruction).getRegisterB()];
+        } else if (name.startsWith("const-wide")) {
+            return RegisterType.WIDE;
+        } else if (name.startsWith("const-string") || name.equals("const-class")) {
+            return RegisterType.REFERENCE;
+        } else if (name.startsWith("const")) {
+            boolean isZero = ((NarrowLiteralInstruction) instruction).getNarrowLiteral() == 0;
+
+            return isZero ? RegisterType.ZERO : RegisterType.INTEGRAL;
+        } else if (name.equals("check-cast")) {
+            // Doesn't change the value, so zero stays zero.
+            RegisterType type = types[((OneRegisterInstruction) instruction).getRegisterA()];
+
+            return type == RegisterType.REFERENCE ? type : RegisterType.CONFLICT;
+        } else if (name.startsWith("new-")) {
+            return RegisterType.REFERENCE;
+        } else if (name.equals("instance-of") || name.equals("array-length") || name.startsWith("cmp")) {
+            return RegisterType.INTEGRAL;
+        } else if (name.startsWith("aget") || name.startsWith("iget") || name.startsWith("sget")) {
+            return getFieldOrElementType(instruction, name.substring(4));
+        } else if (name.contains("-to-")) {
+            return getPrimitiveType(name.substring(name.indexOf("-to-") + 4));
+        } else if (name.contains("-int")) {
+            return RegisterType.INTEGRAL;
+        } else if (name.contains("-long") || name.contains("-double")) {
+            return RegisterType.WIDE;
+        } else if (name.contains("-float")) {
+            return RegisterType.FLOAT;
+        }
+
+        return RegisterType.CONFLICT;
+    }
+
+    private static RegisterType getFieldOrElementType(BuilderInstruction instruction, String suffix) {
+        if (suffix.isEmpty()) {
+            if (instruction instanceof ReferenceInstruction) {
+                return RegisterType.of(((FieldReference) ((ReferenceInstruction) instruction).getReference())
+                        .getType());
+            }
+
+            // Plain aget is used for both int and float arrays.
+            return RegisterType.CONFLICT;
+        } else if ("-wide".equals(suffix)) {
+            return RegisterType.WIDE;
+        } else if ("-object".equals(suffix)) {
+            return RegisterType.REFERENCE;
+        } else if ("-boolean".equals(suffix) || "-byte".equals(suffix) || "-char".equals(suffix) || "-short".equals(
+                suffix)) {
+            return RegisterType.INTEGRAL;
+        }
+
+        return RegisterType.CONFLICT;
+    }
+
+    private static RegisterType getPrimitiveType(String primitiveName) {
+        switch (primitiveName) {
+            case "long":
+            case "double":
+                return RegisterType.WIDE;
+            case "float":
+                return RegisterType.FLOAT;
+            case "int":
+            case "short":
+            case "byte":
+            case "char":
+                return RegisterType.INTEGRAL;
+            default:
+                return RegisterType.CONFLICT;
+        }
+    }
+
+}
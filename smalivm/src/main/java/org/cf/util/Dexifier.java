@@ -2,6 +2,7 @@ package org.cf.util;
 
 import org.antlr.runtime.CommonTokenStream;
 import org.antlr.runtime.TokenSource;
+import org.antlr.runtime.TokenStream;
 import org.antlr.runtime.tree.CommonTree;
 import org.antlr.runtime.tree.CommonTreeNodeStream;
 import org.apache.commons.io.FileUtils;
@@ -37,6 +38,20 @@ public class Dexifier {
 
     public static BuilderClassDef dexifySmaliFile(String filePath, InputStream is, DexBuilder dexBuilder)
             throws Exception {
+        ParsedSmaliFile parsed = parseSmaliFile(filePath, is);
+
+        return dexifyParsedSmaliFile(parsed, dexBuilder);
+    }
+
+    /**
+     * Lex and parse a Smali file without touching a dex builder. This is safe to call from multiple threads.
+     *
+     * @param filePath
+     * @param is
+     * @return parse tree and tokens for {@link #dexifyParsedSmaliFile}
+     * @throws Exception
+     */
+    public static ParsedSmaliFile parseSmaliFile(String filePath, InputStream is) throws Exception {
         File smaliFile = new File(filePath);
         InputStreamReader reader = new InputStreamReader(is, "UTF-8");
         LexerErrorInterface lexer = new smaliFlexLexer(reader);
@@ -51,21 +66,60 @@ public class Dexifier {
             throw new RuntimeException("Unable to parse: " + smaliFile);
         }
 
-        CommonTree t = result.getTree();
-        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(t);
-        treeStream.setTokenStream(tokens);
+        return new ParsedSmaliFile(filePath, result.getTree(), tokens);
+    }
+
+    /**
+     * Walk a parsed Smali file and intern it into a dex builder. Dex builders are not thread safe, so calls which share
+     * a builder must not run concurrently.
+     *
+     * @param parsed
+     * @param dexBuilder
+     * @return class definition
+     * @throws Exception
+     */
+    public static BuilderClassDef dexifyParsedSmaliFile(ParsedSmaliFile parsed, DexBuilder dexBuilder)
+            throws Exception {
+        CommonTreeNodeStream treeStream = new CommonTreeNodeStream(parsed.getTree());
+        treeStream.setTokenStream(parsed.getTokens());
 
         smaliTreeWalker dexGen = new smaliTreeWalker(treeStream);
         dexGen.setVerboseErrors(false);
         dexGen.setDexBuilder(dexBuilder);
         BuilderClassDef classDef = (BuilderClassDef) dexGen.smali_file();
         if (dexGen.getNumberOfSyntaxErrors() != 0) {
-            throw new RuntimeException("Unable to walk: " + smaliFile);
+            throw new RuntimeException("Unable to walk: " + parsed.getPath());
         }
 
         return classDef;
     }
 
+    public static class ParsedSmaliFile {
+
+        private final String path;
+        private final CommonTree tree;
+        private final TokenStream tokens;
+
+        public ParsedSmaliFile(String path, CommonTree tree, TokenStream tokens) {
+            this.path = path;
+            this.tree = tree;
+            this.tokens = tokens;
+        }
+
+        public String getPath() {
+            return path;
+        }
+
+        public TokenStream getTokens() {
+            return tokens;
+        }
+
+        public CommonTree getTree() {
+            return tree;
+        }
+
+    }
+
     public static List<BuilderClassDef> dexifySmaliFiles(File file, DexBuilder dexBuilder) throws Exception {
         List<File> smaliFiles;
         if (file.isDirectory()) {
@@ -6,8 +6,11 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class SmaliFileFactory {
 
@@ -15,8 +18,20 @@ public class SmaliFileFactory {
 
     private static Map<String, SmaliFile> frameworkCache;
 
+    private final int threadCount;
     private Map<String, SmaliFile> frameworkClassNameToSmaliFile;
 
+    public SmaliFileFactory() {
+        this(1);
+    }
+
+    /**
+     * @param threadCount number of threads used to find input files and read their class names
+     */
+    public SmaliFileFactory(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
     private static List<File> getFilesWithSmaliExtension(File file) {
         List<File> files = new LinkedList<>();
         if (file.isDirectory()) {
@@ -81,16 +96,37 @@ public class SmaliFileFactory {
         }
     }
 
+    private static List<SmaliFile> scanSmaliFiles(File[] files, int threadCount) throws IOException {
+        List<SmaliFile> result = new LinkedList<>();
+        if (threadCount <= 1) {
+            for (File file : files) {
+                List<File> matches = getFilesWithSmaliExtension(file);
+                for (File match : matches) {
+                    result.add(new SmaliFile(match));
+                }
+            }
+
+            return result;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(threadCount);
+        try {
+            for (File file : files) {
+                result.addAll(pool.invoke(new SmaliFileScanTask(file)));
+            }
+        } finally {
+            pool.shutdown();
+        }
+
+        return result;
+    }
+
     public Set<SmaliFile> getSmaliFiles(File[] files) throws IOException {
         Set<SmaliFile> smaliFiles = new HashSet<>();
         Set<String> inputClasses = new HashSet<>();
-        for (File file : files) {
-            List<File> matches = getFilesWithSmaliExtension(file);
-            for (File match : matches) {
-                SmaliFile smaliFile = new SmaliFile(match);
-                smaliFiles.add(smaliFile);
-                inputClasses.add(smaliFile.getClassName());
-            }
+        for (SmaliFile smaliFile : scanSmaliFiles(files, threadCount)) {
+            smaliFiles.add(smaliFile);
+            inputClasses.add(smaliFile.getClassName());
         }
 
         cacheFramework();
@@ -110,4 +146,61 @@ public class SmaliFileFactory {
         return smaliFiles;
     }
 
+    /*
+     * Walks a directory, forking a task for each sub-directory, and reads the class name of each Smali file found.
+     */
+    private static class SmaliFileScanTask extends RecursiveTask<List<SmaliFile>> {
+
+        private static final long serialVersionUID = 5406211873447813457L;
+
+        private final File file;
+
+        private SmaliFileScanTask(File file) {
+            this.file = file;
+        }
+
+        @Override
+        protected List<SmaliFile> compute() {
+            List<SmaliFile> result = new LinkedList<>();
+            if (!file.isDirectory()) {
+                addIfSmaliFile(file, result);
+                return result;
+            }
+
+            File[] children = file.listFiles();
+            if (children == null) {
+                return result;
+            }
+
+            List<SmaliFileScanTask> subTasks = new LinkedList<>();
+            for (File child : children) {
+                if (child.isDirectory()) {
+                    SmaliFileScanTask subTask = new SmaliFileScanTask(child);
+                    subTask.fork();
+                    subTasks.add(subTask);
+                } else {
+                    addIfSmaliFile(child, result);
+                }
+            }
+            for (SmaliFileScanTask subTask : subTasks) {
+                result.addAll(subTask.join());
+            }
+
+            return result;
+        }
+
+        private static void addIfSmaliFile(File file, List<SmaliFile> result) {
+            if (!file.getName().toLowerCase().endsWith(".smali")) {
+                return;
+            }
+
+            try {
+                result.add(new SmaliFile(file));
+            } catch (FileNotFoundException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+    }
+
 }
@@ -0,0 +1,292 @@
+package org.cf.util;
+
+import org.antlr.runtime.CommonToken;
+import org.antlr.runtime.CommonTokenStream;
+import org.antlr.runtime.Token;
+import org.antlr.runtime.TokenSource;
+import org.antlr.runtime.tree.CommonTree;
+import org.apache.commons.io.IOUtils;
+import org.cf.util.Dexifier.ParsedSmaliFile;
+import org.jf.smali.smaliFlexLexer;
+import org.jf.smali.smaliParser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-disk cache of parsed Smali files. Entries are keyed by a hash of the file contents, the cache format version and
+ * the Smali version, so a changed file or tool is just a miss. Each entry stores the parse tree in a compact binary
+ * form which is much cheaper to read than lexing and parsing again. Tokens are stored only where the tree uses them, so
+ * whitespace, comments and punctuation aren't kept.
+ * <p>
+ * The tree is cached rather than the dexified class. Dexlib2's builder classes can only be created by interning into a
+ * particular dex builder, and classes may be interned into a different builder each run, e.g. per-class builders when
+ * streaming output. So a cached class would have to be interned again, which is most of the work of walking the tree.
+ * Lexing and parsing are the expensive part, and that's what a hit skips.
+ */
+public class SmaliParseCache {
+
+    private static final Logger log = LoggerFactory.getLogger(SmaliParseCache.class.getSimpleName());
+
+    private static final int FORMAT_VERSION = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    // Tree node kinds
+    private static final byte NIL_NODE = 0;
+    private static final byte TOKEN_NODE = 1;
+
+    private final File directory;
+    private final String toolVersion;
+    private final AtomicInteger hits;
+    private final AtomicInteger misses;
+
+    public SmaliParseCache(File directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory.toPath());
+        toolVersion = FORMAT_VERSION + ":" + getSmaliVersion() + ":" + Dexifier.DEFAULT_API_LEVEL;
+        hits = new AtomicInteger();
+        misses = new AtomicInteger();
+    }
+
+    /*
+     * Jars built without a manifest version still need a key which changes when Smali does.
+     */
+    private static String getSmaliVersion() throws IOException {
+        String version = smaliParser.class.getPackage().getImplementationVersion();
+        if (version != null) {
+            return version;
+        }
+
+        CodeSource codeSource = smaliParser.class.getProtectionDomain().getCodeSource();
+        if (codeSource != null) {
+            try {
+                File location = new File(codeSource.getLocation().toURI());
+                if (location.isFile()) {
+                    return toHex(sha1(Files.readAllBytes(location.toPath())));
+                }
+            } catch (URISyntaxException | IllegalArgumentException e) {
+                // Fall back to hashing the classes which determine the parse.
+            }
+        }
+
+        return toHex(sha1(getClassBytes(smaliParser.class), getClassBytes(smaliFlexLexer.class)));
+    }
+
+    private static byte[] getClassBytes(Class<?> klazz) throws IOException {
+        try (InputStream is = klazz.getResourceAsStream(klazz.getSimpleName() + ".class")) {
+            if (is == null) {
+                throw new IOException("Unable to read class file for " + klazz);
+            }
+
+            return IOUtils.toByteArray(is);
+        }
+    }
+
+    private static byte[] sha1(byte[]... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            for (byte[] part : parts) {
+                digest.update(part);
+            }
+
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+
+        return sb.toString();
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+
+        return new String(bytes, UTF8);
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static CommonToken readToken(DataInputStream in) throws IOException {
+        CommonToken token = new CommonToken(in.readInt(), readString(in));
+        token.setLine(in.readInt());
+        token.setCharPositionInLine(in.readInt());
+        token.setTokenIndex(in.readInt());
+
+        return token;
+    }
+
+    private static void writeToken(DataOutputStream out, Token token) throws IOException {
+        out.writeInt(token.getType());
+        writeString(out, token.getText());
+        out.writeInt(token.getLine());
+        out.writeInt(token.getCharPositionInLine());
+        out.writeInt(token.getTokenIndex());
+    }
+
+    private static CommonTree readTree(DataInputStream in, List<Token> tokens) throws IOException {
+        byte kind = in.readByte();
+        CommonTree node;
+        switch (kind) {
+            case NIL_NODE:
+                node = new CommonTree();
+                break;
+            case TOKEN_NODE:
+                Token token = readToken(in);
+                tokens.add(token);
+                node = new CommonTree(token);
+                break;
+            default:
+                throw new IOException("Unknown tree node kind: " + kind);
+        }
+        node.setTokenStartIndex(in.readInt());
+        node.setTokenStopIndex(in.readInt());
+
+        int childCount = in.readInt();
+        for (int i = 0; i < childCount; i++) {
+            node.addChild(readTree(in, tokens));
+        }
+
+        return node;
+    }
+
+    private static void writeTree(DataOutputStream out, CommonTree node) throws IOException {
+        Token token = node.getToken();
+        if (token == null) {
+            out.writeByte(NIL_NODE);
+        } else {
+            out.writeByte(TOKEN_NODE);
+            writeToken(out, token);
+        }
+        out.writeInt(node.getTokenStartIndex());
+        out.writeInt(node.getTokenStopIndex());
+
+        int childCount = node.getChildCount();
+        out.writeInt(childCount);
+        for (int i = 0; i < childCount; i++) {
+            writeTree(out, (CommonTree) node.getChild(i));
+        }
+    }
+
+    public int getHits() {
+        return hits.get();
+    }
+
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Parse a Smali file, using the cached parse if one exists for the exact contents. Safe to call from multiple
+     * threads.
+     *
+     * @param filePath
+     * @param is
+     * @return parsed file ready for {@link Dexifier#dexifyParsedSmaliFile}
+     * @throws Exception
+     */
+    public ParsedSmaliFile parse(String filePath, InputStream is) throws Exception {
+        byte[] contents = IOUtils.toByteArray(is);
+        String key = toHex(sha1(toolVersion.getBytes(UTF8), contents));
+        File entry = new File(directory, key);
+        if (entry.exists()) {
+            try {
+                ParsedSmaliFile parsed = read(filePath, entry);
+                hits.incrementAndGet();
+
+                return parsed;
+            } catch (IOException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn("Unreadable parse cache entry for " + filePath + ", parsing again", e);
+                }
+            }
+        }
+        misses.incrementAndGet();
+
+        ParsedSmaliFile parsed = Dexifier.parseSmaliFile(filePath, new ByteArrayInputStream(contents));
+        try {
+            write(parsed, entry);
+        } catch (IOException e) {
+            if (log.isWarnEnabled()) {
+                log.warn("Unable to write parse cache entry for " + filePath, e);
+            }
+        }
+
+        return parsed;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Parse cache: ");
+        sb.append("hits=").append(getHits()).append(", misses=").append(getMisses());
+
+        return sb.toString();
+    }
+
+    private ParsedSmaliFile read(String filePath, final File entry) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))) {
+            // Only used for error messages when walking
+            final List<Token> tokens = new ArrayList<Token>();
+            CommonTree tree = readTree(in, tokens);
+
+            CommonTokenStream tokenStream = new CommonTokenStream(new TokenSource() {
+                private int index;
+
+                @Override
+                public Token nextToken() {
+                    if (index < tokens.size()) {
+                        return tokens.get(index++);
+                    }
+
+                    return new CommonToken(Token.EOF);
+                }
+
+                @Override
+                public String getSourceName() {
+                    return entry.getName();
+                }
+            });
+            tokenStream.fill();
+
+            return new ParsedSmaliFile(filePath, tree, tokenStream);
+        }
+    }
+
+    private void write(ParsedSmaliFile parsed, File entry) throws IOException {
+        File temp = File.createTempFile(entry.getName(), ".tmp", directory);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            writeTree(out, parsed.getTree());
+        }
+        Files.move(temp.toPath(), entry.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+}
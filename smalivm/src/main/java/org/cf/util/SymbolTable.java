@@ -0,0 +1,216 @@
+package org.cf.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Interns method and field descriptors to symbols with a compact id and every component already split out. Looking up
+ * a symbol is a single hash lookup, so hot paths can use it instead of splitting or regex parsing descriptors.
+ * <p>
+ * Descriptors are never removed. The number of distinct descriptors is bounded by the size of the app and framework.
+ */
+public class SymbolTable {
+
+    private static final ConcurrentMap<String, MethodSymbol> methodDescriptorToSymbol = new ConcurrentHashMap<String,
+            MethodSymbol>();
+    private static final ConcurrentMap<String, FieldSymbol> fieldDescriptorToSymbol = new ConcurrentHashMap<String,
+            FieldSymbol>();
+    private static final AtomicInteger nextId = new AtomicInteger();
+
+    /**
+     * @param typeDescriptor class, method or field descriptor
+     * @return class name part of the descriptor
+     */
+    public static String getClassName(String typeDescriptor) {
+        int index = typeDescriptor.indexOf("->");
+
+        return index < 0 ? typeDescriptor : typeDescriptor.substring(0, index);
+    }
+
+    /**
+     * @param fieldDescriptor e.g. Lsome/Class;->someField:I
+     * @return interned field symbol
+     */
+    public static FieldSymbol getField(String fieldDescriptor) {
+        FieldSymbol symbol = fieldDescriptorToSymbol.get(fieldDescriptor);
+        if (symbol == null) {
+            symbol = new FieldSymbol(nextId.getAndIncrement(), fieldDescriptor);
+            FieldSymbol previous = fieldDescriptorToSymbol.putIfAbsent(fieldDescriptor, symbol);
+            if (previous != null) {
+                symbol = previous;
+            }
+        }
+
+        return symbol;
+    }
+
+    /**
+     * @param methodDescriptor e.g. Lsome/Class;->someMethod(ILjava/lang/String;)V
+     * @return interned method symbol
+     */
+    public static MethodSymbol getMethod(String methodDescriptor) {
+        MethodSymbol symbol = methodDescriptorToSymbol.get(methodDescriptor);
+        if (symbol == null) {
+            symbol = new MethodSymbol(nextId.getAndIncrement(), methodDescriptor);
+            MethodSymbol previous = methodDescriptorToSymbol.putIfAbsent(methodDescriptor, symbol);
+            if (previous != null) {
+                symbol = previous;
+            }
+        }
+
+        return symbol;
+    }
+
+    /*
+     * Same results as matching each parameter with \[*(?:[BCDFIJSZ]|L[^;]+;) but without a regex.
+     */
+    private static List<String> parseParameterTypes(String signature) {
+        int start = signature.indexOf('(');
+        int end = signature.indexOf(')', start + 1);
+        if ((start < 0) || (end < 0)) {
+            return Collections.emptyList();
+        }
+
+        List<String> parameterTypes = new ArrayList<String>();
+        int i = start + 1;
+        while (i < end) {
+            int typeStart = i;
+            while ((i < end) && (signature.charAt(i) == '[')) {
+                i++;
+            }
+            if ((i < end) && (signature.charAt(i) == 'L')) {
+                int semicolon = signature.indexOf(';', i);
+                if ((semicolon < 0) || (semicolon > end)) {
+                    break;
+                }
+                i = semicolon + 1;
+            } else {
+                i++;
+            }
+            parameterTypes.add(signature.substring(typeStart, i));
+        }
+
+        return Collections.unmodifiableList(parameterTypes);
+    }
+
+    public static class FieldSymbol {
+
+        private final int id;
+        private final String descriptor;
+        private final String className;
+        private final String nameAndType;
+        private final String name;
+        private final String type;
+
+        private FieldSymbol(int id, String descriptor) {
+            this.id = id;
+            this.descriptor = descriptor;
+            className = getClassName(descriptor);
+            nameAndType = descriptor.substring(Math.min(descriptor.length(), className.length() + 2));
+            int colon = nameAndType.indexOf(':');
+            name = colon < 0 ? nameAndType : nameAndType.substring(0, colon);
+            type = colon < 0 ? "" : nameAndType.substring(colon + 1);
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getDescriptor() {
+            return descriptor;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return field name and type, e.g. someField:I
+         */
+        public String getNameAndType() {
+            return nameAndType;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        @Override
+        public String toString() {
+            return descriptor;
+        }
+
+    }
+
+    public static class MethodSymbol {
+
+        private final int id;
+        private final String descriptor;
+        private final String className;
+        private final String signature;
+        private final String name;
+        private final List<String> parameterTypes;
+        private final String returnType;
+
+        private MethodSymbol(int id, String descriptor) {
+            this.id = id;
+            this.descriptor = descriptor;
+            className = getClassName(descriptor);
+            signature = descriptor.substring(Math.min(descriptor.length(), className.length() + 2));
+            int parenthesis = signature.indexOf('(');
+            name = parenthesis < 0 ? signature : signature.substring(0, parenthesis);
+            parameterTypes = parseParameterTypes(signature);
+            int closeParenthesis = signature.lastIndexOf(')');
+            returnType = closeParenthesis < 0 ? "" : signature.substring(closeParenthesis + 1);
+        }
+
+        public String getClassName() {
+            return className;
+        }
+
+        public String getDescriptor() {
+            return descriptor;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return declared parameter types, not including the instance for non-static methods; unmodifiable
+         */
+        public List<String> getParameterTypes() {
+            return parameterTypes;
+        }
+
+        public String getReturnType() {
+            return returnType;
+        }
+
+        /**
+         * @return name, parameters and return type, e.g. someMethod(I)V
+         */
+        public String getSignature() {
+            return signature;
+        }
+
+        @Override
+        public String toString() {
+            return descriptor;
+        }
+
+    }
+
+}
@@ -21,14 +21,9 @@ import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class Utils {
 
-    private static final Pattern ParameterIndividuator = Pattern.compile("(\\[*(?:[BCDFIJSZ]|L[^;]+;))");
-    private static final Pattern ParameterIsolator = Pattern.compile("\\([^\\)]+\\)");
-
     public static String getArrayDimensionString(Object array) {
         if (!array.getClass().isArray()) {
             return "";
@@ -79,17 +74,7 @@ public class Utils {
     public static List<String> getParameterTypes(String methodDescriptor) {
         // Only use this for non-local methods.
         // For local methods, there's VirtualMachine#getParameterTypes.
-        Matcher m = ParameterIsolator.matcher(methodDescriptor);
-        List<String> result = new ArrayList<>();
-        if (m.find()) {
-            String params = m.group();
-            m = ParameterIndividuator.matcher(params);
-            while (m.find()) {
-                result.add(m.group());
-            }
-        }
-
-        return result;
+        return new ArrayList<>(SymbolTable.getMethod(methodDescriptor).getParameterTypes());
     }
 
     public static <E> Collection<E> makeCollection(Iterable<E> iter) {
@@ -319,7 +304,7 @@ public class Utils {
                 case "BuilderInstruction22s":
                     nli = (NarrowLiteralInstruction) instr;
                     TwoRegisterInstruction tri = (TwoRegisterInstruction) instr;
-                    return new BuilderInstruction22b(nli.getOpcode(), tri.getRegisterA(), tri.getRegisterB(), nli.getNarrowLiteral());
+                    return (BuilderInstruction) instr.getClass().getDeclaredConstructors()[0].newInstance(nli.getOpcode(), tri.getRegisterA(), tri.getRegisterB(), nli.getNarrowLiteral());
 
                 case "BuilderInstruction22c":
                     BuilderInstruction22c bi22c = (BuilderInstruction22c) instr;
@@ -345,7 +330,7 @@ public class Utils {
                     BuilderInstruction51l bi51l = (BuilderInstruction51l) instr;
                     return new BuilderInstruction51l(bi51l.getOpcode(), bi51l.getRegisterA(), bi51l.getWideLiteral());
 
-                case "ArrayPayload":
+                case "BuilderArrayPayload":
                     BuilderArrayPayload bap = (BuilderArrayPayload) instr;
                     return new BuilderArrayPayload(bap.getElementWidth(), bap.getArrayElements());
 
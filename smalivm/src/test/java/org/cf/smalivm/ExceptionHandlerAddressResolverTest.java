@@ -27,8 +27,8 @@ public class ExceptionHandlerAddressResolverTest {
 
     private static BuilderTryBlock buildTryBlock(int startAddress, int codeUnits, List handlers) {
         BuilderTryBlock tryBlock = mock(BuilderTryBlock.class);
-        when(tryBlock.getStartCodeAddress()).thenReturn(0);
-        when(tryBlock.getCodeUnitCount()).thenReturn(10);
+        when(tryBlock.getStartCodeAddress()).thenReturn(startAddress);
+        when(tryBlock.getCodeUnitCount()).thenReturn(codeUnits);
         when(tryBlock.getExceptionHandlers()).thenReturn(handlers);
 
         return tryBlock;
@@ -122,4 +122,41 @@ public class ExceptionHandlerAddressResolverTest {
         assertEquals(handlerCodeAddress2, actual);
     }
 
+    @Test
+    public void testAddressAtEndOfTryBlockIsCovered() {
+        int tryStartAddress = 1;
+        int tryCodeUnits = 10;
+        int handlerCodeAddress = 20;
+
+        when(vex.getExceptionClass()).thenReturn(EXCEPTION1);
+
+        List handlers = new LinkedList<>();
+        handlers.add(buildHandler(handlerCodeAddress, EXCEPTION1));
+        tryBlocks.add(buildTryBlock(tryStartAddress, tryCodeUnits, handlers));
+
+        ExceptionHandlerAddressResolver exceptionResolver = new ExceptionHandlerAddressResolver(classManager, METHOD);
+
+        // End is inclusive
+        assertEquals(handlerCodeAddress, exceptionResolver.resolve(vex, tryStartAddress + tryCodeUnits - 1));
+        assertEquals(handlerCodeAddress, exceptionResolver.resolve(vex, tryStartAddress + tryCodeUnits));
+    }
+
+    @Test
+    public void testAddressesOutsideOfTryBlockAreNotCovered() {
+        int tryStartAddress = 1;
+        int tryCodeUnits = 10;
+        int handlerCodeAddress = 20;
+
+        when(vex.getExceptionClass()).thenReturn(EXCEPTION1);
+
+        List handlers = new LinkedList<>();
+        handlers.add(buildHandler(handlerCodeAddress, EXCEPTION1));
+        tryBlocks.add(buildTryBlock(tryStartAddress, tryCodeUnits, handlers));
+
+        ExceptionHandlerAddressResolver exceptionResolver = new ExceptionHandlerAddressResolver(classManager, METHOD);
+
+        assertEquals(-1, exceptionResolver.resolve(vex, tryStartAddress - 1));
+        assertEquals(-1, exceptionResolver.resolve(vex, tryStartAddress + tryCodeUnits + 1));
+    }
+
 }
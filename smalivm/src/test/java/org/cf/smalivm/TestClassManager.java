@@ -1,12 +1,18 @@
 package org.cf.smalivm;
 
+import org.apache.commons.io.FileUtils;
 import org.cf.smalivm.exception.UnknownAncestors;
+import org.jf.dexlib2.writer.builder.DexBuilder;
 import org.junit.BeforeClass;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
@@ -17,9 +23,14 @@ public class TestClassManager {
     private static final String PARENT_CLASS = "Lparent_class;";
     private static final String GRANDPARENT_CLASS = "Lgrandparent_class;";
     private static final String NON_EXISTENT_CLASS = "Lthis_certainly_wont_exists;";
+    private static final String UNKNOWN_PARENT_CLASS = "Lunknown_parent_class;";
+    private static final String NON_EXISTENT_PARENT_CLASS = "Lthis_parent_certainly_wont_exist;";
 
     private static ClassManager manager;
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @BeforeClass
     public static void getClassManager() throws IOException {
         manager = new ClassManager(TEST_DIRECTORY);
@@ -32,6 +43,29 @@ public class TestClassManager {
         assertTrue(isInstance);
     }
 
+    @Test
+    public void testVirtualMethodTargetDependsOnReceiverClass() {
+        String signature = "someString()Ljava/lang/String;";
+
+        assertEquals(CHILD_CLASS + "->" + signature, manager.getVirtualMethodTarget(CHILD_CLASS, signature));
+        assertEquals(PARENT_CLASS + "->" + signature, manager.getVirtualMethodTarget(PARENT_CLASS, signature));
+        // Cached targets are still per class
+        assertEquals(CHILD_CLASS + "->" + signature, manager.getVirtualMethodTarget(CHILD_CLASS, signature));
+    }
+
+    @Test
+    public void testVirtualMethodTargetIsInheritedImplementation() {
+        String signature = "parentMethod()Ljava/lang/String;";
+
+        assertEquals(PARENT_CLASS + "->" + signature, manager.getVirtualMethodTarget(CHILD_CLASS, signature));
+        assertEquals(PARENT_CLASS + "->" + signature, manager.getVirtualMethodTarget(CHILD_CLASS, signature));
+    }
+
+    @Test
+    public void testVirtualMethodTargetOfMissingMethodIsNull() {
+        assertNull(manager.getVirtualMethodTarget(CHILD_CLASS, "missingMethod()V"));
+    }
+
     @Test
     public void testCanUnderstandNativeMethods() throws UnknownAncestors {
         boolean isNative = manager.isNativeMethod("Lnative_method_class;->nativeMethod()V");
@@ -119,6 +153,56 @@ public class TestClassManager {
         manager.isInstance(CHILD_CLASS, NON_EXISTENT_CLASS);
     }
 
+    @Test
+    public void testLocalClassIsInstanceOfInterfaceOfGrandParent() throws UnknownAncestors {
+        assertTrue(manager.isInstance(CHILD_CLASS, "Lgrandparent_interface;"));
+        assertFalse(manager.isInstance("Lgrandparent_interface;", CHILD_CLASS));
+    }
+
+    @Test
+    public void testLocalClassIsInstanceOfReflectedAncestor() throws UnknownAncestors {
+        assertTrue(manager.isInstance(CHILD_CLASS, "Ljava/lang/Object;"));
+        assertFalse(manager.isInstance(CHILD_CLASS, "Ljava/lang/Number;"));
+    }
+
+    @Test
+    public void testReflectedClassIsInstanceOfReflectedInterface() throws UnknownAncestors {
+        assertTrue(manager.isInstance("Ljava/lang/Integer;", "Ljava/lang/Comparable;"));
+        assertTrue(manager.isInstance("Ljava/lang/Integer;", "Ljava/io/Serializable;"));
+        assertFalse(manager.isInstance("Ljava/lang/Integer;", "Ljava/lang/CharSequence;"));
+    }
+
+    @Test
+    public void testClassIsInstanceOfKnownAncestorEvenIfSomeAreUnknown() throws UnknownAncestors {
+        assertTrue(manager.isInstance(UNKNOWN_PARENT_CLASS, NON_EXISTENT_PARENT_CLASS));
+    }
+
+    @Test(expected = UnknownAncestors.class)
+    public void testClassWithUnknownParentThrowsUnknownAncestors() throws UnknownAncestors {
+        manager.isInstance(UNKNOWN_PARENT_CLASS, "Ljava/lang/Object;");
+    }
+
+    @Test
+    public void testCircularHierarchyHasUnknownAncestors() throws IOException, UnknownAncestors {
+        File smaliDirectory = folder.newFolder();
+        FileUtils.writeStringToFile(new File(smaliDirectory, "cycle/A.smali"),
+                ".class public Lcycle/A;\n.super Lcycle/B;\n", "UTF-8");
+        FileUtils.writeStringToFile(new File(smaliDirectory, "cycle/B.smali"),
+                ".class public Lcycle/B;\n.super Lcycle/A;\n", "UTF-8");
+        ClassManager classManager = new ClassManager(smaliDirectory.getPath());
+
+        assertTrue(classManager.isInstance("Lcycle/A;", "Lcycle/B;"));
+        assertTrue(classManager.isInstance("Lcycle/B;", "Lcycle/A;"));
+        for (String className : new String[]{"Lcycle/A;", "Lcycle/B;"}) {
+            try {
+                classManager.isInstance(className, "Ljava/lang/Object;");
+                fail("Expected UnknownAncestors for " + className);
+            } catch (UnknownAncestors e) {
+                // Expected
+            }
+        }
+    }
+
     @Test
     public void testGetFieldsAndTypesReturnsFieldsFromSuperClasses() {
         List<String> fieldNameAndTypes = manager.getFieldNameAndTypes("Lchild_class;");
@@ -130,4 +214,61 @@ public class TestClassManager {
         assertArrayEquals(expected, actual);
     }
 
+    @Test
+    public void testClassDexBuildersAreSeparate() throws IOException {
+        ClassManager classManager = new ClassManager(TEST_DIRECTORY);
+        classManager.useClassDexBuilders(15);
+        DexBuilder childDexBuilder = classManager.getDexBuilder(CHILD_CLASS);
+        DexBuilder parentDexBuilder = classManager.getDexBuilder(PARENT_CLASS);
+
+        assertNotNull(childDexBuilder);
+        assertNotNull(parentDexBuilder);
+        assertNotSame(childDexBuilder, parentDexBuilder);
+    }
+
+    @Test
+    public void testUnloadedClassIsReloadedIntoScratchDexBuilder() throws IOException {
+        ClassManager classManager = new ClassManager(TEST_DIRECTORY);
+        classManager.useClassDexBuilders(15);
+        DexBuilder childDexBuilder = classManager.getDexBuilder(CHILD_CLASS);
+        classManager.unloadClass(CHILD_CLASS);
+
+        assertFalse(classManager.getLoadedClassNames().contains(CHILD_CLASS));
+        assertNotNull(classManager.getMethod(CHILD_CLASS, "<init>()V"));
+        assertTrue(classManager.getLoadedClassNames().contains(CHILD_CLASS));
+
+        DexBuilder scratchDexBuilder = classManager.getDexBuilder(CHILD_CLASS);
+        assertNotSame(childDexBuilder, scratchDexBuilder);
+        assertSame(scratchDexBuilder, classManager.getDexBuilder(CHILD_CLASS));
+    }
+
+    @Test
+    public void testClassUnloadedBeforeLoadingIsLoadedIntoScratchDexBuilder() throws IOException {
+        ClassManager classManager = new ClassManager(TEST_DIRECTORY);
+        classManager.useClassDexBuilders(15);
+        DexBuilder parentDexBuilder = classManager.getDexBuilder(PARENT_CLASS);
+        classManager.unloadClass(CHILD_CLASS);
+        classManager.unloadClass(PARENT_CLASS);
+
+        DexBuilder childDexBuilder = classManager.getDexBuilder(CHILD_CLASS);
+        assertNotSame(parentDexBuilder, childDexBuilder);
+        assertSame(classManager.getDexBuilder(PARENT_CLASS), childDexBuilder);
+    }
+
+    @Test
+    public void testEagerlyLoadedClassesMatchLazilyLoadedClasses() throws IOException {
+        ClassManager eagerClassManager = new ClassManager(TEST_DIRECTORY);
+        // More classes than are parsed ahead at once
+        eagerClassManager.loadNonFrameworkClasses(2);
+        ClassManager lazyClassManager = new ClassManager(TEST_DIRECTORY);
+
+        Set<String> classNames = eagerClassManager.getNonFrameworkClassNames();
+        assertTrue(classNames.size() > 4);
+        assertTrue(eagerClassManager.getLoadedClassNames().containsAll(classNames));
+        for (String className : classNames) {
+            assertEquals(lazyClassManager.getMethodDescriptors(className),
+                    eagerClassManager.getMethodDescriptors(className));
+        }
+    }
+
 }
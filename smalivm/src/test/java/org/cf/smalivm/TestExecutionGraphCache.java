@@ -0,0 +1,101 @@
+package org.cf.smalivm;
+
+import org.cf.smalivm.context.ExecutionGraph;
+import org.jf.dexlib2.writer.builder.BuilderMethod;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class TestExecutionGraphCache {
+
+    private static ExecutionGraph buildGraph(int instructionCount) {
+        ExecutionGraph graph = mock(ExecutionGraph.class);
+        when(graph.getAddresses()).thenReturn(new int[instructionCount]);
+
+        return graph;
+    }
+
+    private static BuilderMethod buildMethod(String className) {
+        BuilderMethod method = mock(BuilderMethod.class);
+        when(method.getDefiningClass()).thenReturn(className);
+
+        return method;
+    }
+
+    @Test
+    public void testUnboundedCacheNeverEvicts() {
+        ExecutionGraphCache cache = new ExecutionGraphCache(0);
+        for (int i = 0; i < 10; i++) {
+            cache.put(buildMethod("LFoo;"), buildGraph(100));
+        }
+
+        assertEquals(10, cache.size());
+        assertEquals(1000, cache.getResidentWeight());
+        assertEquals(0, cache.getEvictions());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        ExecutionGraphCache cache = new ExecutionGraphCache(25);
+        BuilderMethod method1 = buildMethod("LFoo;");
+        BuilderMethod method2 = buildMethod("LFoo;");
+        BuilderMethod method3 = buildMethod("LFoo;");
+        ExecutionGraph graph1 = buildGraph(10);
+        cache.put(method1, graph1);
+        cache.put(method2, buildGraph(10));
+        cache.get(method1);
+        cache.put(method3, buildGraph(10));
+
+        assertEquals(2, cache.size());
+        assertEquals(20, cache.getResidentWeight());
+        assertEquals(1, cache.getEvictions());
+        assertSame(graph1, cache.get(method1));
+        assertNull(cache.get(method2));
+    }
+
+    @Test
+    public void testOversizedGraphIsKept() {
+        ExecutionGraphCache cache = new ExecutionGraphCache(5);
+        BuilderMethod method = buildMethod("LFoo;");
+        ExecutionGraph graph = buildGraph(10);
+        cache.put(buildMethod("LFoo;"), buildGraph(1));
+        cache.put(method, graph);
+
+        assertEquals(1, cache.size());
+        assertSame(graph, cache.get(method));
+    }
+
+    @Test
+    public void testHitRateIsTracked() {
+        ExecutionGraphCache cache = new ExecutionGraphCache(0);
+        BuilderMethod method = buildMethod("LFoo;");
+        cache.get(method);
+        cache.put(method, buildGraph(1));
+        cache.get(method);
+        cache.get(method);
+        cache.get(method);
+
+        assertEquals(3, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(0.75, cache.getHitRate(), 0.001);
+    }
+
+    @Test
+    public void testRemoveClassRemovesOnlyThatClass() {
+        ExecutionGraphCache cache = new ExecutionGraphCache(0);
+        BuilderMethod fooMethod = buildMethod("LFoo;");
+        BuilderMethod barMethod = buildMethod("LBar;");
+        cache.put(fooMethod, buildGraph(3));
+        cache.put(barMethod, buildGraph(4));
+        cache.removeClass("LFoo;");
+
+        assertEquals(1, cache.size());
+        assertEquals(4, cache.getResidentWeight());
+        assertNull(cache.get(fooMethod));
+    }
+
+}
@@ -0,0 +1,109 @@
+package org.cf.smalivm;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.context.ExecutionNode;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestExecutionWorklist {
+
+    private static final String METHOD_DESCRIPTOR = "Lexecution_graph_test;->loopAfterTry()V";
+    // Instruction inside the try block
+    private static final int TRY_ADDRESS = 1;
+    private static final int IF_ADDRESS = 4;
+    private static final int GOTO_ADDRESS = 8;
+    private static final int RETURN_ADDRESS = 9;
+    private static final int HANDLER_ADDRESS = 10;
+
+    private ExecutionGraph template;
+    private TIntIntMap addressToVisitCount;
+
+    private ExecutionNode getNode(int address) {
+        return new ExecutionNode(template.getTemplateNode(address));
+    }
+
+    private void assertPollOrder(ExecutionWorklist worklist, int... expectedAddresses) {
+        for (int address : expectedAddresses) {
+            assertEquals(address, worklist.poll().getAddress());
+        }
+        assertNull(worklist.poll());
+    }
+
+    private ExecutionWorklist create(ExecutionWorklist.Strategy strategy) {
+        return ExecutionWorklist.create(strategy, addressToVisitCount, ExecutionWorklist.buildReturnDistances(
+                template));
+    }
+
+    @Before
+    public void setUp() {
+        template = VMTester.getTestVM().spawnInstructionGraph(METHOD_DESCRIPTOR).getTemplate();
+        addressToVisitCount = new TIntIntHashMap();
+    }
+
+    @Test
+    public void testBreadthFirstVisitsInOrderAdded() {
+        ExecutionWorklist worklist = create(ExecutionWorklist.Strategy.BFS);
+        worklist.add(getNode(0));
+        worklist.addAll(Arrays.asList(getNode(IF_ADDRESS), getNode(GOTO_ADDRESS)));
+        worklist.add(getNode(RETURN_ADDRESS));
+
+        assertPollOrder(worklist, 0, IF_ADDRESS, GOTO_ADDRESS, RETURN_ADDRESS);
+    }
+
+    @Test
+    public void testDepthFirstVisitsLastAddedFirstAndChildrenInOrder() {
+        ExecutionWorklist worklist = create(ExecutionWorklist.Strategy.DFS);
+        worklist.add(getNode(0));
+        worklist.addAll(Arrays.asList(getNode(IF_ADDRESS), getNode(GOTO_ADDRESS)));
+        worklist.add(getNode(RETURN_ADDRESS));
+
+        assertPollOrder(worklist, RETURN_ADDRESS, IF_ADDRESS, GOTO_ADDRESS, 0);
+    }
+
+    @Test
+    public void testCoverageVisitsLeastVisitedAddressFirst() {
+        addressToVisitCount.put(0, 3);
+        addressToVisitCount.put(IF_ADDRESS, 1);
+        addressToVisitCount.put(GOTO_ADDRESS, 1);
+        ExecutionWorklist worklist = create(ExecutionWorklist.Strategy.COVERAGE);
+        worklist.add(getNode(0));
+        worklist.add(getNode(GOTO_ADDRESS));
+        worklist.add(getNode(IF_ADDRESS));
+        worklist.add(getNode(RETURN_ADDRESS));
+
+        // Equal visit counts keep the order they were added
+        assertPollOrder(worklist, RETURN_ADDRESS, GOTO_ADDRESS, IF_ADDRESS, 0);
+    }
+
+    @Test
+    public void testShortestReturnVisitsClosestToReturnFirst() {
+        ExecutionWorklist worklist = create(ExecutionWorklist.Strategy.SHORTEST_RETURN);
+        worklist.add(getNode(0));
+        worklist.add(getNode(GOTO_ADDRESS));
+        worklist.add(getNode(IF_ADDRESS));
+        worklist.add(getNode(RETURN_ADDRESS));
+
+        assertPollOrder(worklist, RETURN_ADDRESS, IF_ADDRESS, GOTO_ADDRESS, 0);
+    }
+
+    @Test
+    public void testReturnDistancesIgnoreExceptionEdges() {
+        TIntIntMap addressToDistance = ExecutionWorklist.buildReturnDistances(template);
+
+        assertEquals(0, addressToDistance.get(RETURN_ADDRESS));
+        assertEquals(1, addressToDistance.get(IF_ADDRESS));
+        assertEquals(3, addressToDistance.get(GOTO_ADDRESS));
+        assertEquals(1, addressToDistance.get(HANDLER_ADDRESS));
+        // Through the handler would be 2
+        assertEquals(3, addressToDistance.get(TRY_ADDRESS));
+        assertEquals(4, addressToDistance.get(0));
+    }
+
+}
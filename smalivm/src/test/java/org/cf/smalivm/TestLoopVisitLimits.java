@@ -0,0 +1,83 @@
+package org.cf.smalivm;
+
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
+import org.cf.smalivm.exception.MaxCallDepthExceeded;
+import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
+import org.cf.smalivm.exception.UnhandledVirtualException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestLoopVisitLimits {
+
+    private static final String CLASS_NAME = "Lloop_visit_limits_test;";
+    private static final int MAX_ADDRESS_VISITS = 5000;
+    private static final int MAX_UNKNOWN_LOOP_VISITS = 20;
+    // Address of the loop test, after const/4 and const/16
+    private static final int LOOP_TEST_ADDRESS = 3;
+
+    private VirtualMachine vm;
+
+    private ExecutionGraph execute(String methodSignature) throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
+            MaxMethodVisitsExceeded, UnhandledVirtualException {
+        return vm.execute(CLASS_NAME + "->" + methodSignature);
+    }
+
+    @Before
+    public void setUp() {
+        vm = VMTester.getTestVM();
+        vm.setLimits(MAX_ADDRESS_VISITS, 20, 1000000);
+        vm.setAdaptiveVisitLimits(true, MAX_UNKNOWN_LOOP_VISITS);
+        vm.setAllowPartialGraphs(true);
+    }
+
+    @Test
+    public void testLoopWithKnownBoundIsFullyExecuted() throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
+            MaxMethodVisitsExceeded, UnhandledVirtualException {
+        ExecutionGraph graph = execute("knownBound()I");
+
+        assertFalse(graph.isPartial());
+        // 1000 iterations and the final test
+        assertEquals(1001, graph.getNodePile(LOOP_TEST_ADDRESS).size());
+    }
+
+    @Test
+    public void testLoopWithUnknownBoundGetsSmallBudget() throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
+            MaxMethodVisitsExceeded, UnhandledVirtualException {
+        ExecutionGraph graph = execute("unknownBound(I)I");
+
+        assertTrue(graph.isPartial());
+        // Loop test is the first instruction after const/4
+        int visits = graph.getNodePile(1).size();
+        assertTrue(visits > 0);
+        assertTrue(visits <= (MAX_UNKNOWN_LOOP_VISITS * 2));
+    }
+
+    @Test
+    public void testNestedLoopsWithKnownBoundsAreFullyExecuted() throws MaxAddressVisitsExceeded,
+            MaxCallDepthExceeded, MaxMethodVisitsExceeded, UnhandledVirtualException {
+        vm.setAdaptiveVisitLimits(true, 1);
+        ExecutionGraph graph = execute("nested()I");
+
+        assertFalse(graph.isPartial());
+        // Outer test runs 11 times, inner test runs 11 times each time the outer loop is entered
+        assertEquals(11, graph.getNodePile(LOOP_TEST_ADDRESS).size());
+        assertEquals(110, graph.getNodePile(6).size());
+    }
+
+    @Test
+    public void testLoopStepMovingAwayFromBoundGetsMaximumVisits() throws MaxAddressVisitsExceeded,
+            MaxCallDepthExceeded, MaxMethodVisitsExceeded, UnhandledVirtualException {
+        int maxAddressVisits = 200;
+        vm.setLimits(maxAddressVisits, 20, 1000000);
+        ExecutionGraph graph = execute("awayFromBound()I");
+
+        assertTrue(graph.isPartial());
+        int visits = graph.getNodePile(LOOP_TEST_ADDRESS).size();
+        assertTrue(visits > (MAX_UNKNOWN_LOOP_VISITS * 2));
+        assertTrue(visits <= (maxAddressVisits + 1));
+    }
+
+}
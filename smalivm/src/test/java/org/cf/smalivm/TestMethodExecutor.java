@@ -0,0 +1,74 @@
+package org.cf.smalivm;
+
+import org.cf.smalivm.context.ExecutionGraph;
+import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
+import org.cf.smalivm.exception.MaxCallDepthExceeded;
+import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
+import org.cf.smalivm.exception.UnhandledVirtualException;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestMethodExecutor {
+
+    private static final String LONG_LOOP = "Lmethod_executor_test;->longLoop()I";
+    private static final int RETURN_ADDRESS = 8;
+
+    private VirtualMachine vm;
+
+    @Before
+    public void setUp() {
+        vm = VMTester.getTestVM();
+        // Enough for the whole loop, which takes much longer than a millisecond
+        vm.setLimits(40000, 20, 1000000);
+    }
+
+    @Test
+    public void testWithinBudgetsGraphIsComplete() throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
+            MaxMethodVisitsExceeded, UnhandledVirtualException {
+        vm.setBudgets(3_600_000, Long.MAX_VALUE);
+        ExecutionGraph graph = vm.execute(LONG_LOOP);
+
+        assertFalse(graph.isPartial());
+        assertTrue(graph.wasAddressReached(RETURN_ADDRESS));
+        assertEquals(0, vm.getBudgetsExceededCount());
+    }
+
+    @Test
+    public void testExceedingTimeBudgetReturnsPartialGraph() throws MaxAddressVisitsExceeded,
+            MaxCallDepthExceeded, MaxMethodVisitsExceeded, UnhandledVirtualException {
+        vm.setBudgets(1, 0);
+        ExecutionGraph graph = vm.execute(LONG_LOOP);
+
+        assertTrue(graph.isPartial());
+        assertFalse(graph.wasAddressReached(RETURN_ADDRESS));
+        assertTrue(graph.isIncompleteAddress(RETURN_ADDRESS));
+        assertEquals(1, vm.getBudgetsExceededCount());
+    }
+
+    @Test
+    public void testExceedingAllocationBudgetReturnsPartialGraph() throws MaxAddressVisitsExceeded,
+            MaxCallDepthExceeded, MaxMethodVisitsExceeded, UnhandledVirtualException {
+        vm.setBudgets(0, 1);
+        ExecutionGraph graph = vm.execute(LONG_LOOP);
+
+        assertTrue(graph.isPartial());
+        assertFalse(graph.wasAddressReached(RETURN_ADDRESS));
+        assertEquals(1, vm.getBudgetsExceededCount());
+    }
+
+    @Test
+    public void testBudgetsStartOverForEachRootExecution() throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
+            MaxMethodVisitsExceeded, UnhandledVirtualException {
+        vm.setBudgets(1, 0);
+        assertTrue(vm.execute(LONG_LOOP).isPartial());
+
+        vm.setBudgets(0, 0);
+        ExecutionGraph graph = vm.execute(LONG_LOOP);
+        assertFalse(graph.isPartial());
+        assertTrue(graph.wasAddressReached(RETURN_ADDRESS));
+        assertEquals(1, vm.getBudgetsExceededCount());
+    }
+
+}
@@ -1,9 +1,18 @@
 package org.cf.smalivm;
 
 import gnu.trove.map.TIntObjectMap;
+import org.cf.smalivm.context.ExecutionGraph;
 import org.cf.smalivm.context.HeapItem;
 import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
 public class TestMethodReflector {
 
     /*
@@ -53,4 +62,62 @@ public class TestMethodReflector {
         VMTester.testMethodState(CLASS_NAME, "ByteValueOfByte()V", initial, expected);
     }
 
+    @Test
+    public void testWideParameterFollowedByAnotherParameter() {
+        long value = 0xffL;
+        TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, value, "J", 2, 16, "I");
+        TIntObjectMap<HeapItem> expected = VMTester.buildRegisterState(0, "ff", "Ljava/lang/String;");
+
+        VMTester.testMethodState(CLASS_NAME, "LongToStringWithRadix()V", initial, expected);
+    }
+
+    @Test
+    public void testReflectedInstanceCallWhichIsGivenUpOnLeavesReceiverUnknown() throws Exception {
+        VirtualMachine vm = VMTester.getTestVM();
+        vm.setReflectionTimeout(100, 1);
+        final AtomicBoolean release = new AtomicBoolean();
+        try {
+            // Occupy the only reflection thread with a call which ignores interrupts, so the next call is refused.
+            try {
+                vm.getReflectionExecutor().execute(new Callable<Object>() {
+                    @Override
+                    public Object call() {
+                        while (!release.get()) {
+                            try {
+                                Thread.sleep(10);
+                            } catch (InterruptedException e) {
+                                // Ignore, like a stubborn framework method
+                            }
+                        }
+
+                        return null;
+                    }
+                });
+                fail();
+            } catch (TimeoutException e) {
+                // expected
+            }
+
+            TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, new StringBuilder("a"),
+                    "Ljava/lang/StringBuilder;", 1, "b", "Ljava/lang/String;");
+            ExecutionGraph graph = VMTester.execute(vm, CLASS_NAME, "AppendToStringBuilder()V", initial,
+                    new HashMap<String, Map<String, HeapItem>>());
+
+            assertTrue(graph.getTerminatingRegisterConsensus(0).isUnknown());
+            assertEquals("b", graph.getTerminatingRegisterConsensus(1).getValue());
+        } finally {
+            release.set(true);
+            vm.setReflectionTimeout(0, 0);
+        }
+    }
+
+    @Test
+    public void testReflectedInstanceCallUpdatesReceiver() {
+        TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, new StringBuilder("a"),
+                "Ljava/lang/StringBuilder;", 1, "b", "Ljava/lang/String;");
+        ExecutionGraph graph = VMTester.execute(CLASS_NAME, "AppendToStringBuilder()V", initial);
+
+        assertEquals("ab", graph.getTerminatingRegisterConsensus(0).getValue().toString());
+    }
+
 }
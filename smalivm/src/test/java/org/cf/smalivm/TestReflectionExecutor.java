@@ -0,0 +1,77 @@
+package org.cf.smalivm;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestReflectionExecutor {
+
+    private ReflectionExecutor executor;
+
+    @Before
+    public void setUp() {
+        executor = new ReflectionExecutor(1, 100);
+    }
+
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void testFastCallReturnsResult() throws Exception {
+        Object result = executor.execute(new Callable<Object>() {
+            @Override
+            public Object call() {
+                return "result";
+            }
+        });
+
+        assertEquals("result", result);
+        assertEquals(1, executor.getCalls());
+        assertEquals(0, executor.getTimeouts());
+    }
+
+    @Test
+    public void testExceptionIsCause() throws Exception {
+        try {
+            executor.execute(new Callable<Object>() {
+                @Override
+                public Object call() {
+                    throw new IllegalArgumentException();
+                }
+            });
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    public void testSlowCallTimesOut() throws Exception {
+        try {
+            executor.execute(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    Thread.sleep(10_000);
+                    return null;
+                }
+            });
+            fail();
+        } catch (TimeoutException e) {
+            // expected
+        }
+
+        assertEquals(1, executor.getTimeouts());
+        assertTrue(executor.getMaxLatencyNanos() > 0);
+    }
+
+}
@@ -0,0 +1,47 @@
+package org.cf.smalivm;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestReflectionMemo {
+
+    private static final String METHOD = "Ljava/lang/Integer;->parseInt(Ljava/lang/String;)I";
+
+    @Test
+    public void testEqualArgumentsHit() {
+        ReflectionMemo memo = new ReflectionMemo(10);
+        memo.put(ReflectionMemo.getKey(METHOD, new Object[] { "42" }), 42);
+
+        assertEquals(42, memo.get(ReflectionMemo.getKey(METHOD, new Object[] { new String("42") })));
+        assertNull(memo.get(ReflectionMemo.getKey(METHOD, new Object[] { "43" })));
+        assertEquals(1, memo.getHits());
+        assertEquals(1, memo.getMisses());
+        assertEquals(0.5, memo.getHitRate(), 0.0);
+    }
+
+    @Test
+    public void testDifferentMethodsWithSameArgumentsMiss() {
+        ReflectionMemo memo = new ReflectionMemo(10);
+        memo.put(ReflectionMemo.getKey(METHOD, new Object[] { "42" }), 42);
+
+        assertNull(memo.get(ReflectionMemo.getKey("Ljava/lang/Integer;->valueOf(Ljava/lang/String;)I",
+                new Object[] { "42" })));
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        ReflectionMemo memo = new ReflectionMemo(2);
+        memo.put(ReflectionMemo.getKey(METHOD, new Object[] { "1" }), 1);
+        memo.put(ReflectionMemo.getKey(METHOD, new Object[] { "2" }), 2);
+        memo.get(ReflectionMemo.getKey(METHOD, new Object[] { "1" }));
+        memo.put(ReflectionMemo.getKey(METHOD, new Object[] { "3" }), 3);
+
+        assertEquals(2, memo.size());
+        assertEquals(1, memo.get(ReflectionMemo.getKey(METHOD, new Object[] { "1" })));
+        assertNull(memo.get(ReflectionMemo.getKey(METHOD, new Object[] { "2" })));
+        assertEquals(3, memo.get(ReflectionMemo.getKey(METHOD, new Object[] { "3" })));
+    }
+
+}
@@ -0,0 +1,112 @@
+package org.cf.smalivm;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestSideEffectSummaryCache {
+
+    private static final String CLASS_NAME = "Lside_effects_test;";
+
+    private VirtualMachine vm;
+    private SideEffectSummaryCache cache;
+
+    @Before
+    public void setUp() {
+        vm = VMTester.getTestVM();
+        cache = vm.getSideEffectSummaryCache();
+    }
+
+    @Test
+    public void testMethodsWithoutSideEffectsAreSideEffectFree() {
+        assertTrue(cache.isSideEffectFree(CLASS_NAME + "->EmptyMethod()V"));
+        assertTrue(cache.isSideEffectFree(CLASS_NAME + "->ConstOps()V"));
+        assertTrue(cache.isSideEffectFree(CLASS_NAME + "->NewInstanceNonLocalWhitelistedClass()V"));
+        assertTrue(cache.isSideEffectFree(CLASS_NAME + "->NewInstanceOfMethodWithNoStaticInitializer()V"));
+    }
+
+    @Test
+    public void testInvokingSideEffectFreeLocalMethodIsSideEffectFree() {
+        assertTrue(cache.isSideEffectFree(CLASS_NAME + "->InvokeMethodWithNoSideEffects()V"));
+    }
+
+    @Test
+    public void testPuttingFieldIsInconclusive() {
+        assertFalse(cache.isSideEffectFree(CLASS_NAME + "->ModifyInstanceMember()V"));
+    }
+
+    @Test
+    public void testInitializingClassWithSideEffectsIsInconclusive() {
+        assertFalse(cache.isSideEffectFree(CLASS_NAME + "->NewInstanceOfClassWithStaticInitializerWithWeakSideEffects()V"));
+        assertFalse(cache.isSideEffectFree(CLASS_NAME + "->NewInstanceNonLocalNonWhitelistedClass()V"));
+    }
+
+    @Test
+    public void testInvokingUnknownOrRecursiveMethodIsInconclusive() {
+        assertFalse(cache.isSideEffectFree(CLASS_NAME + "->InvokeMethodThatInvokesUnknownMethod()V"));
+        assertFalse(cache.isSideEffectFree(CLASS_NAME + "->InvokeOfNonAnalyzableMethod()V"));
+    }
+
+    @Test
+    public void testReflectedInvocationsAreInconclusive() {
+        // Reflected methods have side effects if arguments are unknown when executed.
+        assertFalse(cache.isSideEffectFree(CLASS_NAME + "->InvokeWhitelistedMethods()V"));
+    }
+
+    @Test
+    public void testInvokingSuperIsInconclusive() {
+        // Super target depends on the caller's class hierarchy.
+        assertTrue(cache.isSideEffectFree("Lparent_class;->someString()Ljava/lang/String;"));
+        assertFalse(cache.isSideEffectFree("Lchild_class;->superSomeString()Ljava/lang/String;"));
+    }
+
+    @Test
+    public void testUpdatingMethodInvalidatesOnlyDependentSummaries() {
+        String calleeDescriptor = CLASS_NAME + "->ConstOps()V";
+        String callerDescriptor = CLASS_NAME + "->InvokeMethodWithNoSideEffects()V";
+        String unrelatedDescriptor = CLASS_NAME + "->EmptyMethod()V";
+        cache.isSideEffectFree(callerDescriptor);
+        cache.isSideEffectFree(unrelatedDescriptor);
+        assertEquals(3, cache.size());
+
+        vm.updateInstructionGraph(calleeDescriptor);
+        assertEquals(1, cache.size());
+        cache.isSideEffectFree(unrelatedDescriptor);
+        assertEquals(1, cache.getHits());
+
+        assertTrue(cache.isSideEffectFree(callerDescriptor));
+        assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testRemovingClassGraphsInvalidatesOnlyClassAndDependentSummaries() {
+        String otherClassDescriptor = "Lparent_class;->someString()Ljava/lang/String;";
+        cache.isSideEffectFree(CLASS_NAME + "->InvokeMethodWithNoSideEffects()V");
+        cache.isSideEffectFree(otherClassDescriptor);
+        assertEquals(3, cache.size());
+
+        vm.removeInstructionGraphs(CLASS_NAME);
+        assertEquals(1, cache.size());
+        cache.isSideEffectFree(otherClassDescriptor);
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testSummariesAreCachedUntilCleared() {
+        String methodDescriptor = CLASS_NAME + "->InvokeMethodWithNoSideEffects()V";
+        cache.isSideEffectFree(methodDescriptor);
+        cache.isSideEffectFree(methodDescriptor);
+
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        // Callee summaries are cached too.
+        assertTrue(cache.size() > 1);
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+}
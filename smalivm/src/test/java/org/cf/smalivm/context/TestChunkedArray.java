@@ -0,0 +1,108 @@
+package org.cf.smalivm.context;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestChunkedArray {
+
+    private static int[] buildArray(int length) {
+        int[] array = new int[length];
+        for (int i = 0; i < length; i++) {
+            array[i] = i;
+        }
+
+        return array;
+    }
+
+    @Test
+    public void testOnlyLargePrimitiveArraysCanBeChunked() {
+        assertTrue(ChunkedArray.canChunk(new byte[ChunkedArray.MIN_LENGTH]));
+        assertFalse(ChunkedArray.canChunk(new byte[ChunkedArray.MIN_LENGTH - 1]));
+        assertFalse(ChunkedArray.canChunk(new Object[ChunkedArray.MIN_LENGTH]));
+        assertFalse(ChunkedArray.canChunk(new int[ChunkedArray.MIN_LENGTH][1]));
+        assertFalse(ChunkedArray.canChunk(null));
+    }
+
+    @Test
+    public void testCopyOfHasSameElementsAsArray() {
+        int[] array = buildArray(1000);
+        ChunkedArray chunkedArray = ChunkedArray.copyOf(array);
+
+        assertEquals(1000, chunkedArray.length());
+        assertEquals(999, chunkedArray.get(999));
+        assertArrayEquals(array, (int[]) chunkedArray.toArray());
+    }
+
+    @Test
+    public void testWritesToCopiesAreIndependent() {
+        int[] array = buildArray(1000);
+        ChunkedArray original = ChunkedArray.copyOf(array);
+        ChunkedArray copy = original.copy();
+        copy.set(10, -1);
+        original.set(999, -2);
+
+        assertEquals(10, original.get(10));
+        assertEquals(-1, copy.get(10));
+        assertEquals(-2, original.get(999));
+        assertEquals(999, copy.get(999));
+        assertEquals(10, array[10]);
+    }
+
+    @Test
+    public void testToArrayIsStableAndBacksLaterWrites() {
+        ChunkedArray chunkedArray = ChunkedArray.copyOf(buildArray(300));
+        int[] array = (int[]) chunkedArray.toArray();
+        chunkedArray.set(5, 42);
+
+        assertTrue(chunkedArray.isJoined());
+        assertSame(array, chunkedArray.toArray());
+        assertEquals(42, array[5]);
+    }
+
+    @Test(expected = ArrayIndexOutOfBoundsException.class)
+    public void testIndexPastLengthThrows() {
+        ChunkedArray.copyOf(buildArray(300)).get(300);
+    }
+
+    @Test
+    public void testCopiesShareUnwrittenChunks() {
+        ChunkedArray original = ChunkedArray.copyOf(buildArray(1000));
+        ChunkedArray copy = original.copy();
+        assertEquals(16, copy.getSharedChunkCount(original));
+
+        copy.set(0, -1);
+        assertEquals(15, copy.getSharedChunkCount(original));
+
+        original.toArray();
+        assertEquals(0, copy.getSharedChunkCount(original));
+    }
+
+    @Test
+    public void testRetypedHeapItemKeepsChunkedArray() {
+        HeapItem copy = new HeapItem(new HeapItem(buildArray(1000), "[I"));
+        HeapItem retyped = copy.withType("Ljava/lang/Object;");
+
+        assertEquals("Ljava/lang/Object;", retyped.getType());
+        assertSame(copy.getChunkedArray(), retyped.getChunkedArray());
+        assertFalse(retyped.getChunkedArray().isJoined());
+    }
+
+    @Test
+    public void testHeapItemCopyOfLargeArrayIsChunked() {
+        HeapItem item = new HeapItem(buildArray(1000), "[I");
+        HeapItem copy = new HeapItem(item);
+        HeapItem copyOfCopy = new HeapItem(copy);
+        copyOfCopy.getChunkedArray().set(0, 7);
+
+        assertEquals(0, copy.getChunkedArray().get(0));
+        assertEquals(7, ((int[]) copyOfCopy.getValue())[0]);
+        assertTrue(copyOfCopy.valueIdentity(copyOfCopy));
+        assertFalse(copy.valueIdentity(copyOfCopy));
+    }
+
+}
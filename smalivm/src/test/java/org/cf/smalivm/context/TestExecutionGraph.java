@@ -0,0 +1,115 @@
+package org.cf.smalivm.context;
+
+import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.exception.MaxAddressVisitsExceeded;
+import org.cf.smalivm.exception.MaxCallDepthExceeded;
+import org.cf.smalivm.exception.MaxMethodVisitsExceeded;
+import org.cf.smalivm.exception.UnhandledVirtualException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class TestExecutionGraph {
+
+    private static final String METHOD_DESCRIPTOR = "Lside_effects_test;->ConstOps()V";
+    // Second instruction, after const/4
+    private static final int SECOND_ADDRESS = 1;
+    private static final String LOOP_AFTER_TRY = "Lexecution_graph_test;->loopAfterTry()V";
+    // Loop head, right after the try block's last instruction
+    private static final int LOOP_ADDRESS = 2;
+    private static final int RETURN_ADDRESS = 9;
+    private static final int HANDLER_ADDRESS = 10;
+
+    private VirtualMachine vm;
+    private ExecutionGraph template;
+
+    @Before
+    public void setUp() {
+        vm = VMTester.getTestVM();
+        template = vm.spawnInstructionGraph(METHOD_DESCRIPTOR).getTemplate();
+    }
+
+    @Test
+    public void testSpawnedGraphsAreIsolated() {
+        ExecutionGraph graph1 = new ExecutionGraph(template);
+        ExecutionGraph graph2 = new ExecutionGraph(template);
+        graph1.addNode(new ExecutionNode(graph1.getRoot()));
+
+        assertEquals(1, graph1.getNodePile(0).size());
+        assertEquals(0, graph2.getNodePile(0).size());
+        assertEquals(0, template.getNodePile(0).size());
+        assertNotSame(template.getTemplateNode(0), graph1.getTemplateNode(0));
+        assertSame(template.getTemplateNode(0), graph2.getTemplateNode(0));
+
+        graph1.getTemplateNode(0).setChildAddresses(42);
+        assertNull(template.getTemplateNode(0).getChildAddresses());
+        assertNull(graph2.getTemplateNode(0).getChildAddresses());
+    }
+
+    @Test
+    public void testUnspawnedAddressesFallBackToTemplate() {
+        ExecutionGraph graph = new ExecutionGraph(template);
+        int[] expected = template.getAddresses();
+        int[] actual = graph.getAddresses();
+        Arrays.sort(expected);
+        Arrays.sort(actual);
+
+        assertArrayEquals(expected, actual);
+        assertTrue(graph.wasAddressReached(0));
+        assertFalse(graph.wasAddressReached(SECOND_ADDRESS));
+        assertEquals(0, graph.getNodePile(SECOND_ADDRESS).size());
+        assertSame(template.getOp(SECOND_ADDRESS), graph.getOp(SECOND_ADDRESS));
+    }
+
+    @Test
+    public void testExecutingSpawnedGraphDoesNotChangeTemplate() throws MaxAddressVisitsExceeded,
+            MaxCallDepthExceeded, MaxMethodVisitsExceeded, UnhandledVirtualException {
+        ExecutionGraph graph = vm.execute(METHOD_DESCRIPTOR);
+
+        assertSame(template, graph.getTemplate());
+        assertTrue(graph.wasAddressReached(SECOND_ADDRESS));
+        assertEquals(1, graph.getNodePile(SECOND_ADDRESS).size());
+        assertFalse(template.wasAddressReached(SECOND_ADDRESS));
+        assertEquals(0, template.getNodePile(SECOND_ADDRESS).size());
+    }
+
+    @Test
+    public void testCompleteGraphHasNoIncompleteAddresses() throws MaxAddressVisitsExceeded, MaxCallDepthExceeded,
+            MaxMethodVisitsExceeded, UnhandledVirtualException {
+        vm.setAllowPartialGraphs(true);
+        ExecutionGraph graph = vm.execute(LOOP_AFTER_TRY);
+
+        assertFalse(graph.isPartial());
+        assertTrue(graph.wasAddressReached(RETURN_ADDRESS));
+        assertFalse(graph.isIncompleteAddress(RETURN_ADDRESS));
+    }
+
+    @Test
+    public void testTruncatedGraphMarksReachableAddressesIncomplete() throws MaxAddressVisitsExceeded,
+            MaxCallDepthExceeded, MaxMethodVisitsExceeded, UnhandledVirtualException {
+        vm.setLimits(10, 20, 1000000);
+        vm.setAllowPartialGraphs(true);
+        ExecutionGraph graph = vm.execute(LOOP_AFTER_TRY);
+
+        assertTrue(graph.isPartial());
+        assertFalse(graph.wasAddressReached(RETURN_ADDRESS));
+        assertFalse(graph.isIncompleteAddress(0));
+        assertFalse(graph.isIncompleteAddress(SECOND_ADDRESS));
+        assertTrue(graph.isIncompleteAddress(LOOP_ADDRESS));
+        assertTrue(graph.isIncompleteAddress(RETURN_ADDRESS));
+        // Try block end is inclusive, so the handler may be reached from the loop head
+        assertTrue(graph.isIncompleteAddress(HANDLER_ADDRESS));
+    }
+
+    @Test(expected = MaxAddressVisitsExceeded.class)
+    public void testExceedingLimitWithoutPartialGraphsThrows() throws MaxAddressVisitsExceeded,
+            MaxCallDepthExceeded, MaxMethodVisitsExceeded, UnhandledVirtualException {
+        vm.setLimits(10, 20, 1000000);
+        vm.execute(LOOP_AFTER_TRY);
+    }
+
+}
@@ -0,0 +1,177 @@
+package org.cf.smalivm.emulate;
+
+import org.apache.commons.io.FileUtils;
+import org.cf.smalivm.SideEffect;
+import org.cf.smalivm.VirtualException;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.MethodState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestMethodEmulator {
+
+    private static final String PROVIDED_METHOD = "Lsome/Class;->provided()V";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<String> addedMethods;
+
+    private void addMethod(String methodDescriptor, Class<? extends EmulatedMethod> methodClass) {
+        addedMethods.add(methodDescriptor);
+        MethodEmulator.addMethod(methodDescriptor, methodClass);
+    }
+
+    @Before
+    public void setUp() {
+        addedMethods = new LinkedList<String>();
+    }
+
+    @After
+    public void tearDown() {
+        // Registry is static, so don't leak test methods into other tests.
+        for (String methodDescriptor : addedMethods) {
+            MethodEmulator.removeMethod(methodDescriptor);
+        }
+    }
+
+    @Test
+    public void testBuiltInMethodCanBeEmulated() {
+        assertTrue(MethodEmulator.canEmulate("Ljava/lang/Class;->forName(Ljava/lang/String;)Ljava/lang/Class;"));
+        assertFalse(MethodEmulator.canEmulate("Lsome/Class;->notEmulated()V"));
+    }
+
+    @Test
+    public void testUnknownValuesMethodCanHandleUnknownValues() {
+        String unknownValuesMethod = "Lsome/Class;->unknownValues()V";
+        String knownValuesMethod = "Lsome/Class;->knownValues()V";
+        addMethod(unknownValuesMethod, UnknownValuesEmulatedMethod.class);
+        addMethod(knownValuesMethod, KnownValuesEmulatedMethod.class);
+
+        assertTrue(MethodEmulator.canHandleUnknownValues(unknownValuesMethod));
+        assertFalse(MethodEmulator.canHandleUnknownValues(knownValuesMethod));
+    }
+
+    @Test
+    public void testReusableMethodIsCreatedOnce() {
+        String methodDescriptor = "Lsome/Class;->reusable()V";
+        int instances = KnownValuesEmulatedMethod.instances.get();
+        addMethod(methodDescriptor, KnownValuesEmulatedMethod.class);
+        assertEquals(instances + 1, KnownValuesEmulatedMethod.instances.get());
+
+        new MethodEmulator(null, null, methodDescriptor);
+        new MethodEmulator(null, null, methodDescriptor);
+        assertEquals(instances + 1, KnownValuesEmulatedMethod.instances.get());
+    }
+
+    @Test
+    public void testOtherMethodIsCreatedForEachCall() {
+        String methodDescriptor = "Lsome/Class;->notReusable()V";
+        int instances = NotReusableEmulatedMethod.instances.get();
+        addMethod(methodDescriptor, NotReusableEmulatedMethod.class);
+        assertEquals(instances, NotReusableEmulatedMethod.instances.get());
+
+        new MethodEmulator(null, null, methodDescriptor);
+        new MethodEmulator(null, null, methodDescriptor);
+        assertEquals(instances + 2, NotReusableEmulatedMethod.instances.get());
+    }
+
+    @Test
+    public void testProviderMethodsAreLoaded() throws IOException {
+        File servicesFile = new File(folder.getRoot(), "META-INF/services/" + EmulatedMethodProvider.class.getName());
+        FileUtils.writeStringToFile(servicesFile, TestProvider.class.getName() + "\n", "UTF-8");
+        ClassLoader classLoader = new URLClassLoader(new URL[]{folder.getRoot().toURI().toURL()},
+                getClass().getClassLoader());
+        addedMethods.add(PROVIDED_METHOD);
+        assertFalse(MethodEmulator.canEmulate(PROVIDED_METHOD));
+
+        MethodEmulator.loadProviders(classLoader);
+        assertTrue(MethodEmulator.canEmulate(PROVIDED_METHOD));
+        assertTrue(MethodEmulator.canHandleUnknownValues(PROVIDED_METHOD));
+    }
+
+    public static class TestProvider implements EmulatedMethodProvider {
+
+        @Override
+        public Map<String, Class<? extends EmulatedMethod>> getEmulatedMethods() {
+            Map<String, Class<? extends EmulatedMethod>> methods = new HashMap<String, Class<? extends
+                    EmulatedMethod>>();
+            methods.put(PROVIDED_METHOD, UnknownValuesEmulatedMethod.class);
+
+            return methods;
+        }
+
+    }
+
+    private static class KnownValuesEmulatedMethod implements MethodStateMethod, ReusableMethod {
+
+        private static final AtomicInteger instances = new AtomicInteger();
+
+        KnownValuesEmulatedMethod() {
+            instances.incrementAndGet();
+        }
+
+        @Override
+        public void execute(VirtualMachine vm, MethodState mState) {
+        }
+
+        @Override
+        public SideEffect.Level getSideEffectLevel() {
+            return SideEffect.Level.NONE;
+        }
+
+        @Override
+        public Set<VirtualException> getExceptions() {
+            return Collections.emptySet();
+        }
+
+    }
+
+    private static class UnknownValuesEmulatedMethod extends KnownValuesEmulatedMethod implements UnknownValuesMethod {
+
+    }
+
+    private static class NotReusableEmulatedMethod implements MethodStateMethod {
+
+        private static final AtomicInteger instances = new AtomicInteger();
+
+        NotReusableEmulatedMethod() {
+            instances.incrementAndGet();
+        }
+
+        @Override
+        public void execute(VirtualMachine vm, MethodState mState) {
+        }
+
+        @Override
+        public SideEffect.Level getSideEffectLevel() {
+            return SideEffect.Level.NONE;
+        }
+
+        @Override
+        public Set<VirtualException> getExceptions() {
+            return Collections.emptySet();
+        }
+
+    }
+
+}
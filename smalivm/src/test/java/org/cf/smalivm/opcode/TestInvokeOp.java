@@ -3,6 +3,8 @@ package org.cf.smalivm.opcode;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import org.cf.smalivm.VMTester;
+import org.cf.smalivm.VirtualMachine;
+import org.cf.smalivm.context.ChunkedArray;
 import org.cf.smalivm.context.ExecutionGraph;
 import org.cf.smalivm.context.ExecutionNode;
 import org.cf.smalivm.context.HeapItem;
@@ -14,10 +16,12 @@ import org.junit.Test;
 import org.junit.experimental.runners.Enclosed;
 import org.junit.runner.RunWith;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import static org.junit.Assert.*;
 
@@ -62,6 +66,38 @@ public class TestInvokeOp {
 
     public static class TestInvokeStatic {
         private static final String CLASS_NAME = "Linvoke_static_test;";
+        private static final int IF_ADDRESS = 7;
+        private static final int RETURN_ADDRESS = 20;
+
+        @Test
+        public void testLargeArrayIsNotJoinedByBranchOrInvoke() {
+            TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, new UnknownValue(), "I");
+            ExecutionGraph graph = VMTester.execute(CLASS_NAME, "InvokeWithLargeArray()V", initial);
+
+            // Arrays of at least 256 elements are chunked when they're copied to a new context.
+            ChunkedArray beforeBranch = graph.getNodePile(IF_ADDRESS).get(0).getContext().getMethodState()
+                    .peekRegister(1).getChunkedArray();
+            assertNotNull(beforeBranch);
+            assertFalse(beforeBranch.isJoined());
+
+            List<ExecutionNode> returnNodes = graph.getNodePile(RETURN_ADDRESS);
+            assertEquals(2, returnNodes.size());
+            Set<Integer> sharedChunkCounts = new HashSet<>();
+            Set<Object> seventhElements = new HashSet<>();
+            for (ExecutionNode node : returnNodes) {
+                MethodState mState = node.getContext().getMethodState();
+                ChunkedArray array = mState.peekRegister(1).getChunkedArray();
+                assertNotNull(array);
+                assertFalse(array.isJoined());
+                sharedChunkCounts.add(array.getSharedChunkCount(beforeBranch));
+                seventhElements.add(mState.peekRegister(0).getValue());
+                assertEquals(5, mState.peekRegister(2).getValue());
+                assertEquals(ChunkedArray.MIN_LENGTH, mState.peekRegister(3).getValue());
+            }
+            // Only the chunk written by one branch was copied, even after passing the array to a local method.
+            assertEquals(new HashSet<>(Arrays.asList(3, 4)), sharedChunkCounts);
+            assertEquals(new HashSet<Object>(Arrays.asList(0, 7)), seventhElements);
+        }
 
         @Test
         public void testInvokeMutateStaticClassFieldNonDeterministicallyPropigatesUnknown() {
@@ -194,6 +230,14 @@ public class TestInvokeOp {
     public static class TestInvokeVirtual {
         private static final String CLASS_NAME = "Linvoke_virtual_test;";
 
+        private static ExecutionGraph executeSomeString(VirtualMachine vm, String receiverType) {
+            TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, new LocalInstance(receiverType),
+                    "Lparent_class;");
+
+            return VMTester.execute(vm, CLASS_NAME, "InvokeSomeString()V", initial,
+                    new HashMap<String, Map<String, HeapItem>>());
+        }
+
         @Test
         public void testInvokeReturnIntReturnsInt() {
             TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, new LocalInstance(CLASS_NAME), CLASS_NAME);
@@ -230,6 +274,23 @@ public class TestInvokeOp {
             VMTester.testMethodState(CLASS_NAME, "InvokeRangeManyParameters()V", initial, expected);
         }
 
+        @Test
+        public void testCallSiteWithDifferentReceiverClassesGetsEachTarget() {
+            // Same VM, so each execution shares the call site's op.
+            VirtualMachine vm = VMTester.getTestVM();
+            ExecutionGraph parentGraph = executeSomeString(vm, "Lparent_class;");
+            assertEquals("parent", parentGraph.getTerminatingRegisterConsensus(MethodState.ResultRegister)
+                    .getValue());
+
+            ExecutionGraph childGraph = executeSomeString(vm, "Lchild_class;");
+            assertSame(parentGraph.getOp(0), childGraph.getOp(0));
+            assertEquals("child", childGraph.getTerminatingRegisterConsensus(MethodState.ResultRegister)
+                    .getValue());
+
+            ExecutionGraph graph = executeSomeString(vm, "Lparent_class;");
+            assertEquals("parent", graph.getTerminatingRegisterConsensus(MethodState.ResultRegister).getValue());
+        }
+
         @Test
         public void testInvokeGetComponentTypeOnPrimitiveArrayReturnsExpectedValue() {
             TIntObjectMap<HeapItem> initial = VMTester.buildRegisterState(0, new int[0], "[I");
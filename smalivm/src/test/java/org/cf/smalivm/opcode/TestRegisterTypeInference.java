@@ -0,0 +1,71 @@
+package org.cf.smalivm.opcode;
+
+import gnu.trove.map.TIntObjectMap;
+import org.cf.smalivm.VMTester;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestRegisterTypeInference {
+
+    private static final String CLASS_NAME = "Lregister_types_test;";
+
+    @BeforeClass
+    public static void setUp() {
+        VMTester.getTestVM();
+    }
+
+    private static TIntObjectMap<RegisterType[]> infer(String methodSignature) {
+        String methodDescriptor = CLASS_NAME + "->" + methodSignature;
+
+        return RegisterTypeInference.infer(VMTester.getClassManager().getMethod(methodDescriptor));
+    }
+
+    @Test
+    public void testParametersHaveDeclaredTypes() {
+        TIntObjectMap<RegisterType[]> addressToTypes = infer("Straight(IJLjava/lang/String;)V");
+
+        RegisterType[] expected = new RegisterType[] {
+                RegisterType.CONFLICT, RegisterType.CONFLICT, RegisterType.CONFLICT, RegisterType.INTEGRAL,
+                RegisterType.WIDE, RegisterType.WIDE, RegisterType.REFERENCE };
+        assertArrayEquals(expected, addressToTypes.get(0));
+    }
+
+    @Test
+    public void testWrittenRegistersHaveTypesOfInstructions() {
+        TIntObjectMap<RegisterType[]> addressToTypes = infer("Straight(IJLjava/lang/String;)V");
+
+        // if-eqz v1 after const/4 v0, const/4 v1, const-string v2, invoke, move-result v1
+        RegisterType[] ifTypes = addressToTypes.get(8);
+        assertEquals(RegisterType.ZERO, ifTypes[0]);
+        assertEquals(RegisterType.INTEGRAL, ifTypes[1]);
+        assertEquals(RegisterType.REFERENCE, ifTypes[2]);
+
+        // return-void is reached with v0 either zero or part of a long
+        RegisterType[] returnTypes = addressToTypes.get(11);
+        assertEquals(RegisterType.CONFLICT, returnTypes[0]);
+    }
+
+    @Test
+    public void testMergingZeroAndReferenceConflicts() {
+        TIntObjectMap<RegisterType[]> addressToTypes = infer("Merge(Z)I");
+
+        // const/4 v0, 0x2 at the join of both branches
+        RegisterType[] joinTypes = addressToTypes.get(6);
+        assertEquals(RegisterType.CONFLICT, joinTypes[0]);
+        assertEquals(RegisterType.INTEGRAL, joinTypes[1]);
+        // return v0
+        assertEquals(RegisterType.INTEGRAL, addressToTypes.get(7)[0]);
+    }
+
+    @Test
+    public void testUnreachableAddressesHaveNoTypes() {
+        TIntObjectMap<RegisterType[]> addressToTypes = infer("Merge(Z)I");
+
+        assertNull(addressToTypes.get(100));
+    }
+
+}
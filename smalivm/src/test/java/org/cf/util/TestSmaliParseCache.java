@@ -0,0 +1,95 @@
+package org.cf.util;
+
+import org.cf.util.Dexifier.ParsedSmaliFile;
+import org.jf.dexlib2.writer.builder.DexBuilder;
+import org.jf.dexlib2.writer.io.FileDataStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class TestSmaliParseCache {
+
+    private static final String TEST_DIRECTORY = "resources/test/smalivm";
+    // Covers labels, try blocks, payloads, annotations and static initializers.
+    private static final String[] SMALI_FILES = new String[]{
+            "side_effects_test.smali", "method_reflector_test.smali", "child_class.smali", "ops/aget_test.smali",
+            "ops/fill_array_data_test.smali", "ops/swich_test.smali", "ops/class_with_static_init.smali"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static File getSmaliFile(String name) {
+        return new File(TEST_DIRECTORY, name);
+    }
+
+    private byte[] dexify(SmaliParseCache cache) throws Exception {
+        DexBuilder dexBuilder = DexBuilder.makeDexBuilder(Dexifier.DEFAULT_API_LEVEL);
+        for (String name : SMALI_FILES) {
+            File smaliFile = getSmaliFile(name);
+            ParsedSmaliFile parsed;
+            try (FileInputStream is = new FileInputStream(smaliFile)) {
+                if (cache == null) {
+                    parsed = Dexifier.parseSmaliFile(smaliFile.getPath(), is);
+                } else {
+                    parsed = cache.parse(smaliFile.getPath(), is);
+                }
+            }
+            Dexifier.dexifyParsedSmaliFile(parsed, dexBuilder);
+        }
+        File dexFile = folder.newFile();
+        dexBuilder.writeTo(new FileDataStore(dexFile));
+
+        return Files.readAllBytes(dexFile.toPath());
+    }
+
+    @Test
+    public void testCachedParseDexifiesIdenticallyToUncachedParse() throws Exception {
+        byte[] expected = dexify(null);
+        SmaliParseCache cache = new SmaliParseCache(folder.newFolder());
+
+        assertArrayEquals(expected, dexify(cache));
+        assertEquals(0, cache.getHits());
+        assertEquals(SMALI_FILES.length, cache.getMisses());
+
+        assertArrayEquals(expected, dexify(cache));
+        assertEquals(SMALI_FILES.length, cache.getHits());
+        assertEquals(SMALI_FILES.length, cache.getMisses());
+    }
+
+    @Test
+    public void testCacheIsSharedBetweenInstances() throws Exception {
+        File directory = folder.newFolder();
+        dexify(new SmaliParseCache(directory));
+        SmaliParseCache cache = new SmaliParseCache(directory);
+
+        assertArrayEquals(dexify(null), dexify(cache));
+        assertEquals(SMALI_FILES.length, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void testChangedFileIsMiss() throws Exception {
+        SmaliParseCache cache = new SmaliParseCache(folder.newFolder());
+        File smaliFile = folder.newFile("changed.smali");
+        byte[] contents = Files.readAllBytes(getSmaliFile(SMALI_FILES[0]).toPath());
+        Files.write(smaliFile.toPath(), contents);
+        try (FileInputStream is = new FileInputStream(smaliFile)) {
+            cache.parse(smaliFile.getPath(), is);
+        }
+
+        Files.write(smaliFile.toPath(), (new String(contents, "UTF-8") + "\n# changed\n").getBytes("UTF-8"));
+        try (FileInputStream is = new FileInputStream(smaliFile)) {
+            cache.parse(smaliFile.getPath(), is);
+        }
+        assertEquals(0, cache.getHits());
+        assertEquals(2, cache.getMisses());
+    }
+
+}
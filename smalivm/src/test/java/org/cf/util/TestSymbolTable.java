@@ -0,0 +1,66 @@
+package org.cf.util;
+
+import org.cf.util.SymbolTable.FieldSymbol;
+import org.cf.util.SymbolTable.MethodSymbol;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+public class TestSymbolTable {
+
+    @Test
+    public void getClassNameOfClassReturnsClass() {
+        assertEquals("Lsome/Class;", SymbolTable.getClassName("Lsome/Class;"));
+    }
+
+    @Test
+    public void getClassNameOfMethodReturnsClass() {
+        assertEquals("Lsome/Class;", SymbolTable.getClassName("Lsome/Class;->method()V"));
+    }
+
+    @Test
+    public void methodSymbolHasExpectedComponents() {
+        MethodSymbol symbol = SymbolTable.getMethod("Lsome/Class;->method(I[[JLjava/lang/String;[Lsome/Class;Z)[B");
+
+        assertEquals("Lsome/Class;", symbol.getClassName());
+        assertEquals("method(I[[JLjava/lang/String;[Lsome/Class;Z)[B", symbol.getSignature());
+        assertEquals("method", symbol.getName());
+        assertEquals(Arrays.asList("I", "[[J", "Ljava/lang/String;", "[Lsome/Class;", "Z"), symbol.getParameterTypes());
+        assertEquals("[B", symbol.getReturnType());
+    }
+
+    @Test
+    public void methodSymbolWithoutParametersHasNoParameterTypes() {
+        MethodSymbol symbol = SymbolTable.getMethod("Lsome/Class;-><init>()V");
+
+        assertEquals("<init>", symbol.getName());
+        assertEquals(Collections.emptyList(), symbol.getParameterTypes());
+        assertEquals("V", symbol.getReturnType());
+    }
+
+    @Test
+    public void fieldSymbolHasExpectedComponents() {
+        FieldSymbol symbol = SymbolTable.getField("Lsome/Class;->someField:[Ljava/lang/Object;");
+
+        assertEquals("Lsome/Class;", symbol.getClassName());
+        assertEquals("someField:[Ljava/lang/Object;", symbol.getNameAndType());
+        assertEquals("someField", symbol.getName());
+        assertEquals("[Ljava/lang/Object;", symbol.getType());
+    }
+
+    @Test
+    public void symbolsAreInterned() {
+        MethodSymbol method1 = SymbolTable.getMethod(new String("Lsome/Class;->interned()V"));
+        MethodSymbol method2 = SymbolTable.getMethod(new String("Lsome/Class;->interned()V"));
+        MethodSymbol method3 = SymbolTable.getMethod("Lsome/Class;->other()V");
+
+        assertSame(method1, method2);
+        assertNotEquals(method1.getId(), method3.getId());
+    }
+
+}